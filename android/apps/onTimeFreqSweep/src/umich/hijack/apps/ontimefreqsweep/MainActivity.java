@@ -7,11 +7,15 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import umich.hijack.core.ListenerQueue;
 import umich.hijack.core.Packet;
 import umich.hijack.core.PacketDispatch;
 import umich.hijack.core.PacketType;
 import umich.hijack.core.PktRecvCb;
 import umich.hijack.core.SerialDecoder;
+import umich.hijack.core.Trace;
+import umich.hijack.core.android.AndroidAudioBackend;
+import umich.hijack.core.android.LogTraceSink;
 import android.app.Activity;
 import android.os.Bundle;
 import android.view.Menu;
@@ -44,20 +48,23 @@ public class MainActivity extends Activity {
 		newLogFile();
 
 		_dispatcher = new PacketDispatch();
-		_serialDecoder = new SerialDecoder();
+		_serialDecoder = new SerialDecoder(new AndroidAudioBackend());
 
 		_serialDecoder.registerPacketReceivedCallback(_dispatcher);
 		_serialDecoder.registerPacketSentCallback(_dispatcher);
 		_serialDecoder.setPowerFreq(12000);
 
 		_dispatcher.registerPacketTransmitter(_serialDecoder);
+
+		// The listeners write to the log file, keep that off the audio thread
+		_dispatcher.setListenerQueue(16, ListenerQueue.OverflowPolicy.DROP_OLDEST);
 		_dispatcher.registerIncomingPacketListener(bootedPkt, PacketType.BOOTED);
 		_dispatcher.registerIncomingPacketListener(resumedPkt, PacketType.RESUMED);
 		_dispatcher.registerIncomingPacketListener(powerdownPkt, PacketType.POWERDOWN);
 
 		//_dispatcher.registerOutgoingByteListener(_outgoingByteListener);
 
-		System.out.println("woah");
+		Trace.setLevel(Trace.Level.INFO);
 
 		final Button b1 = (Button)findViewById(R.id.button1);
 		b1.setOnClickListener(new View.OnClickListener() {
@@ -112,7 +119,7 @@ public class MainActivity extends Activity {
 							// Add note in log that the frequency has changed
 							addToLog("set frequency: " + Integer.toString(currentFreq) + " Hz\n");
 
-							System.out.println("set frequency: " + Integer.toString(currentFreq) + " Hz");
+							Trace.log(Trace.Level.INFO, "Set frequency: %d Hz", currentFreq);
 
 							if (msStep == 0) {
 								while (!_nextFlag) {
@@ -193,14 +200,16 @@ public class MainActivity extends Activity {
 	@Override
 	public void onPause() {
 		_serialDecoder.stop();
+		Trace.stopDrainer();
 		super.onPause();
 	}
 
 	@Override
 	public void onResume() {
+		Trace.startDrainer(new LogTraceSink("onTimeFreqSweep"));
 		_serialDecoder.start();
 		newLogFile();
-		System.out.println("RESUME");
+		Trace.log(Trace.Level.INFO, "Resumed");
 		super.onResume();
 	}
 
@@ -223,7 +232,7 @@ public class MainActivity extends Activity {
 	private final PktRecvCb bootedPkt = new PktRecvCb() {
 		@Override
 		public void recvPacket(Packet packet) {
-			System.out.println("GOT BOOTED PACKET");
+			Trace.log(Trace.Level.INFO, "Got booted packet");
 			addToLog("booted\n");
 		}
 	};
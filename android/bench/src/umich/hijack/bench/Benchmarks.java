@@ -0,0 +1,58 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.bench;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/*
+ * Runs the JMH benchmarks in umich.hijack.core. Takes the usual JMH command
+ * line options (a benchmark name pattern, -f, -wi, -i, ...) and always adds
+ * the GC profiler, so along with ns/sample, ns/bit or ns/op every
+ * benchmark reports the bytes it allocates per operation
+ * (gc.alloc.rate.norm).
+ */
+
+public class Benchmarks {
+
+	public static void main (String[] args)
+			throws CommandLineOptionException, RunnerException, IOException {
+		CommandLineOptions cmd = new CommandLineOptions(args);
+		if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers()) {
+			// Let JMH handle anything that does not run benchmarks
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+
+		OptionsBuilder options = new OptionsBuilder();
+		options.parent(cmd);
+		if (cmd.getIncludes().isEmpty()) {
+			options.include("umich\\.hijack\\.core\\..*Benchmark");
+		}
+		options.addProfiler(GCProfiler.class);
+
+		new Runner(options.build()).run();
+	}
+}
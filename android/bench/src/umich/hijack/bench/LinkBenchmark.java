@@ -0,0 +1,511 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.bench;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import umich.hijack.core.AdaptiveEdgeDetector;
+import umich.hijack.core.ChannelSimulator;
+import umich.hijack.core.Demodulator;
+import umich.hijack.core.LoopbackAudioBackend;
+import umich.hijack.core.MatchedFilterDemodulator;
+import umich.hijack.core.Packet;
+import umich.hijack.core.PacketDispatch;
+import umich.hijack.core.PacketType;
+import umich.hijack.core.PktRecvCb;
+import umich.hijack.core.SerialDecoder;
+
+/*
+ * Measures how well packets get across the audio link for a range of IO
+ * frequencies and noise levels.
+ *
+ * Each point of the sweep runs the full SerialDecoder and AudioReceiver
+ * stack on a LoopbackAudioBackend, with a ChannelSimulator in between.
+ * Packets are sent one at a time. A packet counts as delivered if it comes
+ * back with the same payload before the timeout. For each point this
+ * prints:
+ *
+ *  - the packet error rate (packets not delivered / packets sent)
+ *  - goodput: payload bits delivered per second of audio
+ *  - latency percentiles from sending a packet to receiving it, in ms of
+ *    audio time
+ *
+ * With --window the packets are instead all handed to a PacketDispatch at
+ * once and sent reliably: each asks for an ack, up to the window size of
+ * them are waiting for acks at a time, and the ones that are not acked in
+ * time are sent again. The loopback sends each packet back, so the
+ * dispatch acks its own packets and then receives those acks. This prints
+ * how many packets got through, the retransmits and packets given up on,
+ * the packets still waiting for an ack when the point timed out, the
+ * resent copies the dispatch recognized and dropped, and goodput over
+ * the whole transfer. PacketDispatch's timers run on the wall clock, so
+ * --window always runs the loopback in real time.
+ *
+ * All times are audio time (samples played / sample rate), so results do
+ * not depend on how fast the machine is. The channel and the payloads are
+ * the same for the same seed, but exactly when each packet is queued
+ * depends on thread scheduling, so runs can differ slightly. The wall clock
+ * time of each point is printed too.
+ *
+ * Options:
+ *   --io 613,1226        IO frequencies in Hz
+ *   --noise -60,-30,-20  noise levels in dB relative to full scale
+ *   --packets 200        packets per point
+ *   --payload 8          payload bytes per packet
+ *   --seed 1             seed for the channel and the payloads
+ *   --rate 44100         sample rate
+ *   --comparator 16384   square up the signal to this level like HiJack
+ *                        does (0 for none)
+ *   --gain -0.5          channel gain
+ *   --highpass 20        microphone high-pass cutoff in Hz (0 for none)
+ *   --lowpass 8000       low-pass cutoff in Hz (0 for none)
+ *   --drift 0            clock drift in ppm
+ *   --jitter 0           sampling jitter in samples (RMS)
+ *   --clip 32767         clipping level
+ *   --demod matched      matched or adaptive
+ *   --timeout 1000       ms of audio to wait for each packet
+ *   --realtime           run the loopback at the sample rate (always
+ *                        on with --window)
+ *   --crc                send packets with a CRC-16 instead of the checksum
+ *   --window 8           send reliably with this window size
+ */
+
+public class LinkBenchmark {
+
+	private int[] _ioFrequencies = {613, 1226, 2450};
+	private double[] _noiseLevels = {-80, -40, -30, -25, -20, -15};
+	private int _numPackets = 200;
+	private int _payloadLen = 8;
+	private long _seed = 1;
+	private int _sampleFrequency = 44100;
+	private int _comparator = 16384;
+	private double _gain = -0.5;
+	private double _highPass = 20;
+	private double _lowPass = 8000;
+	private double _drift = 0;
+	private double _jitter = 0;
+	private int _clipLevel = Short.MAX_VALUE;
+	private String _demodulator = "matched";
+	private int _timeoutMs = 1000;
+	private boolean _realTime = false;
+	private boolean _crc = false;
+	// 0 to send one packet at a time without acks
+	private int _window = 0;
+
+	// Results for one point of the sweep
+	private static class Result {
+		int sent;
+		int delivered;
+		long payloadBits;
+		double audioSeconds;
+		double wallSeconds;
+		double[] latenciesMs;
+		long retransmits;
+		long failed;
+		long duplicates;
+		// Neither acked nor given up on when the point timed out
+		long open;
+	}
+
+	// State shared with the receive callback, guarded by _lock
+	private final Object _lock = new Object();
+	private int[] _expected;
+	private boolean _received;
+	private int _receivedPosition;
+	// Which packets have arrived when sending reliably
+	private boolean[] _delivered;
+	private int _numDelivered;
+
+	public static void main (String[] args) {
+		LinkBenchmark benchmark = new LinkBenchmark();
+		benchmark.parseArgs(args);
+		benchmark.run(System.out);
+	}
+
+	public void run (PrintStream out) {
+		out.println("# rate " + _sampleFrequency + " Hz, " + _numPackets +
+		            " packets of " + _payloadLen + " bytes, seed " + _seed +
+		            ", demodulator " + _demodulator + ", " + ((_crc) ? "crc" : "checksum"));
+		out.println("# comparator " + _comparator + ", gain " + _gain + ", high-pass " + _highPass +
+		            " Hz, low-pass " + _lowPass + " Hz, drift " + _drift +
+		            " ppm, jitter " + _jitter + ", clip " + _clipLevel);
+		if (_window > 0) {
+			runReliable(out);
+			return;
+		}
+
+		out.println(String.format("%6s %7s %6s %6s %7s %9s %8s %8s %8s %8s %7s",
+		            "io_hz", "noise", "sent", "ok", "per", "goodput",
+		            "p50_ms", "p90_ms", "p99_ms", "max_ms", "wall_s"));
+
+		for (int ioFrequency : _ioFrequencies) {
+			for (double noise : _noiseLevels) {
+				Result r = runPoint(ioFrequency, noise);
+				out.println(String.format(
+					"%6d %7.1f %6d %6d %7.4f %9.1f %8.1f %8.1f %8.1f %8.1f %7.2f",
+					ioFrequency, noise, r.sent, r.delivered,
+					1.0 - (double) r.delivered / r.sent,
+					r.payloadBits / r.audioSeconds,
+					percentile(r.latenciesMs, 50),
+					percentile(r.latenciesMs, 90),
+					percentile(r.latenciesMs, 99),
+					percentile(r.latenciesMs, 100),
+					r.wallSeconds));
+			}
+		}
+	}
+
+	private void runReliable (PrintStream out) {
+		// Otherwise the audio would run far ahead of the retransmit timers
+		_realTime = true;
+
+		out.println("# window " + _window + ", real time");
+		out.println(String.format("%6s %7s %6s %6s %7s %7s %7s %7s %9s %7s",
+		            "io_hz", "noise", "sent", "ok", "retx", "failed", "open",
+		            "dup", "goodput", "wall_s"));
+
+		for (int ioFrequency : _ioFrequencies) {
+			for (double noise : _noiseLevels) {
+				Result r = runReliablePoint(ioFrequency, noise);
+				out.println(String.format(
+					"%6d %7.1f %6d %6d %7d %7d %7d %7d %9.1f %7.2f",
+					ioFrequency, noise, r.sent, r.delivered, r.retransmits,
+					r.failed, r.open, r.duplicates, r.payloadBits / r.audioSeconds, r.wallSeconds));
+			}
+		}
+	}
+
+	private Result runPoint (int ioFrequency, double noiseDb) {
+		final LoopbackAudioBackend backend = newBackend(noiseDb);
+		SerialDecoder decoder = newDecoder(backend, ioFrequency);
+		decoder.registerPacketReceivedCallback(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				packetReceived(p, backend.getPlaybackPosition());
+				p.release();
+			}
+		});
+
+		Random payloads = new Random(_seed);
+		List<Double> latencies = new ArrayList<Double>();
+		Result result = new Result();
+		int timeout = (int) ((long) _sampleFrequency * _timeoutMs / 1000);
+
+		long wallStart = System.nanoTime();
+		decoder.start();
+		int startPosition = backend.getPlaybackPosition();
+
+		for (int i = 0; i < _numPackets; i++) {
+			Packet p = new Packet();
+			p.typeId = PacketType.HIJACKIO;
+			p.crc = _crc;
+			p.length = _payloadLen;
+			p.setSequenceNumber(i & 0xFF);
+			int[] expected = new int[_payloadLen];
+			for (int j = 0; j < _payloadLen; j++) {
+				expected[j] = payloads.nextInt(256);
+				p.setData(j, expected[j]);
+			}
+
+			int sentPosition;
+			synchronized (_lock) {
+				_expected = expected;
+				_received = false;
+				sentPosition = backend.getPlaybackPosition();
+			}
+			decoder.sendPacket(p);
+			result.sent++;
+
+			synchronized (_lock) {
+				while (!_received &&
+				       backend.getPlaybackPosition() - sentPosition < timeout) {
+					try {
+						_lock.wait(1);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+
+				if (_received) {
+					result.delivered++;
+					result.payloadBits += _payloadLen * 8;
+					latencies.add((_receivedPosition - sentPosition) * 1000.0
+					              / _sampleFrequency);
+				}
+				_expected = null;
+			}
+		}
+
+		int endPosition = backend.getPlaybackPosition();
+		decoder.stop();
+
+		result.wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+		result.audioSeconds = (double) (endPosition - startPosition) / _sampleFrequency;
+		result.latenciesMs = new double[latencies.size()];
+		for (int i = 0; i < latencies.size(); i++) {
+			result.latenciesMs[i] = latencies.get(i);
+		}
+		Arrays.sort(result.latenciesMs);
+		return result;
+	}
+
+	// Send every packet through a PacketDispatch at once and wait until
+	// each one has been acked or given up on
+	private Result runReliablePoint (int ioFrequency, double noiseDb) {
+		if (_payloadLen < 2) {
+			throw new IllegalArgumentException("--window needs --payload 2 or more");
+		}
+
+		LoopbackAudioBackend backend = newBackend(noiseDb);
+		SerialDecoder decoder = newDecoder(backend, ioFrequency);
+		PacketDispatch dispatch = new PacketDispatch();
+		dispatch.setWindowSize(_window);
+		dispatch.setCrcEnabled(_crc);
+		dispatch.registerPacketTransmitter(decoder);
+		decoder.registerPacketReceivedCallback(dispatch);
+
+		// The first two payload bytes say which packet it is and the rest
+		// come from the seed
+		Random payloads = new Random(_seed);
+		final int[][] expected = new int[_numPackets][_payloadLen];
+		Packet[] packets = new Packet[_numPackets];
+		for (int i = 0; i < _numPackets; i++) {
+			expected[i][0] = i & 0xFF;
+			expected[i][1] = (i >> 8) & 0xFF;
+			for (int j = 2; j < _payloadLen; j++) {
+				expected[i][j] = payloads.nextInt(256);
+			}
+			Packet p = new Packet();
+			p.typeId = PacketType.HIJACKIO;
+			p.ackRequested = true;
+			p.length = _payloadLen;
+			for (int j = 0; j < _payloadLen; j++) {
+				p.setData(j, expected[i][j]);
+			}
+			packets[i] = p;
+		}
+
+		dispatch.registerIncomingPacketListener(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				reliablePacketReceived(p, expected);
+			}
+		}, PacketType.HIJACKIO);
+
+		synchronized (_lock) {
+			_delivered = new boolean[_numPackets];
+			_numDelivered = 0;
+		}
+
+		Result result = new Result();
+		long wallStart = System.nanoTime();
+		decoder.start();
+		int startPosition = backend.getPlaybackPosition();
+		long timeout = (long) _sampleFrequency * _timeoutMs / 1000 * _numPackets;
+
+		for (Packet p : packets) {
+			dispatch.sendPacket(p);
+			result.sent++;
+		}
+
+		// Done when every packet is acked or given up on
+		while (backend.getPlaybackPosition() - startPosition < timeout) {
+			int done = 0;
+			for (Packet p : packets) {
+				if (p.ackReceived) {
+					done++;
+				}
+			}
+			if (done + dispatch.getFailedCount() >= _numPackets) {
+				break;
+			}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+
+		int endPosition = backend.getPlaybackPosition();
+		int acked = 0;
+		for (Packet p : packets) {
+			if (p.ackReceived) {
+				acked++;
+			}
+		}
+		dispatch.shutdown();
+		decoder.stop();
+
+		synchronized (_lock) {
+			result.delivered = _numDelivered;
+		}
+		result.payloadBits = (long) result.delivered * _payloadLen * 8;
+		result.retransmits = dispatch.getRetransmitCount();
+		result.failed = dispatch.getFailedCount();
+		result.duplicates = dispatch.getDuplicateCount();
+		result.open = result.sent - acked - result.failed;
+		result.wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+		result.audioSeconds = (double) (endPosition - startPosition) / _sampleFrequency;
+		return result;
+	}
+
+	private LoopbackAudioBackend newBackend (double noiseDb) {
+		ChannelSimulator channel = new ChannelSimulator(_sampleFrequency, _seed);
+		channel.setComparator(_comparator);
+		channel.setGain(_gain);
+		channel.setHighPass(_highPass);
+		channel.setLowPass(_lowPass);
+		channel.setClockDrift(_drift);
+		channel.setJitter(_jitter);
+		channel.setClipLevel(_clipLevel);
+		channel.setNoise(Short.MAX_VALUE * Math.pow(10, noiseDb / 20));
+
+		return new LoopbackAudioBackend(_sampleFrequency, channel, _realTime);
+	}
+
+	private SerialDecoder newDecoder (LoopbackAudioBackend backend,
+	                                  int ioFrequency) {
+		SerialDecoder decoder = new SerialDecoder(backend);
+		decoder.setIoFrq(ioFrequency);
+		decoder.setDemodulator(newDemodulator());
+		return decoder;
+	}
+
+	// Called on the audio processing thread for each good packet when
+	// sending reliably. Copies that were sent again count once.
+	private void reliablePacketReceived (Packet p, int[][] expected) {
+		if (p.length < 2) {
+			return;
+		}
+		int idx = p.getData(0) | (p.getData(1) << 8);
+		if (idx >= expected.length || p.length != expected[idx].length) {
+			return;
+		}
+		for (int i = 0; i < p.length; i++) {
+			if (p.getData(i) != expected[idx][i]) {
+				return;
+			}
+		}
+
+		synchronized (_lock) {
+			if (!_delivered[idx]) {
+				_delivered[idx] = true;
+				_numDelivered++;
+			}
+		}
+	}
+
+	// Called on the audio processing thread for each good packet
+	private void packetReceived (Packet p, int position) {
+		synchronized (_lock) {
+			if (_expected == null || _received || p.length != _expected.length) {
+				return;
+			}
+			for (int i = 0; i < p.length; i++) {
+				if (p.getData(i) != _expected[i]) {
+					return;
+				}
+			}
+			_received = true;
+			_receivedPosition = position;
+			_lock.notifyAll();
+		}
+	}
+
+	private Demodulator newDemodulator () {
+		if (_demodulator.equals("adaptive")) {
+			return new AdaptiveEdgeDetector();
+		}
+		return new MatchedFilterDemodulator();
+	}
+
+	// Percentile of sorted values, or NaN if there are none
+	private static double percentile (double[] sorted, double percent) {
+		if (sorted.length == 0) {
+			return Double.NaN;
+		}
+		int idx = (int) Math.ceil(percent / 100 * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+	}
+
+	private void parseArgs (String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--realtime")) {
+				_realTime = true;
+				continue;
+			}
+			if (arg.equals("--crc")) {
+				_crc = true;
+				continue;
+			}
+			if (i + 1 >= args.length) {
+				throw new IllegalArgumentException("Missing value for " + arg);
+			}
+			String value = args[++i];
+
+			if (arg.equals("--io")) {
+				String[] parts = value.split(",");
+				_ioFrequencies = new int[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					_ioFrequencies[j] = Integer.parseInt(parts[j].trim());
+				}
+			} else if (arg.equals("--noise")) {
+				String[] parts = value.split(",");
+				_noiseLevels = new double[parts.length];
+				for (int j = 0; j < parts.length; j++) {
+					_noiseLevels[j] = Double.parseDouble(parts[j].trim());
+				}
+			} else if (arg.equals("--packets")) {
+				_numPackets = Integer.parseInt(value);
+			} else if (arg.equals("--payload")) {
+				_payloadLen = Integer.parseInt(value);
+			} else if (arg.equals("--seed")) {
+				_seed = Long.parseLong(value);
+			} else if (arg.equals("--rate")) {
+				_sampleFrequency = Integer.parseInt(value);
+			} else if (arg.equals("--comparator")) {
+				_comparator = Integer.parseInt(value);
+			} else if (arg.equals("--gain")) {
+				_gain = Double.parseDouble(value);
+			} else if (arg.equals("--highpass")) {
+				_highPass = Double.parseDouble(value);
+			} else if (arg.equals("--lowpass")) {
+				_lowPass = Double.parseDouble(value);
+			} else if (arg.equals("--drift")) {
+				_drift = Double.parseDouble(value);
+			} else if (arg.equals("--jitter")) {
+				_jitter = Double.parseDouble(value);
+			} else if (arg.equals("--clip")) {
+				_clipLevel = Integer.parseInt(value);
+			} else if (arg.equals("--demod")) {
+				_demodulator = value;
+			} else if (arg.equals("--window")) {
+				_window = Integer.parseInt(value);
+			} else if (arg.equals("--timeout")) {
+				_timeoutMs = Integer.parseInt(value);
+			} else {
+				throw new IllegalArgumentException("Unknown option " + arg);
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Finding edges in microphone samples and handing them up. Reported per
+ * input sample.
+ *
+ * The input is a slightly noisy square wave carrying a stream of packets
+ * at 613 Hz, which is what the microphone sees from HiJack. The sink only
+ * counts edges so the decoder above is not part of the measurement.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InputBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int IO_FREQUENCY = 613;
+	// Same bit length as the phone sends at this IO frequency
+	private final static double SAMPLES_PER_HALF_BIT =
+			(SAMPLE_FREQUENCY / IO_FREQUENCY / 2) / 2.0;
+
+	private final static int SAMPLES = 16384;
+
+	@Param({"matched", "adaptive"})
+	public String demodulator;
+
+	private AudioReceiver _receiver;
+	private short[] _samples;
+	private int _edges;
+
+	@Setup
+	public void setup () {
+		_samples = ManchesterSignal.samples(
+				ManchesterSignal.halfBits(ManchesterSignal.packets(16, 8, 1)),
+				SAMPLES_PER_HALF_BIT, SAMPLES, 12000, 300, 1);
+
+		_receiver = new AudioReceiver(
+				new LoopbackAudioBackend(SAMPLE_FREQUENCY, null));
+		_receiver.setSampleFrequency(SAMPLE_FREQUENCY);
+		_receiver.setDemodulator(demodulator.equals("matched")
+				? new MatchedFilterDemodulator() : new AdaptiveEdgeDetector());
+		_receiver.registerIncomingSink(new BatchIncomingSink() {
+			@Override
+			public void handleEdges (EdgeBatch edges) {
+				_edges += edges.size();
+			}
+
+			@Override
+			public void handleNextBit (int transistionPeriod, EdgeType edge) {
+				_edges++;
+			}
+
+			@Override
+			public void handleDiscontinuity () {
+			}
+		});
+		_receiver.initialize();
+
+		// Make sure the demodulator actually finds the signal
+		_receiver.processInputBuffer(_samples, 0, SAMPLES);
+		if (_edges < SAMPLES / SAMPLES_PER_HALF_BIT / 4) {
+			throw new IllegalStateException("Only found " + _edges + " edges");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(SAMPLES)
+	public int processInputBuffer () {
+		_receiver.processInputBuffer(_samples, 0, SAMPLES);
+		return _edges;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The running statistics the receiver keeps over edge periods, at the size
+ * SerialDecoder uses.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LimitedArrayBenchmark {
+
+	private final static int SIZE = 4;
+
+	// Edge periods around 17.5 samples, in fixed point
+	private final int[] _periods = new int[1024];
+	private int _idx = 0;
+
+	private final LimitedArray _array = new LimitedArray(SIZE);
+
+	@Setup
+	public void setup () {
+		Random random = new Random(1);
+		for (int i = 0; i < _periods.length; i++) {
+			_periods[i] = 17 * IncomingSink.PERIOD_ONE_SAMPLE
+					+ random.nextInt(IncomingSink.PERIOD_ONE_SAMPLE);
+		}
+		for (int i = 0; i < SIZE; i++) {
+			_array.insert(_periods[i]);
+		}
+	}
+
+	@Benchmark
+	public LimitedArray insert () {
+		_array.insert(_periods[_idx]);
+		_idx = (_idx + 1) & (_periods.length - 1);
+		return _array;
+	}
+
+	@Benchmark
+	public double average () {
+		return _array.average();
+	}
+
+	@Benchmark
+	public double variance () {
+		return _array.variance();
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+ * Builds what the receive path sees when HiJack sends a list of packets,
+ * in the form each stage takes: manchester half bits, the edges between
+ * them, and microphone samples.
+ *
+ * The framing is what SerialDecoder expects: a preamble of 1s, a 0 start
+ * bit, the packet bits and then a long low gap with an edge at the end.
+ * A HIGH half bit is true.
+ */
+
+final class ManchesterSignal {
+
+	private final static int NUM_PREAMBLE_BITS = 20;
+	private final static int NUM_POSTAMBLE_HALF_BITS = 8;
+
+	private ManchesterSignal () {
+	}
+
+	// Number of bits on the wire for a packet with payloadLen bytes of
+	// payload, not counting the preamble and postamble.
+	static int bitsPerPacket (int payloadLen) {
+		return (payloadLen + Packet.HEADER_LEN + Packet.CHECKSUM_LEN) * 8;
+	}
+
+	// count packets with random payloads of payloadLen bytes. Every other
+	// one asks for an ack.
+	static Packet[] packets (int count, int payloadLen, long seed) {
+		Random random = new Random(seed);
+		Packet[] packets = new Packet[count];
+
+		for (int i = 0; i < count; i++) {
+			Packet p = new Packet();
+			p.typeId = PacketType.GLOBAL;
+			p.length = payloadLen;
+			p.ackRequested = (i & 1) == 1;
+			p.setSequenceNumber(i & 0xFF);
+			for (int j = 0; j < payloadLen; j++) {
+				p.setData(j, random.nextInt(256));
+			}
+			packets[i] = p;
+		}
+		return packets;
+	}
+
+	static boolean[] halfBits (Packet[] packets) {
+		List<Boolean> halves = new ArrayList<Boolean>();
+
+		for (Packet p : packets) {
+			for (int i = 0; i < NUM_PREAMBLE_BITS; i++) {
+				addBit(halves, 1);
+			}
+			addBit(halves, 0);
+
+			p.compressToBuffer();
+			int numBits = p.getWireLength() * 8;
+			for (int i = 0; i < numBits; i++) {
+				addBit(halves, p.getBit());
+			}
+
+			for (int i = 0; i < NUM_POSTAMBLE_HALF_BITS; i++) {
+				halves.add(false);
+			}
+			halves.add(true);
+			halves.add(true);
+		}
+
+		boolean[] out = new boolean[halves.size()];
+		for (int i = 0; i < out.length; i++) {
+			out[i] = halves.get(i);
+		}
+		return out;
+	}
+
+	// The edges between the half bits, with fixed point periods like the
+	// demodulators produce. Edges are placed exactly, so the periods carry
+	// the fraction when a half bit is not a whole number of samples.
+	static EdgeBatch edges (boolean[] halfBits, double samplesPerHalfBit) {
+		EdgeBatch edges = new EdgeBatch(halfBits.length);
+		long lastTime = 0;
+
+		for (int i = 1; i < halfBits.length; i++) {
+			if (halfBits[i] == halfBits[i-1]) {
+				continue;
+			}
+
+			long time = Math.round(i * samplesPerHalfBit
+					* IncomingSink.PERIOD_ONE_SAMPLE);
+			edges.add((int) (time - lastTime),
+					halfBits[i] ? EdgeType.RISING : EdgeType.FALLING);
+			lastTime = time;
+		}
+		return edges;
+	}
+
+	// numSamples of a square wave at +-amplitude with uniform noise of up
+	// to +-noise added. The half bits repeat if they run out.
+	static short[] samples (boolean[] halfBits, double samplesPerHalfBit,
+	                        int numSamples, int amplitude, int noise,
+	                        long seed) {
+		Random random = new Random(seed);
+		short[] out = new short[numSamples];
+
+		for (int i = 0; i < numSamples; i++) {
+			int half = (int) (i / samplesPerHalfBit) % halfBits.length;
+			int level = halfBits[half] ? amplitude : -amplitude;
+			if (noise > 0) {
+				level += random.nextInt(2*noise + 1) - noise;
+			}
+			out[i] = (short) level;
+		}
+		return out;
+	}
+
+	private static void addBit (List<Boolean> halves, int bit) {
+		// A 1 is a falling edge in the middle of the bit, a 0 a rising edge
+		halves.add(bit == 1);
+		halves.add(bit != 1);
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Rendering one output buffer: the data waveform, the power tone and
+ * interleaving them. Reported per output frame (one sample on each
+ * channel).
+ *
+ * The source either sends nothing (the floating waveform between packets),
+ * an endless stream of precomputed packet half bits, or packets queued on
+ * a SerialDecoder and compiled into frames. The last one includes taking
+ * the frames off the queue and compiling the next packet each time one
+ * has been sent.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class OutputBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int IO_FREQUENCY = 613;
+
+	// A full output buffer is 100 half bits, 50 pairs of 35 frames each
+	// at these rates.
+	private final static int NUM_BITS = 100;
+	private final static int FRAMES = 1750;
+
+	@Param({"idle", "data", "packets"})
+	public String source;
+
+	private AudioReceiver _receiver;
+
+	@Setup
+	public void setup () {
+		_receiver = new AudioReceiver(
+				new LoopbackAudioBackend(SAMPLE_FREQUENCY, null));
+		_receiver.setSampleFrequency(SAMPLE_FREQUENCY);
+		_receiver.setTransmitFrequency(IO_FREQUENCY);
+		if (source.equals("packets")) {
+			_receiver.registerOutgoingSource(packetSource());
+		} else {
+			_receiver.registerOutgoingSource(halfBitSource(source.equals("idle")));
+		}
+		_receiver.initialize();
+
+		int frames = _receiver.updateOutputBuffer(NUM_BITS) / 2;
+		if (frames != FRAMES) {
+			throw new IllegalStateException(
+					"Expected " + FRAMES + " frames per buffer, got " + frames);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(FRAMES)
+	public int updateOutputBuffer () {
+		return _receiver.updateOutputBuffer(NUM_BITS);
+	}
+
+	// Hands out precomputed half bits, or FLOATING if idle
+	private static OutgoingSource halfBitSource (final boolean idle) {
+		final boolean[] halfBits = ManchesterSignal.halfBits(
+				ManchesterSignal.packets(16, 8, 1));
+
+		return new OutgoingSource() {
+			private int _idx = 0;
+
+			@Override
+			public void getNextManchesterBits (SignalLevel[] bits, int offset,
+			                                   int count) {
+				for (int i = offset; i < offset + count; i++) {
+					if (idle) {
+						bits[i] = SignalLevel.FLOATING;
+						continue;
+					}
+					bits[i] = halfBits[_idx] ? SignalLevel.HIGH : SignalLevel.LOW;
+					_idx = (_idx + 1) % halfBits.length;
+				}
+			}
+
+			@Override
+			public boolean isTransmitting () {
+				return !idle;
+			}
+		};
+	}
+
+	// The outgoing source of a SerialDecoder that queues the next packet
+	// every time one has been sent, so there is always one waiting
+	private static OutgoingSource packetSource () {
+		final Packet[] packets = ManchesterSignal.packets(16, 8, 1);
+		final SerialDecoder decoder = new SerialDecoder(
+				new LoopbackAudioBackend(SAMPLE_FREQUENCY, null));
+
+		decoder.registerPacketSentCallback(new PktSentCb() {
+			private int _idx = 1;
+
+			@Override
+			public void sentPacket (Packet p) {
+				decoder.sendPacket(packets[_idx]);
+				_idx = (_idx + 1) % packets.length;
+			}
+		});
+		decoder.sendPacket(packets[0]);
+
+		return decoder.getOutgoingSource();
+	}
+}
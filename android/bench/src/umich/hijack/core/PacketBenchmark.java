@@ -0,0 +1,128 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Packet encoding and decoding on their own.
+ *
+ * addBits and getBits are reported per bit and include what it takes to
+ * start a packet (reset, compressToBuffer) since every packet pays for
+ * that. compressToBuffer and processReceivedPacket are reported per
+ * packet.
+ *
+ * check picks the one byte additive checksum or the CRC-16. The CRC takes
+ * one more byte, so the CRC packets carry one byte less payload to keep
+ * the packet the same number of bits.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PacketBenchmark {
+
+	private final static int PAYLOAD_LEN = 8;
+	// ManchesterSignal.bitsPerPacket(PAYLOAD_LEN)
+	private final static int BITS = 88;
+
+	@Param({"sum", "crc"})
+	public String check;
+
+	// A packet to send, and the same packet received bit by bit
+	private Packet _tx;
+	private Packet _rx;
+	private int[] _bits;
+
+	@Setup
+	public void setup () {
+		if (ManchesterSignal.bitsPerPacket(PAYLOAD_LEN) != BITS) {
+			throw new IllegalStateException("BITS is out of date");
+		}
+
+		boolean crc = check.equals("crc");
+		int payloadLen = (crc) ? PAYLOAD_LEN - 1 : PAYLOAD_LEN;
+		_tx = ManchesterSignal.packets(1, payloadLen, 1)[0];
+		_tx.crc = crc;
+		_tx.compressToBuffer();
+		_bits = new int[BITS];
+		for (int i = 0; i < BITS; i++) {
+			_bits[i] = _tx.getBit();
+		}
+
+		_rx = new Packet();
+		addBits();
+		if (!_rx.processReceivedPacket()) {
+			throw new IllegalStateException("Packet did not decode");
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BITS)
+	public Packet addBits () {
+		Packet p = _rx;
+		int[] bits = _bits;
+		p.reset();
+		for (int i = 0; i < BITS; i++) {
+			p.addBit(bits[i]);
+		}
+		return p;
+	}
+
+	@Benchmark
+	public boolean processReceivedPacket () {
+		return _rx.processReceivedPacket();
+	}
+
+	@Benchmark
+	public Packet compressToBuffer () {
+		_tx.compressToBuffer();
+		return _tx;
+	}
+
+	// Reads every bit of the packet, the same way a frame is compiled
+	@Benchmark
+	@OperationsPerInvocation(BITS)
+	public int getBits () {
+		Packet p = _tx;
+		p.compressToBuffer();
+		int numBits = p.getWireLength() * 8;
+		int sum = 0;
+		for (int i = 0; i < numBits; i++) {
+			sum += p.getBit();
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * The SerialDecoder receive state machine (receiveIdle and receiveData)
+ * turning edges into packets, including checking each packet and passing
+ * it through PacketDispatch to a listener. Half of the packets ask for an
+ * ack, which the dispatcher generates and hands to a transmitter that just
+ * drops it. Reported per packet bit, so the preamble and postamble edges
+ * count as overhead of the bits they carry.
+ *
+ * listener says how the listener is called: directly on the decoding
+ * thread, or through a ListenerQueue on its own thread, in which case this
+ * measures handing packets off to it.
+ *
+ * Once warmed up this should not allocate at all.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReceiveBenchmark {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int IO_FREQUENCY = 613;
+	private final static double SAMPLES_PER_HALF_BIT =
+			(SAMPLE_FREQUENCY / IO_FREQUENCY / 2) / 2.0;
+
+	private final static int PACKETS = 16;
+	private final static int PAYLOAD_LEN = 8;
+	// ManchesterSignal.bitsPerPacket(PAYLOAD_LEN)
+	private final static int BITS_PER_PACKET = 88;
+
+	// A packet is dropped only if the listener thread falls this far behind
+	private final static int LISTENER_QUEUE_CAPACITY = 64;
+
+	@Param({"direct", "queued"})
+	public String listener;
+
+	private SerialDecoder _decoder;
+	private EdgeBatch _edges;
+	private PacketDispatch _dispatch;
+	private volatile int _received;
+
+	@Setup
+	public void setup () {
+		if (ManchesterSignal.bitsPerPacket(PAYLOAD_LEN) != BITS_PER_PACKET) {
+			throw new IllegalStateException("BITS_PER_PACKET is out of date");
+		}
+
+		_edges = ManchesterSignal.edges(
+				ManchesterSignal.halfBits(
+						ManchesterSignal.packets(PACKETS, PAYLOAD_LEN, 1)),
+				SAMPLES_PER_HALF_BIT);
+
+		_decoder = new SerialDecoder(
+				new LoopbackAudioBackend(SAMPLE_FREQUENCY, null));
+		PacketDispatch dispatch = new PacketDispatch();
+		if (listener.equals("queued")) {
+			dispatch.setListenerQueue(LISTENER_QUEUE_CAPACITY,
+			                          ListenerQueue.OverflowPolicy.DROP);
+		}
+		dispatch.registerPacketTransmitter(new PktTransmitter() {
+			@Override
+			public void sendPacket (Packet p) {
+				p.release();
+			}
+		});
+		dispatch.registerIncomingPacketListener(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				_received++;
+			}
+		}, PacketType.GLOBAL);
+		_decoder.registerPacketReceivedCallback(dispatch);
+		_dispatch = dispatch;
+
+		// Every packet has to make it through for the numbers to mean
+		// anything
+		decode();
+		long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+		while (_received < PACKETS && System.nanoTime() < giveUp) {
+			Thread.yield();
+		}
+		if (_received != PACKETS) {
+			throw new IllegalStateException(
+					"Decoded " + _received + " of " + PACKETS + " packets");
+		}
+	}
+
+	@TearDown
+	public void tearDown () {
+		_dispatch.shutdown();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(PACKETS * BITS_PER_PACKET)
+	public int decode () {
+		EdgeBatch edges = _edges;
+		int numEdges = edges.size();
+		for (int i = 0; i < numEdges; i++) {
+			_decoder.receiveEdge(edges.getPeriod(i), edges.getEdge(i));
+		}
+		return _received;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * What a Trace.log call costs the thread that makes it, with tracing off
+ * and with it on and a drainer emptying the ring in the background. When
+ * the drainer falls behind records are dropped, which is cheaper than
+ * writing them, so the enabled number is a lower bound.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TraceBenchmark {
+
+	@Param({"off", "debug"})
+	public String level;
+
+	private int _value = 0;
+
+	@Setup
+	public void setup () {
+		if (level.equals("off")) {
+			Trace.setLevel(null);
+		} else {
+			Trace.setLevel(Trace.Level.DEBUG);
+			Trace.startDrainer(new TraceSink() {
+				@Override
+				public void trace (Trace.Level level, long timeNs, String message) {
+				}
+			});
+		}
+	}
+
+	@TearDown
+	public void tearDown () {
+		Trace.stopDrainer();
+		Trace.setLevel(null);
+	}
+
+	@Benchmark
+	public int log () {
+		int value = _value++;
+		Trace.log(Trace.Level.DEBUG, "Received packet: header 0x%02x, seq %d",
+		          value & 0xFF, value >> 8);
+		return value;
+	}
+}
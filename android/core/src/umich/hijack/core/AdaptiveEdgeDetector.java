@@ -0,0 +1,269 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Finds the edges in the microphone signal from HiJack.
+ *
+ * An edge is where the signal crosses the middle of its range on the way
+ * from one side to the other. The signal has to get far enough past the
+ * middle before the crossing counts, which gives the detector hysteresis:
+ * noise and ringing around the middle do not add edges, and edges must
+ * alternate between rising and falling. The signal also has to stay past
+ * the threshold for a quarter of the shortest time between edges, so that
+ * a glitch of a sample or two is not taken for a pair of edges however
+ * large it is.
+ *
+ * This only looks at levels, not at how fast the signal changes, so it
+ * works the same whether the line and the ADC leave HiJack's square wave
+ * sharp or round it off over several samples.
+ *
+ * How far "far enough" is depends a lot on the phone. Instead of fixed
+ * numbers this tracks three properties of the incoming signal:
+ *
+ *  - The top and bottom envelopes: the recent highest and lowest sample.
+ *    They follow a new peak immediately and decay slowly towards zero when
+ *    the signal gets smaller. Their difference is the peak to peak swing
+ *    and their average is the middle of the range.
+ *  - The noise floor: the average sample to sample change while the signal
+ *    is away from the middle.
+ *
+ * The level threshold, how far past the middle the signal has to get, is an
+ * eighth of the swing, but never less than the noise floor. It is kept low
+ * because noise on top of the signal can pull it back under the threshold
+ * before it has settled; the time the signal has to stay past it is what
+ * keeps noise and glitches out.
+ *
+ * The envelopes and noise floor are kept in fixed point with ENV_SHIFT
+ * fractional bits so the slow averages do not lose precision.
+ *
+ * Edges are timed to a fraction of a sample. The edge is placed where the
+ * line between the two samples on either side of the last crossing of the
+ * middle crosses it.
+ */
+
+public class AdaptiveEdgeDetector implements Demodulator {
+
+	// Number of fractional bits in the envelopes and noise floor
+	private final static int ENV_SHIFT = 8;
+
+	// The envelopes decay by 1/2^ENVELOPE_DECAY_SHIFT each sample, which
+	// is a time constant of about 23 ms at 44.1 kHz.
+	private final static int ENVELOPE_DECAY_SHIFT = 10;
+
+	// The noise floor is an average over about 2^NOISE_SHIFT samples
+	private final static int NOISE_SHIFT = 8;
+
+	// The level threshold is kept at least this many times the noise floor
+	private final static int NOISE_MARGIN = 1;
+
+	// Below this peak to peak swing there is no HiJack signal, just noise,
+	// and we do not report any edges.
+	private final static int MIN_SWING = 2000;
+
+	// One sample in the fixed point edge timing
+	private final static int ONE = IncomingSink.PERIOD_ONE_SAMPLE;
+
+	// Stop counting the time since the last edge here so it cannot overflow
+	private final static int MAX_EDGE_DISTANCE = Integer.MAX_VALUE - ONE;
+
+	// How many samples in a row the signal has to be past the level
+	// threshold. Changed by setIoFrequency from another thread and picked
+	// up at the start of the next call to process.
+	private volatile int _settleSamples = 2;
+
+	// Samples in a row the signal has been past the level threshold on the
+	// side opposite to the last edge
+	private int _settled = 0;
+
+	// Previous microphone sample, and how far it was above the middle at
+	// the time, so we can look for crossings. The middle moves, so the
+	// previous sample is not compared with the new one.
+	private int _previousInSample = 0;
+	private int _previousAbove = 0;
+
+	// Keep track of the last edge found so we can look for the opposite next
+	private EdgeType _lastEdge = EdgeType.FALLING;
+
+	// Fixed point number of samples since the last edge, and since the
+	// signal last crossed the middle
+	private int _edgeDistance = 0;
+	private int _crossingDistance = 0;
+
+	// Signal estimates, in fixed point
+	private int _top = 0;
+	private int _bottom = 0;
+	private int _noiseFloor = 0;
+
+	// Copies of the operating point for other threads to look at. These are
+	// updated after each buffer.
+	private volatile int _reportedSwing = 0;
+	private volatile int _reportedMiddle = 0;
+	private volatile int _reportedNoiseFloor = 0;
+	private volatile int _reportedLevelThreshold = 0;
+
+	// Forget about previous samples so edge detection starts fresh. The
+	// signal estimates are kept since the phone has not changed.
+	@Override
+	public void reset () {
+		_previousInSample = 0;
+		_previousAbove = 0;
+		_lastEdge = EdgeType.FALLING;
+		_edgeDistance = 0;
+		_crossingDistance = 0;
+		_settled = 0;
+	}
+
+	@Override
+	public void setIoFrequency (int sampleFrequency, int ioFrequency) {
+		// The shortest time between edges is a half bit, which is a
+		// quarter of the IO period.
+		_settleSamples = Math.max(1, sampleFrequency / ioFrequency / 16);
+	}
+
+	@Override
+	public void process (short[] buf, int offset, int numSamples, EdgeBatch edges) {
+		int settleSamples = _settleSamples;
+		int prev = _previousInSample;
+		int prevAbove = _previousAbove;
+		int top = _top;
+		int bottom = _bottom;
+		int noiseFloor = _noiseFloor;
+		int swing = 0;
+		int middle = 0;
+		int levelThreshold = 0;
+
+		for (int i = offset; i < offset + numSamples; i++) {
+			int inSample = buf[i];
+
+			// Increment the distances since we are processing a new sample
+			if (_edgeDistance < MAX_EDGE_DISTANCE) {
+				_edgeDistance += ONE;
+			}
+			if (_crossingDistance < MAX_EDGE_DISTANCE) {
+				_crossingDistance += ONE;
+			}
+
+			// Follow peaks right away and decay slowly otherwise
+			int level = inSample << ENV_SHIFT;
+			if (level > top) {
+				top = level;
+			} else {
+				top -= top >> ENVELOPE_DECAY_SHIFT;
+			}
+			if (level < bottom) {
+				bottom = level;
+			} else {
+				bottom -= bottom >> ENVELOPE_DECAY_SHIFT;
+			}
+
+			swing = (top - bottom) >> ENV_SHIFT;
+			middle = (top + bottom) >> (ENV_SHIFT + 1);
+			levelThreshold = Math.max(swing >> 3,
+					(noiseFloor >> ENV_SHIFT) * NOISE_MARGIN);
+
+			int above = inSample - middle;
+
+			// Remember where the signal last crossed the middle, which is
+			// where the edge is once the signal gets far enough past it
+			if ((prevAbove < 0) != (above < 0)) {
+				_crossingDistance = ONE - crossingFraction(prevAbove, above);
+			}
+
+			if (Math.abs(above) > levelThreshold || swing < MIN_SWING) {
+				// Settled on one side, so the change is noise
+				int delta = Math.abs(inSample - prev) << ENV_SHIFT;
+				noiseFloor += (delta - noiseFloor) >> NOISE_SHIFT;
+			}
+
+			if (swing < MIN_SWING) {
+				_settled = 0;
+			} else if (_lastEdge == EdgeType.FALLING) {
+				_settled = (above > levelThreshold) ? _settled + 1 : 0;
+				if (_settled >= settleSamples) {
+					// This is a rising edge
+					_addEdge(edges, EdgeType.RISING);
+				}
+			} else {
+				_settled = (above < -levelThreshold) ? _settled + 1 : 0;
+				if (_settled >= settleSamples) {
+					// Falling edge
+					_addEdge(edges, EdgeType.FALLING);
+				}
+			}
+
+			prev = inSample;
+			prevAbove = above;
+		}
+
+		_previousInSample = prev;
+		_previousAbove = prevAbove;
+		_top = top;
+		_bottom = bottom;
+		_noiseFloor = noiseFloor;
+
+		_reportedSwing = swing;
+		_reportedMiddle = middle;
+		_reportedNoiseFloor = noiseFloor >> ENV_SHIFT;
+		_reportedLevelThreshold = levelThreshold;
+	}
+
+	// Report an edge at the last crossing of the middle
+	private void _addEdge (EdgeBatch edges, EdgeType type) {
+		int back = Math.min(_crossingDistance, _edgeDistance);
+		edges.add(_edgeDistance - back, type);
+		_edgeDistance = back;
+		_lastEdge = type;
+		_settled = 0;
+	}
+
+	// How far from a to b the straight line between them crosses zero, in
+	// fixed point samples. a and b must have different signs.
+	private static int crossingFraction (int a, int b) {
+		return (int) (((long) -a << IncomingSink.PERIOD_FRACTION_BITS) / (b - a));
+	}
+
+	///////////////////
+	// Operating point
+	///////////////////
+
+	// Recent peak to peak amplitude of the input signal
+	public int getSwing () {
+		return _reportedSwing;
+	}
+
+	// Middle of the recent range of the input signal
+	public int getMiddle () {
+		return _reportedMiddle;
+	}
+
+	// Average sample to sample change away from the middle
+	public int getNoiseFloor () {
+		return _reportedNoiseFloor;
+	}
+
+	// How far past the middle the signal has to get for an edge
+	public int getLevelThreshold () {
+		return _reportedLevelThreshold;
+	}
+
+	// True if the input is strong enough that edges are being looked for
+	public boolean hasSignal () {
+		return _reportedSwing >= MIN_SWING;
+	}
+}
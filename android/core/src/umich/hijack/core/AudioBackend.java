@@ -0,0 +1,65 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * The audio hardware as seen by AudioReceiver: somewhere to play the stereo
+ * output signal and somewhere to record the mono microphone signal from.
+ *
+ * AudioReceiver calls open and start from the thread that starts audio,
+ * write and getPlaybackPosition from its output thread, read from its
+ * input thread, and stop and close from the thread that stops audio.
+ */
+
+public interface AudioBackend {
+	// The sample rate this backend works best at. Used unless a sample rate
+	// is set on the AudioReceiver.
+	int getPreferredSampleFrequency();
+
+	// True if samples arrive on their own clock and are lost if they are
+	// not read in time, like a real microphone. Otherwise the input waits
+	// for processing to catch up instead of dropping samples.
+	boolean isRealTime();
+
+	// Get ready to play and record at sampleFrequency. Returns the fewest
+	// output frames that should be kept queued for output to play smoothly.
+	int open(int sampleFrequency);
+
+	void start();
+
+	// Stop playing and recording. Any read or write blocked on another
+	// thread returns right away.
+	void stop();
+
+	// Release everything taken by open.
+	void close();
+
+	// Queue numSamples interleaved stereo samples from buf starting at
+	// offset. The left channel is the data signal and the right channel is
+	// the power signal. Returns the number of samples queued.
+	int write(short[] buf, int offset, int numSamples);
+
+	// Number of output frames played so far. This is allowed to wrap
+	// around like an int.
+	int getPlaybackPosition();
+
+	// Read up to numSamples microphone samples into buf starting at offset.
+	// Blocks until some samples are available. Returns the number of
+	// samples read, or -1 if the input has ended for good.
+	int read(short[] buf, int offset, int numSamples);
+}
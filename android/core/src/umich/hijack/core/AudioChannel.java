@@ -0,0 +1,38 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * What happens to the audio signal between being played and being recorded.
+ * Used by LoopbackAudioBackend to turn the data signal the phone plays into
+ * the signal the phone records.
+ *
+ * A channel may change the number of samples (for example to model the
+ * input and output running on slightly different clocks), but never by
+ * more than a factor of two.
+ */
+
+public interface AudioChannel {
+	// Pass numSamples samples from in starting at offset through the
+	// channel and put the result at the start of out, which has room for at
+	// least 2 * numSamples samples. Returns the number of samples put in out.
+	int process(short[] in, int offset, int numSamples, short[] out);
+
+	// Go back to the state before any samples were processed.
+	void reset();
+}
@@ -18,25 +18,18 @@
 package umich.hijack.core;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.concurrent.ArrayBlockingQueue;
-
-import android.annotation.SuppressLint;
-import android.media.AudioFormat;
-import android.media.AudioManager;
-import android.media.AudioRecord;
-import android.media.AudioTrack;
-import android.media.MediaRecorder;
-import android.os.Environment;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
 
 /*
  * AudioInterface General Concepts
  *
  * Goal of this interface: Hook up to the audio subsystem in android
- * and process the incoming data and sends output data.
+ * and process the incoming data and sends output data. The audio
+ * subsystem is behind an AudioBackend, so the same processing can run
+ * on a WAV file or a loopback instead of a phone.
  *
  * Serial data in HiJack is manchester encoded (1 -> 10, 0 -> 01) and
  * frequency-shift key modulated. This means we have one frequency that
@@ -62,8 +55,18 @@ public class AudioReceiver {
 	// Constants
 	///////////////////////////////////////////////
 
-	// Most Android devices support 'CD-quality' sampling frequencies.
-	final private int SAMPLE_FREQUENCY = 44100;
+	// Sample rate used until initialize() picks one. Most Android devices
+	// support 'CD-quality' sampling frequencies.
+	private final static int DEFAULT_SAMPLE_FREQUENCY = 44100;
+
+	// The sample rate used for both audio input and output. Picked in
+	// initialize() as the rate the audio backend prefers, which on a
+	// device is what it mixes at natively, so audio does not go through
+	// the platform resampler.
+	private volatile int _sampleFrequency = DEFAULT_SAMPLE_FREQUENCY;
+
+	// Set to force a sample rate instead of picking one. 0 means pick.
+	private int _requestedSampleFrequency = 0;
 
 	// HiJack is powered by default at 10kHz
 	// This can be adjusted by higher layers if the hijack board is not
@@ -78,10 +81,18 @@ public class AudioReceiver {
 	// audio device and interfere with the other signals.
 	private final int _powerSignalDivisor = 3;
 
-	// This sets the number of samples that are requested from the microphone
+	// This sets the most samples that are requested from the microphone
 	// at once.
 	private final static int BUF_SAMPLE_LEN = 8000;
 
+	// Log2 of the number of microphone samples that can be waiting to be
+	// processed. 2^15 samples is about 0.75 seconds of audio.
+	private final static int INPUT_RING_BITS = 15;
+
+	// How long the processing thread sleeps when there are no new samples.
+	// The input thread wakes it up early when samples arrive.
+	private final static long INPUT_POLL_NS = 5000000;
+
 	///////////////////////////////////////////////
 	// Main interfaces
 	///////////////////////////////////////////////
@@ -92,9 +103,17 @@ public class AudioReceiver {
 	private OutgoingSource _source = null;
 	private IncomingSink _sink = null;
 
-	// Android classes for audio input and output
-	AudioTrack _audioTrack;
-	AudioRecord _audioRecord;
+	// Set if the sink can take a whole batch of edges at once
+	private BatchIncomingSink _batchSink = null;
+
+	// Where audio is played and recorded. Normally the headset jack of the
+	// phone.
+	private AudioBackend _backend;
+
+	// Copy of _backend.isRealTime() for the audio threads. If the input is
+	// not real time it waits for the processing thread instead of
+	// dropping samples when the ring is full.
+	private boolean _realTimeInput = true;
 
 	// These threads handle recording and playing the audio signals
 	Thread _outputThread;
@@ -105,39 +124,71 @@ public class AudioReceiver {
 	// and processes them.
 	Thread _audioProcessThread;
 
-	// This queue transports data between the _inputThread and the
-	// _audioProcessThread
-	private final ArrayBlockingQueue<audioBuffer> audioProcessQueue =
-			new ArrayBlockingQueue<audioBuffer>(128);
+	// This ring transports samples between the _inputThread and the
+	// _audioProcessThread. The _inputThread reads from the microphone
+	// directly into it.
+	private final SampleRing _inputRing = new SampleRing(INPUT_RING_BITS);
 
-	// This object is returned from the _inputThread. It contains a buffer
-	// of samples from the microphone and the number of samples in that buffer.
-	class audioBuffer {
-		public int numSamples;
-		public short[] buffer;
-	}
+	// If the ring is full the _inputThread still has to read from the
+	// microphone. Those samples are read into here and thrown away.
+	private final short[] _overrunBuffer = new short[BUF_SAMPLE_LEN];
 
 	///////////////////////////////////////////////
 	// Output state
 	///////////////////////////////////////////////
 
-	// For performance reasons we batch update the audio output buffer with this
-	// many manchester bits. This allows us to load the next buffer while
-	// the current audio is playing.
+	// The largest number of manchester half bits rendered into the audio
+	// output buffer at once. The output scheduler picks how many are
+	// actually rendered each time, up to this many.
 	final private int _bitsInBuffer = 100;
 
-	// These buffers hold samples of the waveforms that are played on the
-	// output audio channel. They are precomputed for performance.
-	private short[] _outHighHighBuffer;
-	private short[] _outLowLowBuffer;
-	private short[] _outHighLowBuffer;
-	private short[] _outLowHighBuffer;
-	private short[] _outFloatingBuffer;
-
-	// This is the x axis value for the power signal being played on the audio
-	// channel. This is global state because it needs to be kept between calls
-	// to fill the output buffer so we maintain a smooth signal.
-	private int _powerFrequencyPos = 0;
+	// How much audio we try to keep queued in the audio track by default.
+	private final static int DEFAULT_OUTPUT_LATENCY_MS = 50;
+
+	// Sizes each output buffer and paces writes to the audio track so that
+	// only the latency budget worth of audio is queued ahead of a new packet.
+	private final OutputScheduler _scheduler =
+			new OutputScheduler(DEFAULT_SAMPLE_FREQUENCY, _bitsInBuffer,
+			                    DEFAULT_OUTPUT_LATENCY_MS);
+
+	// The manchester half bits for the next output buffer. Kept around so we
+	// do not allocate a new array for every buffer. The extra slot holds the
+	// first half bit of the next buffer, which is needed to find the
+	// postamble. It is kept in _nextOutSignal for the next buffer.
+	private final SignalLevel[] _outSignal = new SignalLevel[_bitsInBuffer+1];
+	private SignalLevel _nextOutSignal = null;
+
+	// Our position in the floating waveform. Kept between buffers so the
+	// idle signal stays continuous no matter how the output is chunked.
+	private int _floatingIdx = 0;
+
+	// Precomputed waveforms that are played on the output audio channel.
+	// Banks are immutable and cached per IO frequency so that changing the
+	// frequency does not rebuild the waveforms every time.
+	private final WaveformBankCache _waveformBanks =
+			new WaveformBankCache(8, _bitsInBuffer);
+
+	// The bank currently used by the output thread. Only the output thread
+	// reads or writes this.
+	private WaveformBank _bank;
+
+	// A bank waiting to be switched to. setTransmitFrequency puts the new
+	// bank here and the output thread swaps it in at the start of the next
+	// output buffer, which is always on a manchester bit boundary.
+	private final AtomicReference<WaveformBank> _pendingBank =
+			new AtomicReference<WaveformBank>();
+
+	// Generates the power signal being played on the right audio channel.
+	// It keeps its phase between calls to fill the output buffer so we
+	// maintain a smooth signal. Replaced if the sample rate changes.
+	private volatile PowerToneGenerator _powerTone =
+			new PowerToneGenerator(DEFAULT_SAMPLE_FREQUENCY,
+			                       Short.MAX_VALUE/_powerSignalDivisor);
+
+	// Mono buffers for the data and power channels. These are rendered
+	// separately and then interleaved into _stereoBuffer.
+	private short[] _dataBuffer;
+	private short[] _powerBuffer;
 
 	// This is the buffer used to hold samples for playing on the audio
 	// hardware.
@@ -152,61 +203,46 @@ public class AudioReceiver {
 	// Input state
 	///////////////////////////////////////////////
 
-	// Store previous microphone samples so we can look for edges.
-	private int _previousInSample = 0;
-	private int _secondPreviousInSample = 0;
+	// Finds edges in the microphone samples. By default this is the
+	// matched filter, which holds up best in noise. The adaptive edge
+	// detector is cheaper and does as well on a clean line.
+	private Demodulator _demodulator = new MatchedFilterDemodulator();
 
-	// Keep track of the last edge found so we can look for the opposite next
-	private EdgeType _inSignalLastEdge = EdgeType.FALLING;
+	// Most edges collected from the input before passing them up at once.
+	// There can be at most one edge per sample, so input buffers are
+	// processed in pieces of this many samples.
+	private final static int EDGE_BATCH_LEN = 1024;
 
-	// Keeps track of the number of samples between the last edge and the
-	// current sample. Used to keep track of the edge spacing for upper layers
-	// to process.
-	private int _edgeDistance = 0;
+	// Edges found in the current input buffer. These are passed to the sink
+	// together once the buffer has been processed.
+	private final EdgeBatch _edges = new EdgeBatch(EDGE_BATCH_LEN);
 
 	///////////////////////////////////////////////
-	// Debug Stuff
+	// Capture
 	///////////////////////////////////////////////
 
-	// Set this to true to disable the main audio processing and instead
-	// write all samples to an output file.
-	private final boolean _debug = false;
-	private FileWriter _debugOut;
-
-	@SuppressLint("SimpleDateFormat")
-	private String getDebugFileName() {
-		File root = Environment.getExternalStorageDirectory();
-
-		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss");
-		String currentDateandTime = sdf.format(new Date());
+	// While this is set every buffer read from the microphone is also
+	// written to it, including samples that are dropped on overrun.
+	// Decoding carries on as normal.
+	private volatile CaptureWriter _capture = null;
 
-		File debugFile = new File(root, "debug_" +currentDateandTime+ ".data");
-
-		return debugFile.getAbsolutePath();
-	}
-
-	private void startDebug() {
-		String fileName = getDebugFileName();
-		try {
-			_debugOut = new FileWriter(fileName);
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-	}
-
-	private void stopDebug() {
-		try {
-			_debugOut.close();
-		} catch (IOException e) {
-			e.printStackTrace();
+	// Called on the input thread with each buffer read from the microphone.
+	private void captureSamples(short[] buf, int offset, int numSamples,
+	                            boolean dropped) {
+		CaptureWriter capture = _capture;
+		if (capture == null) {
+			return;
 		}
-	}
 
-	private void writeDebugString(String str) {
 		try {
-			_debugOut.write(str + "\n");
+			capture.write(buf, offset, numSamples, System.nanoTime(), dropped);
 		} catch (IOException e) {
-			e.printStackTrace();
+			// Probably out of space. Give up on the capture but keep
+			// decoding.
+			Trace.log(Trace.Level.ERROR,
+			          "Capture write failed after %d bytes, stopping capture",
+			          (int) capture.getLength());
+			stopCapture();
 		}
 	}
 
@@ -214,166 +250,153 @@ public class AudioReceiver {
 	// Processors
 	///////////////////////////////////////////////
 
-	// This fills the _stereobuffer with audio values to play to the HiJack.
-	// It reads from uppers layers to get which bits to send.
-	private void updateOutputBuffer() {
-
-		SignalLevel outSignal[] = new SignalLevel[_bitsInBuffer];
-
-		// Read in _bitsInBuffer number of samples from the upper layer
-		for (int i = 0; i < _bitsInBuffer; i++) {
-			outSignal[i] = _source.getNextManchesterBit();
+	// Switch to a new set of waveforms if the IO frequency changed. Only
+	// called between output buffers.
+	private void swapPendingBank() {
+		WaveformBank newBank = _pendingBank.getAndSet(null);
+		if (newBank != null) {
+			_bank = newBank;
+			_floatingIdx = 0;
+			allocateOutputBuffers();
 		}
+	}
 
-		synchronized(this) {
-			double powerMutiplier = Math.PI * _powerFrequency / SAMPLE_FREQUENCY * 2;
-
-			// Index of the current manchester bit to put on the output buffer
-			int currentBit = -2;
-
-			// Holders for the current bits being looked at to determine what
-			// output signal to put in the buffer
-			SignalLevel thisBit = SignalLevel.FLOATING;
-			SignalLevel nextBit = SignalLevel.FLOATING;
-			SignalLevel thirdBit = SignalLevel.FLOATING;
-
-			// Our current positions in the buffers we are copying from
-			int floatingBitIdx = 0;
-			int outBitIdx = 0;
-
-			for (int i = 0; i < _stereoBuffer.length/2; i++) {
-
-				// Each time we have copied the contents of the samples buffer
-				// into the output buffer fetch the next manchester bit
-				if (i % _outHighHighBuffer.length == 0) {
-					currentBit += 2;
-					outBitIdx = 0;
+	// Wait until the audio track has room for the next output buffer within
+	// the latency budget. Returns how many half bits to render. This is
+	// re-evaluated while waiting so a packet queued in the meantime gets
+	// a small buffer and goes out as soon as possible.
+	private int waitForOutputRoom() {
+		while (true) {
+			int numBits = _scheduler.chunkBits(_source.isTransmitting(),
+			                                   _bank.segmentLength);
+			int numFrames = (numBits/2) * _bank.segmentLength;
+
+			if (_stop ||
+			    _scheduler.hasRoom(numFrames, _backend.getPlaybackPosition())) {
+				return numBits;
+			}
 
-					thisBit = outSignal[currentBit];
-					nextBit = outSignal[currentBit+1];
-					if (currentBit < _bitsInBuffer-2) {
-						thirdBit = outSignal[currentBit+2];
-					}
-				}
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) { }
+		}
+	}
 
-				// The buffer for the data when no output packet is being driven
-				// on the audio lines. This buffer is longer than the per
-				// bit buffers so we have a different index and a different
-				// reset point.
-				if (i % ((_outFloatingBuffer.length)) == 0) {
-					floatingBitIdx = 0;
-				}
+	// This fills the _stereobuffer with audio values to play to the HiJack.
+	// It reads numBits half bits from uppers layers to get which bits to
+	// send. Returns the number of samples in _stereoBuffer to play.
+	int updateOutputBuffer(int numBits) {
+
+		// The first half bit was already read as part of the last buffer
+		int first = 0;
+		if (_nextOutSignal != null) {
+			_outSignal[0] = _nextOutSignal;
+			first = 1;
+		}
 
-				// Copy from the correct buffer given what data we are sending
-				if (thisBit == SignalLevel.FLOATING) {
-					// In between data packets just send a sin wave
-					_stereoBuffer[i*2] = _outFloatingBuffer[floatingBitIdx++];
+		// Read in numBits number of samples from the upper layer, plus one
+		// to look ahead at.
+		_source.getNextManchesterBits(_outSignal, first, numBits + 1 - first);
+		_nextOutSignal = _outSignal[numBits];
 
-				} else if (thisBit == SignalLevel.LOW &&
-						   nextBit == SignalLevel.LOW &&
-						   thirdBit == SignalLevel.LOW) {
-					// This is the postamble where we need to send consecutive
-					// low bits.
-					_stereoBuffer[i*2] = Short.MAX_VALUE/2;
+		int numFrames = renderSymbols(_bank, _outSignal, numBits, _dataBuffer);
 
-				} else if (thisBit == SignalLevel.HIGH &&
-						   nextBit == SignalLevel.HIGH) {
-					_stereoBuffer[i*2] = _outHighHighBuffer[outBitIdx++];
+		// Generate the power signal. The tone generator keeps a running
+		// phase across calls to this function to ensure the wave is
+		// continuous.
+		_powerTone.fill(_powerBuffer, 0, 1, numFrames);
 
-				} else if (thisBit == SignalLevel.LOW &&
-						   nextBit == SignalLevel.LOW) {
-					_stereoBuffer[i*2] = _outLowLowBuffer[outBitIdx++];
+		interleave(_dataBuffer, _powerBuffer, _stereoBuffer, numFrames);
 
-				} else if (thisBit == SignalLevel.HIGH &&
-						   nextBit == SignalLevel.LOW) {
-					_stereoBuffer[i*2] = _outHighLowBuffer[outBitIdx++];
+		return numFrames * 2;
+	}
 
-				} else if (thisBit == SignalLevel.LOW &&
-						   nextBit == SignalLevel.HIGH) {
-					_stereoBuffer[i*2] = _outLowHighBuffer[outBitIdx++];
+	// Converts pairs of manchester half bits into the data waveform. Each pair
+	// maps to one precomputed segment, so we only decide which waveform to use
+	// once per pair and then copy the whole segment.
+	// Returns the number of samples written to out.
+	private int renderSymbols(WaveformBank bank, SignalLevel[] bits,
+	                          int numBits, short[] out) {
+		int segmentLen = bank.segmentLength;
+		short[] floating = bank.getFloating();
+
+		// Our current position in the buffer we are copying to
+		int outIdx = 0;
+
+		for (int currentBit = 0; currentBit < numBits; currentBit += 2) {
+			SignalLevel thisBit = bits[currentBit];
+			SignalLevel nextBit = bits[currentBit+1];
+			// The first bit of the next pair. Used to detect the postamble.
+			SignalLevel thirdBit = bits[currentBit+2];
+
+			short[] segment;
+			if (thisBit == SignalLevel.LOW &&
+			    nextBit == SignalLevel.LOW &&
+			    thirdBit == SignalLevel.LOW) {
+				// This is the postamble where we need to send consecutive
+				// low bits.
+				segment = bank.getPostamble();
+			} else {
+				segment = bank.getSegment(thisBit, nextBit);
+			}
 
+			if (segment == null) {
+				// In between data packets just send a sin wave. This buffer
+				// is longer than the per bit buffers so we keep walking
+				// through it and wrap around at the end.
+				if (_floatingIdx + segmentLen > floating.length) {
+					_floatingIdx = 0;
 				}
-
-				// Toss the power signal on there. We keep a running signal
-				// across calls to this function with the _powerFrequencyPos
-				// var to ensure the wave is continuous.
-				_stereoBuffer[i*2+1] =  (short) boundToShort(
-						Math.sin(powerMutiplier * _powerFrequencyPos++) *
-						(Short.MAX_VALUE/_powerSignalDivisor)
-					);
+				System.arraycopy(floating, _floatingIdx,
+				                 out, outIdx, segmentLen);
+				_floatingIdx += segmentLen;
+			} else {
+				System.arraycopy(segment, 0, out, outIdx, segmentLen);
 			}
+			outIdx += segmentLen;
+		}
+
+		return outIdx;
+	}
 
-			// To prevent eventual overflows.
-			_powerFrequencyPos = _powerFrequencyPos %
-			                      (SAMPLE_FREQUENCY * _powerFrequency);
+	// Combine the data (left) and power (right) channels into the interleaved
+	// buffer that the audio hardware expects.
+	private void interleave(short[] left, short[] right, short[] stereo,
+	                        int numFrames) {
+		for (int i = 0; i < numFrames; i++) {
+			stereo[i*2] = left[i];
+			stereo[i*2+1] = right[i];
 		}
 	}
 
 	// This function is called on an incoming buffers of data from the
 	// microphone. It processes it looking for edges.
-	private void processInputBuffer (audioBuffer abuf) {
-		for (int i = 0; i < abuf.numSamples; i++) {
-			int inSample = abuf.buffer[i];
+	void processInputBuffer (short[] buf, int offset, int numSamples) {
+		// Work through the buffer in pieces no longer than the edge batch
+		// so the batch can never overflow.
+		int end = offset + numSamples;
+		for (int start = offset; start < end; start += EDGE_BATCH_LEN) {
+			int len = Math.min(EDGE_BATCH_LEN, end - start);
+			_demodulator.process(buf, start, len, _edges);
+			deliverEdges();
+		}
+	}
 
-			if (_debug) {
-				writeDebugString("" + inSample);
-				continue;
-			}
+	// Pass the edges found so far to the upper layer.
+	private void deliverEdges () {
+		if (_edges.isEmpty()) {
+			return;
+		}
 
-			// Increment the edge distance from the last edge since we are
-			// processing a new sample.
-			_edgeDistance++;
-
-			// settings that work on shitty phones
-			// Try to determine if this audio sample represents an edge in the
-			// manchester encoding.
-			// Check if the derivative from this point to the last or this point
-			// to the second last spikes high enough to register.
-			/*if (Math.abs(inSample - previousInSample) > 15000 ||
-				(Math.abs(inSample - secondPreviousInSample)/1) > 15000) {
-
-				if (inSample > previousInSample &&
-					inSignalLastEdge == EdgeType.FALLING &&
-					inSample > 2000) {
-					// This is a rising edge
-					_sink.handleNextBit(_edgeDistance, EdgeType.RISING);
-					_edgeDistance = 0;
-					inSignalLastEdge = EdgeType.RISING;
-				} else if (inSample < previousInSample &&
-					inSignalLastEdge == EdgeType.RISING &&
-					inSample < -2000) {
-					// Falling edge
-					_sink.handleNextBit(_edgeDistance, EdgeType.FALLING);
-					_edgeDistance = 0;
-					inSignalLastEdge = EdgeType.FALLING;
-				}
-			}*/
-
-			// settings that work better on the htc one BEATS BY DR DRE
-			if (Math.abs(inSample - _previousInSample) > 30000 ||
-			    (Math.abs(inSample - _secondPreviousInSample)/1) > 30000) {
-
-				if (inSample > _previousInSample &&
-					_inSignalLastEdge == EdgeType.FALLING &&
-					inSample > 20000) {
-					// This is a rising edge
-					_sink.handleNextBit(_edgeDistance, EdgeType.RISING);
-					_edgeDistance = 0;
-					_inSignalLastEdge = EdgeType.RISING;
-				} else if (inSample < _previousInSample &&
-					_inSignalLastEdge == EdgeType.RISING &&
-					inSample < -20000) {
-					// Falling edge
-					_sink.handleNextBit(_edgeDistance, EdgeType.FALLING);
-					_edgeDistance = 0;
-					_inSignalLastEdge = EdgeType.FALLING;
-				}
+		if (_batchSink != null) {
+			_batchSink.handleEdges(_edges);
+		} else {
+			for (int i = 0; i < _edges.size(); i++) {
+				_sink.handleNextBit(_edges.getPeriod(i), _edges.getEdge(i));
 			}
-
-			// Shift the samples for the next iteration
-			_secondPreviousInSample = _previousInSample;
-			_previousInSample = inSample;
 		}
+
+		_edges.clear();
 	}
 
 	///////////////////////////////////////////////
@@ -388,48 +411,93 @@ public class AudioReceiver {
 			Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
 
 			while (!_stop) {
-				updateOutputBuffer();
-				_audioTrack.write(_stereoBuffer, 0, _stereoBuffer.length);
+				swapPendingBank();
+				int numBits = waitForOutputRoom();
+				int numSamples = updateOutputBuffer(numBits);
+				_backend.write(_stereoBuffer, 0, numSamples);
+				_scheduler.wroteFrames(numSamples/2);
 			}
 		}
 	};
 
 	// This thread constantly reads from the audio interface getting microphone
-	// sample buffers.
+	// samples and puts them in the input ring.
 	Runnable _inputProcessor = new Runnable() {
 		@Override
 		public void run() {
 			Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
 
-			// Create a bunch of buffers to put audio data into
-			short[][] buffers = new short[256][BUF_SAMPLE_LEN];
-			// Keep track of the current buffer
-			int       bufIdx  = 0;
-
 			while (!_stop) {
-				short[] buffer = buffers[bufIdx++ % buffers.length];
-				int shortsRead = _audioRecord.read(buffer, 0, buffer.length);
-				try {
-					audioBuffer ab = new audioBuffer();
-					ab.numSamples = shortsRead;
-					ab.buffer = buffer;
-					audioProcessQueue.put(ab);
-				} catch (InterruptedException intexp) { }
+				int len = Math.min(_inputRing.writableContiguous(), BUF_SAMPLE_LEN);
+
+				if (len == 0 && !_realTimeInput) {
+					// Wait for the processing thread to make room
+					LockSupport.parkNanos(INPUT_POLL_NS);
+					continue;
+				}
+
+				if (len == 0) {
+					// The processing thread has fallen behind. We have to
+					// keep reading from the microphone, so these samples
+					// are lost.
+					int shortsRead = _backend.read(_overrunBuffer, 0,
+					                               _overrunBuffer.length);
+					if (shortsRead < 0) {
+						break;
+					}
+					if (shortsRead > 0) {
+						captureSamples(_overrunBuffer, 0, shortsRead, true);
+						_inputRing.markOverrun(shortsRead);
+						Trace.log(Trace.Level.WARN,
+						          "Input overrun, dropped %d samples", shortsRead);
+					}
+					continue;
+				}
+
+				int shortsRead = _backend.read(_inputRing.array(),
+				                               _inputRing.writeOffset(), len);
+				if (shortsRead < 0) {
+					// The input has ended. Whatever is already in the
+					// ring still gets processed.
+					break;
+				}
+				if (shortsRead > 0) {
+					captureSamples(_inputRing.array(), _inputRing.writeOffset(),
+					               shortsRead, false);
+					_inputRing.commitWrite(shortsRead);
+					LockSupport.unpark(_audioProcessThread);
+				}
 			}
 		}
 	};
 
-	// This thread processes the data from the microphone. It takes the buffers
-	// from the queue and calls the edge detection algorithm.
+	// This thread processes the data from the microphone. It takes samples
+	// from the input ring and calls the edge detection algorithm.
 	Runnable _audioProcessor = new Runnable() {
 		@Override
 		public void run() {
 
 			while (!_stop) {
-				try {
-					audioBuffer ab = audioProcessQueue.take();
-					processInputBuffer(ab);
-				} catch (InterruptedException intexp) { }
+				if (_inputRing.atGap()) {
+					// Samples were dropped here. Do not look for edges
+					// across the missing samples.
+					resetInputState();
+					_sink.handleDiscontinuity();
+					_inputRing.clearGap();
+				}
+
+				int len = _inputRing.readableContiguous();
+				if (len == 0) {
+					LockSupport.parkNanos(INPUT_POLL_NS);
+					continue;
+				}
+
+				processInputBuffer(_inputRing.array(), _inputRing.readOffset(), len);
+				_inputRing.commitRead(len);
+
+				if (!_realTimeInput) {
+					LockSupport.unpark(_inputThread);
+				}
 			}
 		}
 	};
@@ -437,32 +505,92 @@ public class AudioReceiver {
 	///////////////////////////////////////////////
 	// Public Interface
 	///////////////////////////////////////////////
+
+	public AudioReceiver(AudioBackend backend) {
+		_backend = backend;
+	}
+
+	// Play and record somewhere other than the headset jack. Takes effect
+	// the next time audio is started.
+	public void setAudioBackend(AudioBackend backend) {
+		if (_isRunning) {
+			throw new UnsupportedOperationException(
+					"AudioIO must be stopped to set a new audio backend.");
+		}
+		_backend = backend;
+		_isInitialized = false;
+	}
+
+	public AudioBackend getAudioBackend() {
+		return _backend;
+	}
 	public int getPowerFrequency() {
 		return _powerFrequency;
 	}
 
 	public void setPowerFrequency (int powerFrequency) {
 		_powerFrequency = powerFrequency;
+		_powerTone.setFrequency(powerFrequency);
 	}
 
 	public void setTransmitFrequency (int transmitFrequency) {
-		synchronized (this) {
-			_ioBaseFrequency = transmitFrequency;
-			initialize();
-		}
+		_ioBaseFrequency = transmitFrequency;
+
+		// Build the waveforms on this thread and let the output thread
+		// switch over to them between buffers.
+		int sampleFrequency = _sampleFrequency;
+		_pendingBank.set(_waveformBanks.get(sampleFrequency, transmitFrequency));
+
+		_demodulator.setIoFrequency(sampleFrequency, transmitFrequency);
 	}
 
 	public int getTransmitFrequency () {
 		return _ioBaseFrequency;
 	}
 
+	// Set how many milliseconds of audio to keep queued for output. Lower
+	// values get packets out sooner but leave less slack for scheduling
+	// hiccups on the output thread.
+	public void setOutputLatency (int latencyMs) {
+		_scheduler.setLatencyBudget(latencyMs);
+	}
+
+	public int getOutputLatency () {
+		return _scheduler.getLatencyBudget();
+	}
+
+	// Number of times microphone samples had to be dropped because the
+	// processing thread fell behind.
+	public int getInputOverruns () {
+		return _inputRing.getOverruns();
+	}
+
+	public long getDroppedInputSamples () {
+		return _inputRing.getDroppedSamples();
+	}
+
+	// The demodulator, for checking the signal level and thresholds it
+	// is currently using.
+	public Demodulator getDemodulator () {
+		return _demodulator;
+	}
+
 	public void registerOutgoingSource (OutgoingSource source) {
 		if (_isRunning) {
 			throw new UnsupportedOperationException(
 					"AudioIO must be stopped to set a new source.");
 		}
 		_source = source;
-		_source.getNextManchesterBit();
+	}
+
+	// Choose how edges are found in the microphone signal.
+	public void setDemodulator (Demodulator demodulator) {
+		if (_isRunning) {
+			throw new UnsupportedOperationException(
+					"AudioIO must be stopped to set a new demodulator.");
+		}
+		_demodulator = demodulator;
+		_demodulator.setIoFrequency(_sampleFrequency, _ioBaseFrequency);
 	}
 
 	public void registerIncomingSink (IncomingSink sink) {
@@ -471,52 +599,128 @@ public class AudioReceiver {
 					"AudioIO must be stopped to set a new sink.");
 		}
 		_sink = sink;
+		_batchSink = (sink instanceof BatchIncomingSink)
+				? (BatchIncomingSink) sink : null;
 	}
 
-	public void initialize() {
-		// Create buffers to hold what a high and low frequency waveform
-		// looks like
-		int bufferSize = getBufferSize();
+	// Use a specific sample rate for input and output instead of the one
+	// that best matches the device. Pass 0 to go back to picking the rate
+	// automatically. Takes effect the next time audio is started.
+	public void setSampleFrequency (int sampleFrequency) {
+		if (_isRunning) {
+			throw new UnsupportedOperationException(
+					"AudioIO must be stopped to set the sample rate.");
+		}
+		_requestedSampleFrequency = sampleFrequency;
+		_isInitialized = false;
+	}
 
-		// The stereo buffer should be large enough to ensure
-		// that scheduling doesn't mess it up.
-		_stereoBuffer = new short[bufferSize * _bitsInBuffer];
-
-		// Allocate all of the data holding buffers
-		_outHighHighBuffer = new short[bufferSize];
-		_outHighLowBuffer = new short[bufferSize];
-		_outLowHighBuffer = new short[bufferSize];
-		_outLowLowBuffer = new short[bufferSize];
-		_outFloatingBuffer = new short[bufferSize * _bitsInBuffer];
-
-		for (int i = 0; i < bufferSize; i++) {
-			_outHighHighBuffer[i] = (short) (
-				boundToShort(Math.sin((double)(i + bufferSize) * (double)2 *
-				Math.PI * _ioBaseFrequency / SAMPLE_FREQUENCY) * Short.MAX_VALUE)
-			);
-
-			_outHighLowBuffer[i] = (short) (
-				boundToShort(Math.sin((double)(i + bufferSize/2) * (double)4 *
-				Math.PI * _ioBaseFrequency / SAMPLE_FREQUENCY) * Short.MAX_VALUE)
-			);
-
-			_outLowLowBuffer[i] = (short) (
-				boundToShort(Math.sin((double)i * (double)2 * Math.PI *
-				_ioBaseFrequency / SAMPLE_FREQUENCY) * Short.MAX_VALUE)
-			);
-
-			_outLowHighBuffer[i] = (short) (
-				boundToShort(Math.sin((double)i * (double)4 * Math.PI *
-				_ioBaseFrequency / SAMPLE_FREQUENCY) * Short.MAX_VALUE)
-			);
+	public int getSampleFrequency () {
+		return _sampleFrequency;
+	}
+
+	public boolean isRunning () {
+		return _isRunning;
+	}
+
+	// Start recording the raw microphone signal to file. This can be done
+	// while audio is running and does not interrupt decoding. Any capture
+	// already in progress is finished first.
+	public void startCapture(File file) throws IOException {
+		// The capture records the sample rate, so it has to be picked now
+		if (!_isInitialized) {
+			initialize();
+		}
+
+		stopCapture();
+		_capture = new CaptureWriter(file, _sampleFrequency);
+	}
+
+	// Finish the current capture, if there is one.
+	public void stopCapture() {
+		CaptureWriter capture = _capture;
+		_capture = null;
+
+		if (capture != null) {
+			try {
+				capture.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	public boolean isCapturing() {
+		return _capture != null;
+	}
+
+	// Decode a capture as fast as possible on the calling thread. The
+	// samples go through the same edge detection and on to the sink as
+	// live microphone samples do. Samples that were dropped when the capture
+	// was recorded are skipped here too, so decoding sees exactly what it
+	// saw live. Audio must be stopped.
+	public void replayCapture(CaptureReader capture) throws IOException {
+		if (_isRunning) {
+			throw new UnsupportedOperationException(
+					"AudioIO must be stopped to replay a capture.");
 		}
 
-		for (int i = 0; i < bufferSize * _bitsInBuffer; i++) {
-			_outFloatingBuffer[i] = (short) (
-				boundToShort(Math.sin((i) * Math.PI *
-				_ioBaseFrequency / SAMPLE_FREQUENCY / 12.1) * Short.MAX_VALUE)
-			);
+		_demodulator.setIoFrequency(capture.getSampleFrequency(), _ioBaseFrequency);
+		resetInputState();
+
+		short[] buf = new short[BUF_SAMPLE_LEN];
+		boolean gap = false;
+
+		try {
+			int numSamples;
+			while ((numSamples = capture.read(buf, 0, buf.length)) >= 0) {
+				if (capture.isDropped()) {
+					gap = true;
+					continue;
+				}
+
+				if (gap) {
+					resetInputState();
+					_sink.handleDiscontinuity();
+					gap = false;
+				}
+
+				processInputBuffer(buf, 0, numSamples);
+			}
+		} finally {
+			_demodulator.setIoFrequency(_sampleFrequency, _ioBaseFrequency);
 		}
+	}
+
+	public void initialize() {
+		if (_isRunning) {
+			throw new UnsupportedOperationException(
+					"AudioIO must be stopped to initialize.");
+		}
+
+		// Everything below depends on the sample rate, so pick it first.
+		int sampleFrequency = chooseSampleFrequency();
+		if (sampleFrequency != _sampleFrequency) {
+			// A capture in progress was recorded at the old rate
+			stopCapture();
+		}
+		_sampleFrequency = sampleFrequency;
+
+		// Get the waveforms for the current IO frequency. Any pending
+		// frequency change is superseded by this.
+		_pendingBank.set(null);
+		_bank = _waveformBanks.get(sampleFrequency, _ioBaseFrequency);
+		_floatingIdx = 0;
+		allocateOutputBuffers();
+
+		if (_powerTone.getSampleFrequency() != sampleFrequency) {
+			_powerTone = new PowerToneGenerator(sampleFrequency,
+					Short.MAX_VALUE/_powerSignalDivisor);
+		}
+		_powerTone.setFrequency(_powerFrequency);
+
+		_scheduler.setSampleFrequency(sampleFrequency);
+		_demodulator.setIoFrequency(sampleFrequency, _ioBaseFrequency);
 
 		_isInitialized = true;
 	}
@@ -532,14 +736,15 @@ public class AudioReceiver {
 
 		_stop = false;
 
-		attachAudioResources();
+		// Never try to keep less queued than the backend needs to play
+		// smoothly.
+		_scheduler.setMinimumFrames(_backend.open(_sampleFrequency));
+		_realTimeInput = _backend.isRealTime();
+		_scheduler.reset();
+		_inputRing.clear();
+		resetInputState();
 
-		_audioRecord.startRecording();
-		_audioTrack.play();
-
-		if (_debug) {
-			startDebug();
-		}
+		_backend.start();
 
 		_outputThread = new Thread(_outputGenerator);
 		_inputThread = new Thread(_inputProcessor);
@@ -548,10 +753,17 @@ public class AudioReceiver {
 		_outputThread.start();
 		_inputThread.start();
 		_audioProcessThread.start();
+
+		_isRunning = true;
 	}
 
 	public void stopAudioIO() {
+		if (!_isRunning) {
+			return;
+		}
+
 		_stop = true;
+		_backend.stop();
 
 		try {
 			_outputThread.join();
@@ -561,13 +773,7 @@ public class AudioReceiver {
 			e.printStackTrace();
 		}
 
-		releaseAudioResources();
-
-		_isInitialized = false;
-
-		if (_debug) {
-			stopDebug();
-		}
+		_backend.close();
 
 		_isRunning = false;
 	}
@@ -576,47 +782,34 @@ public class AudioReceiver {
 	// Support functions
 	///////////////////////////////////////////////
 
-	private void attachAudioResources() {
-		_audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
-			SAMPLE_FREQUENCY,
-			AudioFormat.CHANNEL_OUT_STEREO,
-			AudioFormat.ENCODING_PCM_16BIT,
-			44100,
-			AudioTrack.MODE_STREAM);
-
-		int recBufferSize = AudioRecord.getMinBufferSize(SAMPLE_FREQUENCY,
-				AudioFormat.CHANNEL_IN_MONO,
-				AudioFormat.ENCODING_PCM_16BIT);
-
-		System.out.println("REC BUFFER SIZE: " + recBufferSize);
-
-		_audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
-			SAMPLE_FREQUENCY,
-			AudioFormat.CHANNEL_IN_MONO,
-			AudioFormat.ENCODING_PCM_16BIT,
-			recBufferSize);
-
-		//_recBuffer = new short[recBufferSize * 10];
+	// Pick the sample rate for audio input and output.
+	private int chooseSampleFrequency() {
+		if (_requestedSampleFrequency > 0) {
+			return _requestedSampleFrequency;
+		}
+		return _backend.getPreferredSampleFrequency();
 	}
 
-	private void releaseAudioResources() {
-		_audioTrack.release();
-		_audioRecord.release();
-
-		_audioTrack = null;
-		_audioRecord = null;
-
-		_stereoBuffer = null;
-		//_recBuffer = null;
+	// Forget about previous microphone samples so that edge detection
+	// starts fresh.
+	private void resetInputState() {
+		_demodulator.reset();
+		_edges.clear();
 	}
 
-	private double boundToShort(double in) {
-		return (in >= 32786.0) ? 32786.0 : (in <= -32786.0 ? -32786.0 : in );
-	}
+	// Make sure the output buffers can hold _bitsInBuffer half bits with
+	// the current waveform bank. The buffers only ever grow, so switching
+	// between frequencies does not keep reallocating them.
+	private void allocateOutputBuffers() {
+		// The stereo buffer should be large enough to ensure
+		// that scheduling doesn't mess it up.
+		int numFrames = _bank.segmentLength * (_bitsInBuffer/2);
 
-	private int getBufferSize() {
-		//return _sampleFrequency / _ioBaseFrequency / 2 / 2;
-		return SAMPLE_FREQUENCY / _ioBaseFrequency / 2;
+		if (_dataBuffer == null || _dataBuffer.length < numFrames) {
+			_stereoBuffer = new short[numFrames * 2];
+			_dataBuffer = new short[numFrames];
+			_powerBuffer = new short[numFrames];
+		}
 	}
 
 }
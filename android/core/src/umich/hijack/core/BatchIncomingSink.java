@@ -0,0 +1,25 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+public interface BatchIncomingSink extends IncomingSink {
+	// Called with all of the edges found in a buffer of samples, in the
+	// order they occurred. Equivalent to calling handleNextBit for each
+	// edge in the batch. The batch is reused after this returns.
+	void handleEdges(EdgeBatch edges);
+}
@@ -0,0 +1,159 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads back a capture file written by CaptureWriter.
+ *
+ * The file is read sequentially through a direct buffer, so captures of any
+ * length can be replayed without holding them in memory. Samples are handed
+ * out one record at a time: read() never returns samples from two different
+ * records, so isDropped() and getTimestamp() always describe the samples
+ * that were just returned.
+ */
+
+public class CaptureReader {
+
+	private final static int READ_BUFFER_LEN = 1 << 16;
+
+	private final FileInputStream _stream;
+	private final FileChannel _channel;
+	private final ByteBuffer _buf;
+
+	private final int _sampleFrequency;
+
+	// Samples left in the current record
+	private int _recordRemaining = 0;
+	private boolean _recordDropped = false;
+	private long _recordTimestamp = 0;
+
+	private boolean _end = false;
+
+	public CaptureReader (File file) throws IOException {
+		_stream = new FileInputStream(file);
+		_channel = _stream.getChannel();
+		_buf = ByteBuffer.allocateDirect(READ_BUFFER_LEN);
+		_buf.order(ByteOrder.LITTLE_ENDIAN);
+		_buf.flip();
+
+		if (!fill(CaptureWriter.HEADER_LEN) ||
+		    _buf.getInt() != CaptureWriter.MAGIC) {
+			close();
+			throw new IOException("Not a HiJack capture file: " + file);
+		}
+		int version = _buf.getInt();
+		if (version != CaptureWriter.VERSION) {
+			close();
+			throw new IOException("Unsupported capture version " + version);
+		}
+		_sampleFrequency = _buf.getInt();
+	}
+
+	// Sample rate the capture was recorded at
+	public int getSampleFrequency () {
+		return _sampleFrequency;
+	}
+
+	// Read up to len samples of the current record into buf. Moves on to
+	// the next record once the current one is used up. Returns the number
+	// of samples read, or -1 at the end of the capture.
+	public int read (short[] buf, int offset, int len) throws IOException {
+		if (_recordRemaining == 0 && !nextRecord()) {
+			return -1;
+		}
+
+		if (_buf.remaining() < 2 && !fill(2)) {
+			// The capture was cut off in the middle of a record
+			_end = true;
+			_recordRemaining = 0;
+			return -1;
+		}
+
+		int n = Math.min(Math.min(len, _recordRemaining), _buf.remaining() / 2);
+		for (int i = offset; i < offset + n; i++) {
+			buf[i] = _buf.getShort();
+		}
+		_recordRemaining -= n;
+		return n;
+	}
+
+	// True if the samples last returned by read() were dropped instead of
+	// decoded when they were captured.
+	public boolean isDropped () {
+		return _recordDropped;
+	}
+
+	// System.nanoTime() when the samples last returned by read() were
+	// captured.
+	public long getTimestamp () {
+		return _recordTimestamp;
+	}
+
+	public void close () throws IOException {
+		_stream.close();
+	}
+
+	// Start reading the next record. Returns false at the end of the
+	// capture, which is either the end of the file or a zeroed record left
+	// behind by a capture that was not closed.
+	private boolean nextRecord () throws IOException {
+		if (_end || !fill(CaptureWriter.RECORD_HEADER_LEN)) {
+			_end = true;
+			return false;
+		}
+
+		int numSamples = _buf.getInt();
+		int flags = _buf.getInt();
+		long timestamp = _buf.getLong();
+
+		if (numSamples <= 0) {
+			_end = true;
+			return false;
+		}
+
+		_recordRemaining = numSamples;
+		_recordDropped = (flags & CaptureWriter.FLAG_DROPPED) != 0;
+		_recordTimestamp = timestamp;
+		return true;
+	}
+
+	// Make sure at least len bytes are waiting in the read buffer. Returns
+	// false if the file ends first.
+	private boolean fill (int len) throws IOException {
+		if (_buf.remaining() >= len) {
+			return true;
+		}
+
+		_buf.compact();
+		while (_buf.position() < len) {
+			if (_channel.read(_buf) < 0) {
+				break;
+			}
+		}
+		_buf.flip();
+
+		return _buf.remaining() >= len;
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Records raw microphone samples to a file so they can be decoded again
+ * later with CaptureReader.
+ *
+ * The file is written through a memory mapped window, so recording a buffer
+ * is just copying it into memory and the OS writes it out in the background.
+ * This is fast enough to run on the microphone thread alongside normal
+ * decoding. When the window fills up the next part of the file is mapped.
+ *
+ * File layout, all values little endian:
+ *
+ *   header:  magic (int), version (int), sample rate in Hz (int)
+ *   records: number of samples (int), flags (int),
+ *            capture time in ns (long), samples (16 bit each)
+ *
+ * Each record is one read from the microphone. The capture time is
+ * System.nanoTime() right after the read. Records with the DROPPED flag
+ * were read from the microphone but thrown away because the processing
+ * thread fell behind.
+ *
+ * The file is only appended to. If the app dies before close() is called
+ * the end of the last window is left zeroed, which reads back as the end of
+ * the capture.
+ */
+
+public class CaptureWriter {
+
+	final static int MAGIC = 0x50434a48; // "HJCP"
+	final static int VERSION = 1;
+
+	final static int HEADER_LEN = 12;
+	final static int RECORD_HEADER_LEN = 16;
+
+	// Record flags
+	final static int FLAG_DROPPED = 0x1;
+
+	// How much of the file to map at once
+	private final static int WINDOW_LEN = 1 << 22;
+
+	private final RandomAccessFile _file;
+	private final FileChannel _channel;
+
+	// The currently mapped part of the file, and the same memory as shorts
+	// so samples can be copied in bulk. Records are all whole shorts long,
+	// so sample i of the window is at byte 2*i.
+	private MappedByteBuffer _window;
+	private ShortBuffer _windowSamples;
+
+	// Bytes of the file written so far
+	private long _length = 0;
+
+	private boolean _closed = false;
+
+	public CaptureWriter (File file, int sampleFrequency) throws IOException {
+		_file = new RandomAccessFile(file, "rw");
+		_channel = _file.getChannel();
+		_channel.truncate(0);
+
+		mapWindow(HEADER_LEN);
+		_window.putInt(MAGIC);
+		_window.putInt(VERSION);
+		_window.putInt(sampleFrequency);
+		_length = HEADER_LEN;
+	}
+
+	// Append numSamples samples from buf starting at offset. Set dropped if
+	// these samples were not passed on for decoding. Does nothing once the
+	// capture is closed.
+	public synchronized void write (short[] buf, int offset, int numSamples,
+	                                long timestampNs, boolean dropped)
+			throws IOException {
+		if (_closed || numSamples <= 0) {
+			return;
+		}
+
+		int recordLen = RECORD_HEADER_LEN + numSamples*2;
+		if (_window.remaining() < recordLen) {
+			mapWindow(recordLen);
+		}
+
+		_window.putInt(numSamples);
+		_window.putInt(dropped ? FLAG_DROPPED : 0);
+		_window.putLong(timestampNs);
+		_windowSamples.position(_window.position() / 2);
+		_windowSamples.put(buf, offset, numSamples);
+		_window.position(_window.position() + numSamples*2);
+		_length += recordLen;
+	}
+
+	// Number of bytes recorded so far
+	public synchronized long getLength () {
+		return _length;
+	}
+
+	// Finish the capture. The file is cut off right after the last record.
+	public synchronized void close () throws IOException {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		_window = null;
+		_windowSamples = null;
+
+		try {
+			_channel.truncate(_length);
+		} finally {
+			_file.close();
+		}
+	}
+
+	// Map the file from the end of what has been written so far, with room
+	// for at least minLen bytes.
+	private void mapWindow (int minLen) throws IOException {
+		_window = _channel.map(FileChannel.MapMode.READ_WRITE, _length,
+		                       Math.max(WINDOW_LEN, minLen));
+		_window.order(ByteOrder.LITTLE_ENDIAN);
+		_windowSamples = _window.asShortBuffer();
+	}
+}
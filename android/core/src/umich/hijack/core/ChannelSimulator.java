@@ -0,0 +1,254 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.util.Random;
+
+/*
+ * Simulates the audio jack link between the phone and HiJack, for testing
+ * and benchmarking with LoopbackAudioBackend.
+ *
+ * The signal goes through these stages, in order:
+ *
+ *  - comparator: HiJack answers with a square wave from a GPIO pin, not
+ *    with the waveform the phone plays. With the comparator on, the signal
+ *    is squared up to a fixed level by its sign, which turns the phone's
+ *    output into the kind of signal HiJack sends back.
+ *  - gain: how loud the signal arrives at the microphone. A negative gain
+ *    inverts it.
+ *  - high-pass filter: the AC coupling in front of the microphone input.
+ *  - low-pass filter: the limited bandwidth of the line and the ADC.
+ *  - sample clock: the receiving side samples the signal on its own clock,
+ *    which can drift from the sending clock by a number of parts per
+ *    million, and each sample can be taken a little early or late
+ *    (jitter). The signal is interpolated linearly between samples.
+ *  - noise: additive white gaussian noise.
+ *  - clipping: samples are limited to the range of the ADC.
+ *
+ * Every stage is off by default. All randomness comes from a Random seeded
+ * with the given seed, and reset() reseeds it, so a run with the same
+ * settings and the same input always gives the same output.
+ *
+ * Set everything up before audio starts. process() is called from the
+ * audio output thread.
+ */
+
+public class ChannelSimulator implements AudioChannel {
+
+	// Largest clock drift allowed. The output of process can be at most
+	// twice as long as the input, so this is far below that.
+	private final static double MAX_DRIFT_PPM = 10000;
+
+	private final long _seed;
+	private final Random _random;
+
+	private int _sampleFrequency;
+
+	// Settings
+	private int _comparatorLevel = 0;
+	private double _gain = 1.0;
+	private double _highPassCutoff = 0;
+	private double _lowPassCutoff = 0;
+	private double _driftPpm = 0;
+	private double _jitter = 0;
+	private double _noise = 0;
+	private int _clipLevel = Short.MAX_VALUE;
+
+	// Filter coefficients, worked out from the cutoffs
+	private double _highPassAlpha;
+	private double _lowPassAlpha;
+
+	// Filter state
+	private double _highPassIn;
+	private double _highPassOut;
+	private double _lowPassOut;
+
+	// Resampler state. _lastSample is the last filtered input sample of the
+	// previous buffer, and _position is where the next output sample is
+	// taken, in input samples after _lastSample.
+	private double _lastSample;
+	private double _position;
+
+	// Filtered input of the current buffer, with _lastSample in front
+	private double[] _filtered = new double[0];
+
+	public ChannelSimulator (int sampleFrequency, long seed) {
+		_sampleFrequency = sampleFrequency;
+		_seed = seed;
+		_random = new Random(seed);
+		reset();
+	}
+
+	// Square up the signal to +/- level before anything else. 0 turns the
+	// comparator off.
+	public void setComparator (int level) {
+		_comparatorLevel = level;
+	}
+
+	// Scale the signal by gain. Use a negative gain to invert it.
+	public void setGain (double gain) {
+		_gain = gain;
+	}
+
+	// Cutoff frequency in Hz of the first order high-pass filter. 0 turns
+	// the filter off.
+	public void setHighPass (double cutoff) {
+		_highPassCutoff = cutoff;
+		updateFilters();
+	}
+
+	// Cutoff frequency in Hz of the first order low-pass filter. 0 turns
+	// the filter off.
+	public void setLowPass (double cutoff) {
+		_lowPassCutoff = cutoff;
+		updateFilters();
+	}
+
+	// How much faster the receiving sample clock runs than the sending one,
+	// in parts per million. Can be negative.
+	public void setClockDrift (double ppm) {
+		_driftPpm = Math.max(-MAX_DRIFT_PPM, Math.min(MAX_DRIFT_PPM, ppm));
+	}
+
+	// Standard deviation of the sampling instant, in samples. Limited to
+	// half a sample.
+	public void setJitter (double samples) {
+		_jitter = Math.max(0, Math.min(0.5, samples));
+	}
+
+	// RMS level of the added noise, in sample units
+	public void setNoise (double rms) {
+		_noise = rms;
+	}
+
+	// Largest magnitude of an output sample
+	public void setClipLevel (int level) {
+		_clipLevel = Math.max(0, Math.min(Short.MAX_VALUE, level));
+	}
+
+	public void setSampleFrequency (int sampleFrequency) {
+		_sampleFrequency = sampleFrequency;
+		updateFilters();
+	}
+
+	@Override
+	public void reset () {
+		_random.setSeed(_seed);
+		_highPassIn = 0;
+		_highPassOut = 0;
+		_lowPassOut = 0;
+		_lastSample = 0;
+		_position = 0;
+		updateFilters();
+	}
+
+	@Override
+	public int process (short[] in, int offset, int numSamples, short[] out) {
+		if (_filtered.length < numSamples + 1) {
+			_filtered = new double[numSamples + 1];
+		}
+
+		filter(in, offset, numSamples);
+
+		// Step between output samples, in input samples
+		double step = 1.0 / (1.0 + _driftPpm / 1000000.0);
+
+		int outIdx = 0;
+		double position = _position;
+		while (position < numSamples) {
+			double t = position;
+			if (_jitter > 0) {
+				t += _jitter * _random.nextGaussian();
+				t = Math.max(0, Math.min(numSamples, t));
+			}
+
+			int idx = (int) t;
+			double frac = t - idx;
+			double sample = _filtered[idx];
+			if (idx < numSamples) {
+				sample += (_filtered[idx + 1] - sample) * frac;
+			}
+
+			if (_noise > 0) {
+				sample += _noise * _random.nextGaussian();
+			}
+
+			out[outIdx++] = clip(sample);
+			position += step;
+		}
+
+		_position = position - numSamples;
+		_lastSample = _filtered[numSamples];
+
+		return outIdx;
+	}
+
+	// Apply the gain and filters to the input and put the result in
+	// _filtered after _lastSample.
+	private void filter (short[] in, int offset, int numSamples) {
+		double[] filtered = _filtered;
+		filtered[0] = _lastSample;
+
+		for (int i = 0; i < numSamples; i++) {
+			double x = in[offset + i];
+
+			if (_comparatorLevel > 0) {
+				x = (x < 0) ? -_comparatorLevel : _comparatorLevel;
+			}
+
+			x *= _gain;
+
+			if (_highPassCutoff > 0) {
+				_highPassOut = _highPassAlpha * (_highPassOut + x - _highPassIn);
+				_highPassIn = x;
+				x = _highPassOut;
+			}
+
+			if (_lowPassCutoff > 0) {
+				_lowPassOut += _lowPassAlpha * (x - _lowPassOut);
+				x = _lowPassOut;
+			}
+
+			filtered[i + 1] = x;
+		}
+	}
+
+	private short clip (double sample) {
+		long s = Math.round(sample);
+		if (s > _clipLevel) {
+			return (short) _clipLevel;
+		} else if (s < -_clipLevel) {
+			return (short) -_clipLevel;
+		}
+		return (short) s;
+	}
+
+	// First order RC filter coefficients for the cutoffs
+	private void updateFilters () {
+		double dt = 1.0 / _sampleFrequency;
+
+		if (_highPassCutoff > 0) {
+			double rc = 1.0 / (2 * Math.PI * _highPassCutoff);
+			_highPassAlpha = rc / (rc + dt);
+		}
+		if (_lowPassCutoff > 0) {
+			double rc = 1.0 / (2 * Math.PI * _lowPassCutoff);
+			_lowPassAlpha = dt / (rc + dt);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Turns microphone samples into the edges that the IncomingSink decodes.
+ *
+ * All calls except setIoFrequency are made from the audio processing
+ * thread. setIoFrequency can be called from any thread.
+ */
+
+public interface Demodulator {
+	// Look for edges in numSamples samples of buf starting at offset and
+	// add them to edges. edges must have room for numSamples more edges.
+	void process(short[] buf, int offset, int numSamples, EdgeBatch edges);
+
+	// Forget about previous samples. Called when the input starts and when
+	// samples were lost.
+	void reset();
+
+	// Called with the sample rate and the IO base frequency whenever either
+	// changes.
+	void setIoFrequency(int sampleFrequency, int ioFrequency);
+}
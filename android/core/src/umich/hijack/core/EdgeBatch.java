@@ -0,0 +1,85 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * A group of edges found by the edge detector, stored in primitive arrays.
+ *
+ * The edge detector fills a batch while it walks over a buffer of samples
+ * and then hands the whole batch to the IncomingSink at once. For each edge
+ * we store the period since the previous edge (in fixed point samples, see
+ * IncomingSink.PERIOD_FRACTION_BITS) and whether it was a rising or falling
+ * edge. Edge types are packed one bit per edge (1 for rising).
+ *
+ * The arrays are allocated once and reused for every batch.
+ */
+
+public class EdgeBatch {
+
+	// Fixed point time in samples since the previous edge, for each edge
+	private final int[] _periods;
+	// One bit per edge, set if the edge was rising
+	private final int[] _rising;
+
+	private int _count = 0;
+
+	public EdgeBatch (int capacity) {
+		_periods = new int[capacity];
+		_rising = new int[(capacity + 31) / 32];
+	}
+
+	public void clear () {
+		_count = 0;
+	}
+
+	// Add an edge to the batch. Returns true if the batch is now full and
+	// must be handed off before any more edges are added.
+	public boolean add (int period, EdgeType edge) {
+		int word = _count >>> 5;
+		int bit = 1 << (_count & 31);
+
+		if (edge == EdgeType.RISING) {
+			_rising[word] |= bit;
+		} else {
+			_rising[word] &= ~bit;
+		}
+		_periods[_count++] = period;
+
+		return _count == _periods.length;
+	}
+
+	public int size () {
+		return _count;
+	}
+
+	public boolean isEmpty () {
+		return _count == 0;
+	}
+
+	public int getPeriod (int i) {
+		return _periods[i];
+	}
+
+	public boolean isRising (int i) {
+		return (_rising[i >>> 5] & (1 << (i & 31))) != 0;
+	}
+
+	public EdgeType getEdge (int i) {
+		return isRising(i) ? EdgeType.RISING : EdgeType.FALLING;
+	}
+}
@@ -2,15 +2,36 @@ package umich.hijack.core;
 
 import java.util.ArrayList;
 
-// TODO ADD CALLBACKS
+/*
+ * Controls the GPIOs, ADCs and DACs on the peripheral.
+ *
+ * Every command returns a PacketFuture. By default commands are sent once
+ * without asking for an ack, and the future completes when the packet
+ * has been sent. Read values come back to the read listeners registered
+ * here, as do values the peripheral sends on its own, such as interrupts.
+ *
+ * With setReliable(true), commands ask for an ack and are resent until
+ * they get one, and their futures complete on the ack. Reads complete with
+ * the HiJackIOPacket holding the value, or fail if no answer comes within
+ * READ_TIMEOUT_MS. Only turn this on for a peripheral that
+ *  - acks every command, and
+ *  - answers a read with a HIJACKIO packet that carries the read's
+ *    sequence number and the same command and pin byte.
+ * The answer also goes to the read listeners.
+ */
 
 public class HiJackIO implements PktRecvCb {
-	// Keep a pointer to some module that can transmit packets.
-	private PktTransmitter _pktTx;
-
-	// Keep a pointer to the packet dispatcher as well
+	// Packets go out through the dispatcher so they can be acked and
+	// matched to their responses
 	private final PacketDispatch _dispatcher;
 
+	// Whether commands ask for acks and reads wait for their answers
+	private volatile boolean _reliable = false;
+
+	// How long a read waits for the peripheral to answer. This covers the
+	// retries of the request.
+	public final static long READ_TIMEOUT_MS = 10000;
+
 	// Maximum index of digital and analog pins. The assumption is that the
 	// analog pins are both analog and digital and the analog pins are the
 	// lowered numbered ones: 0-MAX_ANALOG_PIN.
@@ -51,8 +72,26 @@ public class HiJackIO implements PktRecvCb {
 		_dispatcher.registerIncomingPacketListener(this, PacketType.HIJACKIO);
 	}
 
+	// Have commands acked and reads answered, see above. Only affects
+	// commands sent after this.
+	public void setReliable (boolean reliable) {
+		_reliable = reliable;
+	}
+
+	// Commands now go out through the dispatcher, so this just makes ptx
+	// the dispatcher's transmitter. Register it with the dispatcher
+	// instead.
+	@Deprecated
+	public void registerPacketTransmitter (PktTransmitter ptx) {
+		_dispatcher.registerPacketTransmitter(ptx);
+	}
+
+	public boolean isReliable () {
+		return _reliable;
+	}
+
 	// Set a GPIO as an input or output
-	public void pinMode(int pin, PinMode pm) throws HiJackIOPinException {
+	public PacketFuture pinMode(int pin, PinMode pm) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -64,11 +103,11 @@ public class HiJackIO implements PktRecvCb {
 		}
 		pkt.pin = pin;
 
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
 	// Set a GPIO high or low
-	public void digitalWrite(int pin, PinVal val) throws HiJackIOPinException {
+	public PacketFuture digitalWrite(int pin, PinVal val) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -77,11 +116,11 @@ public class HiJackIO implements PktRecvCb {
 		pkt.cmd = HiJackIOCommand.DIGITAL_WRITE;
 		pkt.pin = pin;
 		pkt.pinValue = val.ordinal();
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
 	// Get the pin state (high or low) of a GPIO
-	public void digitalRead(int pin) throws HiJackIOPinException {
+	public PacketFuture digitalRead(int pin) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -89,11 +128,11 @@ public class HiJackIO implements PktRecvCb {
 		HiJackIOPacket pkt = new HiJackIOPacket();
 		pkt.cmd = HiJackIOCommand.DIGITAL_READ;
 		pkt.pin = pin;
-		_pktTx.sendPacket(pkt);
+		return _read(pkt);
 	}
 
 	// Write a value to a DAC
-	public void analogWrite(int pin, int val) throws HiJackIOPinException {
+	public PacketFuture analogWrite(int pin, int val) throws HiJackIOPinException {
 		if (!isValidAnalog(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -102,11 +141,11 @@ public class HiJackIO implements PktRecvCb {
 		pkt.cmd = HiJackIOCommand.ANALOG_WRITE;
 		pkt.pin = pin;
 		pkt.adcValue = val;
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
 	// Read an ADC pin
-	public void analogRead(int pin) throws HiJackIOPinException {
+	public PacketFuture analogRead(int pin) throws HiJackIOPinException {
 		if (!isValidAnalog(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -114,11 +153,11 @@ public class HiJackIO implements PktRecvCb {
 		HiJackIOPacket pkt = new HiJackIOPacket();
 		pkt.cmd = HiJackIOCommand.ANALOG_READ;
 		pkt.pin = pin;
-		_pktTx.sendPacket(pkt);
+		return _read(pkt);
 	}
 
 	// Disable interrupts for a specific pin
-	public void disableInterrupt(int pin) throws HiJackIOPinException {
+	public PacketFuture disableInterrupt(int pin) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -126,11 +165,11 @@ public class HiJackIO implements PktRecvCb {
 		HiJackIOPacket pkt = new HiJackIOPacket();
 		pkt.cmd = HiJackIOCommand.DISABLE_INTERRUPT;
 		pkt.pin = pin;
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
 	// Enable a rising edge interrupt on a GPIO
-	public void enableRisingInterrupt(int pin) throws HiJackIOPinException {
+	public PacketFuture enableRisingInterrupt(int pin) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -138,11 +177,11 @@ public class HiJackIO implements PktRecvCb {
 		HiJackIOPacket pkt = new HiJackIOPacket();
 		pkt.cmd = HiJackIOCommand.ENABLE_INTERRUPT_RISING;
 		pkt.pin = pin;
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
 	// Enable a falling edge interrupt on a GPIO
-	public void enableFallingInterrupt(int pin) throws HiJackIOPinException {
+	public PacketFuture enableFallingInterrupt(int pin) throws HiJackIOPinException {
 		if (!isValid(pin)) {
 			throw new HiJackIOPinException();
 		}
@@ -150,22 +189,82 @@ public class HiJackIO implements PktRecvCb {
 		HiJackIOPacket pkt = new HiJackIOPacket();
 		pkt.cmd = HiJackIOCommand.ENABLE_INTERRUPT_FALLING;
 		pkt.pin = pin;
-		_pktTx.sendPacket(pkt);
+		return _send(pkt);
 	}
 
+	// Listeners for pin values sent by the peripheral. They get a
+	// HiJackIOPacket that they may keep.
+	public void registerDigitalReadListener (PktRecvCb listener) {
+		_digitalReadCb.add(listener);
+	}
 
-	// Configure the module that is responsible for transmitting packets
-	public void registerPacketTransmitter (PktTransmitter ptx) {
-		_pktTx = ptx;
+	public void registerAnalogReadListener (PktRecvCb listener) {
+		_analogReadCb.add(listener);
 	}
 
-	//public void register
+	public void registerInterruptListener (PktRecvCb listener) {
+		_interruptCb.add(listener);
+	}
 
 	// Callback for incoming HiJackIO packets
 	@Override
 	public void recvPacket(Packet packet) {
+		// The dispatcher takes the packet back once we return, so parse it
+		// into one of our own
+		HiJackIOPacket pkt = HiJackIOPacket.fromPacket(packet);
+		if (pkt == null) {
+			return;
+		}
+
+		ArrayList<PktRecvCb> listeners;
+		switch (pkt.cmd) {
+			case DIGITAL_READ:
+				listeners = _digitalReadCb;
+				break;
+			case ANALOG_READ:
+				listeners = _analogReadCb;
+				break;
+			case ENABLE_INTERRUPT_RISING:
+			case ENABLE_INTERRUPT_FALLING:
+				listeners = _interruptCb;
+				break;
+			default:
+				return;
+		}
+
+		for (PktRecvCb listener : listeners) {
+			listener.recvPacket(pkt);
+		}
 	}
 
+	// Send a read. When reliable, wait for the value, and resend the read
+	// until the peripheral acks or answers it.
+	private PacketFuture _read (HiJackIOPacket pkt) {
+		if (!_reliable) {
+			return _dispatcher.send(pkt);
+		}
+		pkt.ackRequested = true;
+		return _dispatcher.request(pkt, READ_TIMEOUT_MS, READ_ANSWER);
+	}
+
+	private PacketFuture _send (HiJackIOPacket pkt) {
+		if (!_reliable) {
+			return _dispatcher.send(pkt);
+		}
+		return _dispatcher.sendReliable(pkt);
+	}
+
+	// A read's answer repeats its command and pin, which keeps packets the
+	// peripheral sends on its own from being taken for the answer
+	private final static PacketFuture.Matcher READ_ANSWER =
+			new PacketFuture.Matcher() {
+		@Override
+		public boolean isResponse (Packet request, Packet p) {
+			return p.length >= 1 &&
+			       p.getData(0) == ((HiJackIOPacket) request).getHeaderByte();
+		}
+	};
+
 	// Internal function that checks if a pin index is valid
 	private boolean isValid (int pin) {
 		if (pin < 0 || pin > MAX_DIGITAL_PIN) {
@@ -16,24 +16,53 @@ public class HiJackIOPacket extends Packet {
 	private final static int HIO_CMD_OFFSET = 4;
 	private final static int HIO_PIN_MASK = 0xF;
 
+	private final static HiJackIOCommand[] COMMANDS = HiJackIOCommand.values();
+
+	public HiJackIOPacket () {
+		super();
+		typeId = PacketType.HIJACKIO;
+	}
+
+	// Make a HiJackIOPacket out of a received HIJACKIO packet. Returns null
+	// if the payload does not parse.
+	public static HiJackIOPacket fromPacket (Packet p) {
+		HiJackIOPacket pkt = new HiJackIOPacket();
+		pkt.copyFrom(p);
+		if (!pkt.parsePayload()) {
+			return null;
+		}
+		return pkt;
+	}
 
 	@Override
 	public boolean processReceivedPacket () {
 		// Do the initial processing of the stock header and checksum
-		super.processReceivedPacket();
+		if (!super.processReceivedPacket()) {
+			return false;
+		}
 
+		return parsePayload();
+	}
+
+	// Fill in the HiJackIO fields from the payload
+	public boolean parsePayload () {
 		if (super.length < 1) {
 			return false;
 		}
 
 		// Parse HiJackIO header byte
-		cmd = HiJackIOCommand.values()[(super.data[HEADER_BYTE_IDX] & HIO_CMD_MASK) >> HIO_CMD_OFFSET];
-		pin = super.data[HEADER_BYTE_IDX] & HIO_PIN_MASK;
+		int header = getData(HEADER_BYTE_IDX);
+		int command = (header & HIO_CMD_MASK) >> HIO_CMD_OFFSET;
+		if (command >= COMMANDS.length) {
+			return false;
+		}
+		cmd = COMMANDS[command];
+		pin = header & HIO_PIN_MASK;
 
 		if (super.length == 2) {
-			pinValue = super.data[PINVALUE_BYTE_IDX];
+			pinValue = getData(PINVALUE_BYTE_IDX);
 		} else if (super.length == 3) {
-			adcValue = (super.data[ADCVALUE_UPPERBYTE_IDX] << 8) | super.data[ADCVALUE_LOWERBYTE_IDX];
+			adcValue = (getData(ADCVALUE_UPPERBYTE_IDX) << 8) | getData(ADCVALUE_LOWERBYTE_IDX);
 		} else {
 			return false;
 		}
@@ -41,20 +70,24 @@ public class HiJackIOPacket extends Packet {
 		return true;
 	}
 
+	// The first payload byte, which holds the command and the pin
+	public int getHeaderByte () {
+		return ((cmd.ordinal() << HIO_CMD_OFFSET) & HIO_CMD_MASK) |
+		       (pin & HIO_PIN_MASK);
+	}
+
 	@Override
 	public void compressToBuffer () {
 
 		super.length = 1;
-		super.data[HEADER_BYTE_IDX] = 0;
-		super.data[HEADER_BYTE_IDX] |= (cmd.ordinal() << HIO_CMD_OFFSET) & HIO_CMD_MASK;
-		super.data[HEADER_BYTE_IDX] |= pin & HIO_PIN_MASK;
+		setData(HEADER_BYTE_IDX, getHeaderByte());
 
 		if (cmd == HiJackIOCommand.DIGITAL_WRITE) {
-			super.data[PINVALUE_BYTE_IDX] = pinValue;
+			setData(PINVALUE_BYTE_IDX, pinValue);
 			super.length++;
 		} else if (cmd == HiJackIOCommand.ANALOG_WRITE) {
-			super.data[ADCVALUE_UPPERBYTE_IDX] = (adcValue >> 8) & 0xFF;
-			super.data[ADCVALUE_LOWERBYTE_IDX] = adcValue  & 0xFF;
+			setData(ADCVALUE_UPPERBYTE_IDX, (adcValue >> 8) & 0xFF);
+			setData(ADCVALUE_LOWERBYTE_IDX, adcValue & 0xFF);
 			super.length += 2;
 		}
 
@@ -18,8 +18,18 @@
 package umich.hijack.core;
 
 public interface IncomingSink {
+	// Edge periods are fixed point numbers of samples with this many
+	// fractional bits, so edges can be timed more finely than one sample.
+	public final static int PERIOD_FRACTION_BITS = 8;
+	public final static int PERIOD_ONE_SAMPLE = 1 << PERIOD_FRACTION_BITS;
+
 	// Called with the period between the last frequency
 	// shift and the current one, and what type of transistion
-	// it was (HIGH TO LOW or LOW TO HIGH).
+	// it was (HIGH TO LOW or LOW TO HIGH). The period is in fixed point
+	// samples (see PERIOD_FRACTION_BITS).
 	void handleNextBit(int transistionPeriod, EdgeType edge);
+
+	// Called when incoming samples were lost, so the next edge has nothing
+	// to do with the previous one. Anything being received is incomplete.
+	void handleDiscontinuity();
 }
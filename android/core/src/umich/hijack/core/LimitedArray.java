@@ -1,11 +1,17 @@
 package umich.hijack.core;
 
+import java.util.Arrays;
+
+// Keeps the last few values inserted and their average and variance. Used
+// for edge periods, which are fixed point, so values stay ints and sums are
+// kept in wider types to avoid overflow.
+
 public class LimitedArray {
 	private final int maxSize;// max array size
 	private int p = 0;  // pointer
 	private int size = 0;  // size of array
 	private final int[] values;    // actual array
-	private int total;
+	private long total;
 	private double avg; // average
 
 	public LimitedArray (int set_size) {
@@ -34,6 +40,14 @@ public class LimitedArray {
 		p = (p + 1) % maxSize;
 	}
 
+	public void clear () {
+		Arrays.fill(values, 0);
+		p = 0;
+		size = 0;
+		total = 0;
+		avg = 0.0;
+	}
+
 	public int length () {
 		return size;
 	}
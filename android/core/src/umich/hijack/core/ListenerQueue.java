@@ -0,0 +1,286 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Runs one listener on its own thread, so a slow listener does not hold
+ * up the thread that receives packets or the other listeners.
+ *
+ * recvPacket copies the packet into the next free slot and returns. The
+ * worker thread hands the packets to the listener in the order they came
+ * in. Each slot owns its Packet, so nothing is allocated per packet. The
+ * listener may only use the packet during the call, the same as when it
+ * is called directly by PacketDispatch. An exception thrown by the
+ * listener is logged and the worker moves on to the next packet.
+ *
+ * The queue holds up to capacity packets besides the one the listener is
+ * working on. What happens when it is full is set with OverflowPolicy.
+ *
+ * PacketPublisher also uses these for its subscriptions. Then the worker
+ * only takes a packet when the subscriber has asked for more (see
+ * request), so packets wait here until it is ready for them.
+ */
+
+public class ListenerQueue implements PktRecvCb {
+
+	public enum OverflowPolicy {
+		// Drop the new packet and count it
+		DROP,
+		// Drop the oldest waiting packet to make room and count it
+		DROP_OLDEST,
+		// Replace the newest waiting packet with the new one and count it,
+		// so the listener always gets the latest packet. With a capacity
+		// of 1 it only ever gets the latest one.
+		CONFLATE,
+		// Wait for the listener to make room. This holds up the receiving
+		// thread, so only use it for listeners that must see every packet.
+		BLOCK
+	};
+
+	private final PktRecvCb _listener;
+	private final int _capacity;
+	private final OverflowPolicy _policy;
+
+	// One more slot than the capacity for the packet the listener is
+	// working on, which sits just before _head. Guarded by this.
+	private final Packet[] _slots;
+	private int _head = 0;
+	private int _count = 0;
+	private int _highWater = 0;
+	private long _dropped = 0;
+
+	// How many more packets the worker may take, Long.MAX_VALUE for no
+	// limit
+	private long _demand = Long.MAX_VALUE;
+
+	private boolean _workerWaiting = false;
+	private boolean _producerWaiting = false;
+	private boolean _shutdown = false;
+	// Run by the worker once it stops, see close()
+	private Runnable _last = null;
+
+	private final Thread _worker;
+
+	public ListenerQueue (PktRecvCb listener, int capacity,
+	                      OverflowPolicy policy, String name) {
+		this(listener, capacity, policy, name, Long.MAX_VALUE);
+	}
+
+	// A queue that holds packets until they are asked for with request
+	ListenerQueue (PktRecvCb listener, int capacity, OverflowPolicy policy,
+	               String name, long demand) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException(
+					"Listener queue capacity must be positive");
+		}
+
+		_listener = listener;
+		_capacity = capacity;
+		_policy = policy;
+		_demand = demand;
+		_slots = new Packet[capacity + 1];
+		for (int i = 0; i < _slots.length; i++) {
+			_slots[i] = new Packet();
+		}
+
+		_worker = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				_runListener();
+			}
+		}, name);
+		_worker.setDaemon(true);
+		_worker.start();
+	}
+
+	// Queue a copy of p for the listener. The caller keeps p.
+	@Override
+	public void recvPacket (Packet p) {
+		synchronized (this) {
+			while (_count == _capacity) {
+				if (_shutdown) {
+					return;
+				}
+				if (_policy == OverflowPolicy.DROP) {
+					_dropped++;
+					return;
+				} else if (_policy == OverflowPolicy.DROP_OLDEST) {
+					// When full the next free slot is the one the listener
+					// may be using, just before _head. Swap the dropped
+					// packet into it so the new one is copied over the
+					// dropped one, and the packet in use becomes the one
+					// just before the new _head.
+					int prev = (_head + _slots.length - 1) % _slots.length;
+					Packet dropped = _slots[_head];
+					_slots[_head] = _slots[prev];
+					_slots[prev] = dropped;
+
+					_head = (_head + 1) % _slots.length;
+					_count--;
+					_dropped++;
+				} else if (_policy == OverflowPolicy.CONFLATE) {
+					_slots[(_head + _count - 1) % _slots.length].copyFrom(p);
+					_dropped++;
+					return;
+				} else {
+					_producerWaiting = true;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						_dropped++;
+						return;
+					} finally {
+						_producerWaiting = false;
+					}
+				}
+			}
+
+			_slots[(_head + _count) % _slots.length].copyFrom(p);
+			_count++;
+			if (_count > _highWater) {
+				_highWater = _count;
+			}
+
+			if (_workerWaiting) {
+				notifyAll();
+			}
+		}
+	}
+
+	// Packets waiting for the listener
+	public synchronized int getDepth () {
+		return _count;
+	}
+
+	public synchronized int getHighWater () {
+		return _highWater;
+	}
+
+	public synchronized long getDroppedCount () {
+		return _dropped;
+	}
+
+	public int getCapacity () {
+		return _capacity;
+	}
+
+	public OverflowPolicy getOverflowPolicy () {
+		return _policy;
+	}
+
+	// Let the worker take n more packets
+	synchronized void request (long n) {
+		_demand += n;
+		if (_demand < 0) {
+			// Overflowed, which means no limit
+			_demand = Long.MAX_VALUE;
+		}
+		if (_workerWaiting) {
+			notifyAll();
+		}
+	}
+
+	// Stop the worker without waiting for it to finish with the packet it
+	// has
+	void stop () {
+		close(null);
+	}
+
+	// Stop the worker and have it run last once it is done with the
+	// packet it has, so that last never overlaps the listener. Only the
+	// first close of a queue gets its last run.
+	synchronized void close (Runnable last) {
+		if (!_shutdown) {
+			_last = last;
+		}
+		_shutdown = true;
+		notifyAll();
+	}
+
+	// Stop the worker. Packets still waiting are not delivered.
+	public void shutdown () {
+		stop();
+		join();
+	}
+
+	// Wait for the worker to finish, unless called from it
+	void join () {
+		if (Thread.currentThread() == _worker) {
+			return;
+		}
+		try {
+			_worker.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void _runListener () {
+		_deliver();
+
+		Runnable last;
+		synchronized (this) {
+			last = _last;
+			_last = null;
+		}
+		if (last != null) {
+			last.run();
+		}
+	}
+
+	private void _deliver () {
+		while (true) {
+			Packet p;
+			synchronized (this) {
+				while ((_count == 0 || _demand == 0) && !_shutdown) {
+					_workerWaiting = true;
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						_shutdown = true;
+						return;
+					} finally {
+						_workerWaiting = false;
+					}
+				}
+				if (_shutdown) {
+					return;
+				}
+
+				p = _slots[_head];
+				_head = (_head + 1) % _slots.length;
+				_count--;
+				if (_demand != Long.MAX_VALUE) {
+					_demand--;
+				}
+
+				if (_producerWaiting) {
+					notifyAll();
+				}
+			}
+
+			try {
+				_listener.recvPacket(p);
+			} catch (RuntimeException e) {
+				// Only this listener misses the packet
+				Trace.log(Trace.Level.WARN, "Packet listener threw an exception");
+			}
+		}
+	}
+}
@@ -0,0 +1,241 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Plays the output data signal straight back into the input, through an
+ * AudioChannel. This lets the whole stack run without any audio hardware,
+ * for example to measure throughput and latency on a build machine.
+ *
+ * The power channel is thrown away. Output is kept in a ring until the
+ * input side reads it, and a frame counts as played once what it turned
+ * into has been read.
+ * Since the output thread only stays a latency budget ahead of the playback
+ * position, the input side sets the pace for everything.
+ *
+ * By default samples are handed over as fast as the input side can take
+ * them, so audio runs much faster than real time. In real time mode reads
+ * are held back to the sample rate, so timings match a real device.
+ */
+
+public class LoopbackAudioBackend implements AudioBackend {
+
+	// Samples of output that can be waiting to be read. This must be well
+	// over the output latency budget.
+	private final static int RING_LEN = 1 << 16;
+
+	private final int _preferredSampleFrequency;
+	private final AudioChannel _channel;
+	private final boolean _realTime;
+
+	private int _sampleFrequency;
+
+	// Output waiting to be read, guarded by this
+	private final short[] _ring = new short[RING_LEN];
+	private int _ringStart = 0;
+	private int _ringCount = 0;
+	private boolean _stopped = false;
+
+	// Samples read by the input side since open
+	private volatile long _samplesRead = 0;
+
+	// Frames played and the samples they turned into since open. These
+	// differ when the channel resamples. Only used by the output thread.
+	private long _framesPlayed = 0;
+	private long _samplesRecorded = 0;
+
+	// When reading started, for real time mode
+	private long _startNs;
+
+	// Output thread buffers for the data channel before and after the
+	// audio channel
+	private short[] _played = new short[0];
+	private short[] _recorded = new short[0];
+
+	// channel can be null to pass the signal through unchanged.
+	public LoopbackAudioBackend (int sampleFrequency, AudioChannel channel,
+	                             boolean realTime) {
+		_preferredSampleFrequency = sampleFrequency;
+		_sampleFrequency = sampleFrequency;
+		_channel = channel;
+		_realTime = realTime;
+	}
+
+	public LoopbackAudioBackend (int sampleFrequency, AudioChannel channel) {
+		this(sampleFrequency, channel, false);
+	}
+
+	@Override
+	public int getPreferredSampleFrequency() {
+		return _preferredSampleFrequency;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return _realTime;
+	}
+
+	@Override
+	public int open(int sampleFrequency) {
+		_sampleFrequency = sampleFrequency;
+
+		synchronized (this) {
+			_ringStart = 0;
+			_ringCount = 0;
+			_stopped = false;
+		}
+		_samplesRead = 0;
+		_framesPlayed = 0;
+		_samplesRecorded = 0;
+
+		if (_channel != null) {
+			_channel.reset();
+		}
+
+		// There is no hardware buffer that needs to be kept full
+		return 0;
+	}
+
+	@Override
+	public void start() {
+		_startNs = System.nanoTime();
+	}
+
+	@Override
+	public synchronized void stop() {
+		_stopped = true;
+		notifyAll();
+	}
+
+	@Override
+	public void close() {
+	}
+
+	@Override
+	public int write(short[] buf, int offset, int numSamples) {
+		int numFrames = numSamples / 2;
+
+		if (_played.length < numFrames) {
+			_played = new short[numFrames];
+			_recorded = new short[numFrames * 2];
+		}
+
+		// Keep only the data channel
+		for (int i = 0; i < numFrames; i++) {
+			_played[i] = buf[offset + i*2];
+		}
+
+		short[] recorded = _played;
+		int numRecorded = numFrames;
+		if (_channel != null) {
+			recorded = _recorded;
+			numRecorded = _channel.process(_played, 0, numFrames, _recorded);
+		}
+
+		_framesPlayed += numFrames;
+		_samplesRecorded += numRecorded;
+
+		if (!put(recorded, numRecorded)) {
+			return 0;
+		}
+		return numSamples;
+	}
+
+	// The frames whose samples have been read. Counting read samples
+	// instead would drift from the frames written without bound when the
+	// channel resamples.
+	@Override
+	public int getPlaybackPosition() {
+		if (_samplesRecorded == 0) {
+			return 0;
+		}
+		return (int) (long) (_samplesRead * ((double) _framesPlayed / _samplesRecorded));
+	}
+
+	@Override
+	public int read(short[] buf, int offset, int numSamples) {
+		int n;
+
+		synchronized (this) {
+			while (_ringCount == 0 && !_stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return 0;
+				}
+			}
+			if (_stopped) {
+				return 0;
+			}
+
+			n = Math.min(numSamples, _ringCount);
+			for (int i = 0; i < n; i++) {
+				buf[offset + i] = _ring[(_ringStart + i) & (RING_LEN - 1)];
+			}
+			_ringStart = (_ringStart + n) & (RING_LEN - 1);
+			_ringCount -= n;
+			notifyAll();
+		}
+
+		_samplesRead += n;
+
+		if (_realTime) {
+			waitUntilPlayed(_samplesRead);
+		}
+		return n;
+	}
+
+	// Add samples to the ring, waiting for the input side to make room if
+	// needed. Returns false if the backend was stopped.
+	private synchronized boolean put(short[] samples, int numSamples) {
+		int idx = 0;
+		while (idx < numSamples) {
+			while (_ringCount == RING_LEN && !_stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			if (_stopped) {
+				return false;
+			}
+
+			int n = Math.min(numSamples - idx, RING_LEN - _ringCount);
+			int end = _ringStart + _ringCount;
+			for (int i = 0; i < n; i++) {
+				_ring[(end + i) & (RING_LEN - 1)] = samples[idx + i];
+			}
+			_ringCount += n;
+			idx += n;
+			notifyAll();
+		}
+		return true;
+	}
+
+	// Sleep until numSamples samples worth of time has passed since start.
+	private void waitUntilPlayed(long numSamples) {
+		long due = _startNs + numSamples * 1000000000L / _sampleFrequency;
+		long delay = due - System.nanoTime();
+		if (delay > 0) {
+			try {
+				Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+			} catch (InterruptedException e) { }
+		}
+	}
+}
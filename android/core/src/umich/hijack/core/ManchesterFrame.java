@@ -0,0 +1,127 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.Arrays;
+
+/*
+ * A packet turned into the manchester half bits that go on the wire:
+ * the preamble, the start bit, the packet bits and the postamble.
+ *
+ * Packets are compiled into a frame once when they are queued, so the
+ * output thread only copies half bits out of the frame and never has to
+ * step through the packet or decide what part of the frame comes next.
+ * The half bits are packed one per bit, least significant first, with 1
+ * for HIGH and 0 for LOW. Each data bit is a pair of half bits: a 1 is
+ * HIGH then LOW and a 0 is LOW then HIGH.
+ *
+ * Frames are reused, so the storage is sized for the longest packet.
+ */
+
+final class ManchesterFrame {
+
+	// How many preamble bits to transmit. The last one is the start bit.
+	private final static int NUM_PREAMBLE_BITS = 20;
+	// How many low bits to send after the last byte of the packet. A 1
+	// bit follows them so the receiver knows the packet is over.
+	private final static int NUM_POSTAMBLE_BITS = 4;
+
+	// The values of the different critical bits in packet construction
+	private final static int START_BIT = 0;
+	private final static int PREAMBLE_BIT = 1;
+
+	private final static int MAX_HALF_BITS =
+			(NUM_PREAMBLE_BITS
+			 + (Packet.HEADER_LEN + Packet.MAX_PAYLOAD_LEN + Packet.CRC_LEN) * 8
+			 + NUM_POSTAMBLE_BITS + 1) * 2;
+
+	private final long[] _halfBits = new long[(MAX_HALF_BITS + 63) / 64];
+	// Half bits in the frame
+	private int _length;
+	// The next half bit to hand out
+	private int _position;
+
+	// The packet this frame was compiled from. Kept so that it can be
+	// released once the frame has gone out.
+	private Packet _packet;
+
+	// Turn p into half bits. Replaces whatever the frame held before.
+	void compile (Packet p) {
+		_packet = p;
+		_length = 0;
+		_position = 0;
+		Arrays.fill(_halfBits, 0);
+
+		for (int i = 1; i < NUM_PREAMBLE_BITS; i++) {
+			addBit(PREAMBLE_BIT);
+		}
+		addBit(START_BIT);
+
+		p.compressToBuffer();
+		int numBits = p.getWireLength() * 8;
+		for (int i = 0; i < numBits; i++) {
+			addBit(p.getBit());
+		}
+
+		// Low for the whole postamble, then the closing 1
+		_length += NUM_POSTAMBLE_BITS * 2;
+		addBit(1);
+	}
+
+	// Copy up to count half bits into out starting at offset. Returns how
+	// many were copied, which is less than count only at the end of the
+	// frame.
+	int read (SignalLevel[] out, int offset, int count) {
+		int n = Math.min(count, _length - _position);
+		long[] halfBits = _halfBits;
+		int position = _position;
+
+		for (int i = 0; i < n; i++) {
+			long word = halfBits[position >>> 6];
+			out[offset + i] = ((word >>> position) & 1) != 0
+					? SignalLevel.HIGH : SignalLevel.LOW;
+			position++;
+		}
+
+		_position = position;
+		return n;
+	}
+
+	boolean isDone () {
+		return _position == _length;
+	}
+
+	Packet getPacket () {
+		return _packet;
+	}
+
+	// Forget the packet so the frame can be reused
+	void clear () {
+		_packet = null;
+		_length = 0;
+		_position = 0;
+	}
+
+	private void addBit (int bit) {
+		// The first half is the bit itself, the second half the opposite
+		int pair = (bit == 1) ? 0x1 : 0x2;
+		_halfBits[_length >>> 6] |= (long) pair << _length;
+		_length += 2;
+	}
+}
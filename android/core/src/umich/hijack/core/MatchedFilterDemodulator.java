@@ -0,0 +1,251 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.util.Arrays;
+
+/*
+ * Finds edges with a filter matched to the shape of a HiJack transition.
+ *
+ * HiJack sends manchester bits back to the phone by toggling a pin, so each
+ * transition is a step in the signal, and the shortest time between steps
+ * is half of a bit at the IO frequency. A step is best found by comparing
+ * the average of the samples just after it with the average of the samples
+ * just before it. This filter does that with two windows of _window samples
+ * each, where _window is half of the shortest time between steps:
+ *
+ *   y[n] = sum(x[n-W+1] .. x[n]) - sum(x[n-2W+1] .. x[n-W])
+ *
+ * Each window is a running sum, so this costs a couple of additions per
+ * sample. Because it averages over many samples, noise that would trip a
+ * sample to sample detector mostly cancels out.
+ *
+ * The filter output peaks (positive for rising, negative for falling) a
+ * window after each step. The edge is reported at the sample with the
+ * largest output once the output drops back below the release threshold,
+ * and the time between edges is measured between those peak samples. All
+ * peaks are delayed by the same amount, so the times are unaffected. The
+ * peak is located to a fraction of a sample by fitting a parabola through
+ * the largest output and the outputs on either side of it.
+ *
+ * The detection threshold is half of the recent peak filter output. The
+ * release threshold is half of that, which gives the detector hysteresis.
+ */
+
+public class MatchedFilterDemodulator implements Demodulator {
+
+	// Number of fractional bits in the envelope
+	private final static int ENV_SHIFT = 8;
+
+	// The envelope decays by 1/2^ENVELOPE_DECAY_SHIFT each sample
+	private final static int ENVELOPE_DECAY_SHIFT = 11;
+
+	// Below this filter output (per sample of the window) there is no
+	// HiJack signal and no edges are reported.
+	private final static int MIN_ENVELOPE = 500;
+
+	// Length of each of the two filter windows, in samples. Changed by
+	// setIoFrequency from another thread and picked up at the start of the
+	// next call to process.
+	private volatile int _pendingWindow = 8;
+	private int _window = 0;
+
+	// The last 2 * _window samples
+	private int[] _history;
+	private int _historyIdx;
+
+	// Running sums of the newer and older window
+	private int _newerSum;
+	private int _olderSum;
+
+	// Recent peak of the absolute filter output, in fixed point
+	private int _envelope;
+
+	// The edge currently being tracked. _inPeak is set while the filter
+	// output is above the release threshold.
+	private boolean _inPeak;
+	private EdgeType _peakEdge;
+	private int _peakValue;
+	private int _peakDistance;
+
+	// Filter outputs just before and just after the largest one, for
+	// finding where the peak actually is between samples.
+	private int _peakBefore;
+	private int _peakAfter;
+	private boolean _havePeakAfter;
+
+	// Filter output for the previous sample
+	private int _lastMagnitude;
+
+	// Keep track of the last edge found so we can look for the opposite next
+	private EdgeType _lastEdge;
+
+	// Fixed point number of samples since the last reported edge
+	private int _edgeDistance;
+
+	private volatile int _reportedEnvelope = 0;
+
+	// One sample in the fixed point edge timing
+	private final static int ONE = IncomingSink.PERIOD_ONE_SAMPLE;
+
+	// Stop counting the time since the last edge here so it cannot overflow
+	private final static int MAX_EDGE_DISTANCE = Integer.MAX_VALUE - ONE;
+
+	public MatchedFilterDemodulator () {
+		reset();
+	}
+
+	@Override
+	public void setIoFrequency (int sampleFrequency, int ioFrequency) {
+		// The shortest time between steps is one half bit, which is the
+		// segment length of a manchester half bit pair divided by two.
+		int halfBit = sampleFrequency / ioFrequency / 2;
+		_pendingWindow = Math.max(2, halfBit / 2);
+	}
+
+	@Override
+	public void reset () {
+		_window = _pendingWindow;
+		if (_history == null || _history.length != _window * 2) {
+			_history = new int[_window * 2];
+		} else {
+			Arrays.fill(_history, 0);
+		}
+		_historyIdx = 0;
+		_newerSum = 0;
+		_olderSum = 0;
+		_inPeak = false;
+		_peakEdge = EdgeType.RISING;
+		_peakValue = 0;
+		_peakDistance = 0;
+		_lastMagnitude = 0;
+		_lastEdge = EdgeType.FALLING;
+		_edgeDistance = 0;
+	}
+
+	@Override
+	public void process (short[] buf, int offset, int numSamples, EdgeBatch edges) {
+		if (_window != _pendingWindow) {
+			reset();
+		}
+
+		int window = _window;
+		int[] history = _history;
+		int historyLen = history.length;
+		int envelope = _envelope;
+
+		for (int i = offset; i < offset + numSamples; i++) {
+			int inSample = buf[i];
+
+			if (_edgeDistance < MAX_EDGE_DISTANCE) {
+				_edgeDistance += ONE;
+			}
+
+			// Slide both windows forward by one sample. The sample leaving
+			// the newer window moves into the older window.
+			int middleIdx = _historyIdx + window;
+			if (middleIdx >= historyLen) {
+				middleIdx -= historyLen;
+			}
+			int oldest = history[_historyIdx];
+			int middle = history[middleIdx];
+
+			_olderSum += middle - oldest;
+			_newerSum += inSample - middle;
+
+			history[_historyIdx] = inSample;
+			if (++_historyIdx == historyLen) {
+				_historyIdx = 0;
+			}
+
+			// Average difference between the windows
+			int y = (_newerSum - _olderSum) / window;
+			int magnitude = Math.abs(y);
+
+			if ((magnitude << ENV_SHIFT) > envelope) {
+				envelope = magnitude << ENV_SHIFT;
+			} else {
+				envelope -= envelope >> ENVELOPE_DECAY_SHIFT;
+			}
+
+			int peak = envelope >> ENV_SHIFT;
+			int threshold = peak >> 1;
+			int release = threshold >> 1;
+
+			if (_inPeak) {
+				// Follow the peak of the step response until it dies down
+				if (magnitude > _peakValue) {
+					_peakBefore = _lastMagnitude;
+					_peakValue = magnitude;
+					_peakDistance = _edgeDistance;
+					_havePeakAfter = false;
+				} else if (!_havePeakAfter) {
+					_peakAfter = magnitude;
+					_havePeakAfter = true;
+				}
+
+				if (magnitude < release) {
+					_inPeak = false;
+					int peakTime = _peakDistance + peakOffset(_peakBefore,
+					                                          _peakValue,
+					                                          _peakAfter);
+					edges.add(peakTime, _peakEdge);
+					_edgeDistance -= peakTime;
+					_lastEdge = _peakEdge;
+				}
+
+			} else if (magnitude > threshold && peak >= MIN_ENVELOPE) {
+				EdgeType edge = (y > 0) ? EdgeType.RISING : EdgeType.FALLING;
+
+				// Edges must alternate
+				if (edge != _lastEdge) {
+					_inPeak = true;
+					_peakEdge = edge;
+					_peakBefore = _lastMagnitude;
+					_peakValue = magnitude;
+					_peakDistance = _edgeDistance;
+					_havePeakAfter = false;
+				}
+			}
+
+			_lastMagnitude = magnitude;
+		}
+
+		_envelope = envelope;
+		_reportedEnvelope = envelope >> ENV_SHIFT;
+	}
+
+	// Where the top of the parabola through three evenly spaced values is,
+	// relative to the middle one, in fixed point samples. The middle value
+	// is the largest, so the result is between -1/2 and 1/2 of a sample.
+	private static int peakOffset (int before, int peak, int after) {
+		int curvature = before - 2*peak + after;
+		if (curvature >= 0) {
+			// Flat top, keep the peak where it is
+			return 0;
+		}
+		return (int) (((long) (before - after) << IncomingSink.PERIOD_FRACTION_BITS)
+		              / (2 * curvature));
+	}
+
+	// Recent peak of the filter output. This is roughly the size of a step
+	// in the input signal.
+	public int getEnvelope () {
+		return _reportedEnvelope;
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * The frames waiting to go out of the headset jack.
+ *
+ * Any thread can queue packets (the app, and the audio processing thread
+ * for acks), but only the output thread takes them off, so this is a
+ * multi-producer, single-consumer queue. It is bounded and takes no locks.
+ *
+ * There are two lanes. Frames in the CONTROL lane (acks and other short
+ * control packets) go out before any waiting BULK frame. A frame already
+ * on the wire is never cut off. Without this, an ack could sit behind a
+ * backlog of app data long enough for the other side to resend the packet
+ * it acknowledges.
+ *
+ * Each lane is a ring of slots, each with its own ManchesterFrame and a
+ * sequence number that says whose turn the slot is (the design from
+ * Dmitry Vyukov's bounded MPMC queue). A producer claims the next slot by
+ * advancing the enqueue position with a compare and set, compiles the
+ * packet straight into the slot's frame, and then publishes it by setting
+ * the sequence. The consumer sends from the frame in place and only frees
+ * the slot when the frame has gone out, so nothing is allocated or copied.
+ * A lane's depth includes the frame being sent from it.
+ *
+ * What happens when a lane is full is set per lane with OverflowPolicy.
+ */
+
+public class OutgoingQueue {
+
+	public enum Lane { CONTROL, BULK };
+
+	public enum OverflowPolicy {
+		// Drop the new packet and count it
+		DROP,
+		// Wait for the output thread to make room. Do not use this for a
+		// lane that the audio processing thread sends on.
+		BLOCK,
+		// Throw IllegalStateException, like Queue.add
+		FAIL
+	};
+
+	// How long a blocked producer waits before looking again
+	private final static long BLOCK_WAIT_NS = 1000000;
+
+	private final static Lane[] LANES = Lane.values();
+
+	private static final class Ring {
+		final int capacity;
+		final int mask;
+		final ManchesterFrame[] frames;
+		// The position a slot is waiting for: pos while free for the
+		// producer at pos, pos+1 once the frame for pos is published.
+		final AtomicLongArray sequence;
+
+		final AtomicLong enqueuePos = new AtomicLong();
+		// Only written by the consumer
+		volatile long dequeuePos = 0;
+
+		volatile OverflowPolicy policy = OverflowPolicy.DROP;
+
+		final AtomicInteger highWater = new AtomicInteger();
+		final AtomicLong dropped = new AtomicLong();
+
+		Ring (int capacity) {
+			if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+				throw new IllegalArgumentException(
+						"Queue capacity must be a power of two");
+			}
+			this.capacity = capacity;
+			mask = capacity - 1;
+			frames = new ManchesterFrame[capacity];
+			sequence = new AtomicLongArray(capacity);
+			for (int i = 0; i < capacity; i++) {
+				frames[i] = new ManchesterFrame();
+				sequence.set(i, i);
+			}
+		}
+
+		int depth () {
+			// Read the consumer side first so the difference can not
+			// come out negative
+			long dequeue = dequeuePos;
+			return (int) (enqueuePos.get() - dequeue);
+		}
+	}
+
+	private final Ring[] _rings;
+
+	// The ring the frame handed out by take() came from. Only used by the
+	// consumer.
+	private Ring _takenRing = null;
+
+	// Capacities are per lane and must be powers of two
+	public OutgoingQueue (int controlCapacity, int bulkCapacity) {
+		_rings = new Ring[LANES.length];
+		_rings[Lane.CONTROL.ordinal()] = new Ring(controlCapacity);
+		_rings[Lane.BULK.ordinal()] = new Ring(bulkCapacity);
+	}
+
+	public void setOverflowPolicy (Lane lane, OverflowPolicy policy) {
+		_rings[lane.ordinal()].policy = policy;
+	}
+
+	public OverflowPolicy getOverflowPolicy (Lane lane) {
+		return _rings[lane.ordinal()].policy;
+	}
+
+	///////////////////
+	// Producers
+	///////////////////
+
+	// Compile p into a frame on lane. Returns false if the lane was full
+	// and the policy is DROP. The caller still owns p in that case.
+	public boolean offer (Packet p, Lane lane) {
+		Ring r = _rings[lane.ordinal()];
+
+		while (true) {
+			long pos = r.enqueuePos.get();
+			int idx = (int) pos & r.mask;
+			long dif = r.sequence.get(idx) - pos;
+
+			if (dif == 0) {
+				if (r.enqueuePos.compareAndSet(pos, pos + 1)) {
+					r.frames[idx].compile(p);
+					r.sequence.set(idx, pos + 1);
+					_updateHighWater(r);
+					return true;
+				}
+			} else if (dif < 0) {
+				// The slot still holds the frame from a lap ago: full
+				switch (r.policy) {
+					case DROP:
+						r.dropped.incrementAndGet();
+						return false;
+					case FAIL:
+						throw new IllegalStateException(
+								"Outgoing " + lane + " queue full");
+					case BLOCK:
+						LockSupport.parkNanos(BLOCK_WAIT_NS);
+						break;
+				}
+			}
+			// Otherwise another producer took this slot first. Try the next.
+		}
+	}
+
+	///////////////////
+	// Consumer
+	///////////////////
+
+	// The next frame to send, control lane first, or null if nothing has
+	// been published. The frame stays in its slot until done() is called,
+	// and take() must not be called again before that.
+	ManchesterFrame take () {
+		for (int i = 0; i < _rings.length; i++) {
+			Ring r = _rings[i];
+			long pos = r.dequeuePos;
+			int idx = (int) pos & r.mask;
+			if (r.sequence.get(idx) == pos + 1) {
+				_takenRing = r;
+				return r.frames[idx];
+			}
+		}
+		return null;
+	}
+
+	// The frame from take() has gone out. Frees its slot for producers.
+	void done () {
+		Ring r = _takenRing;
+		_takenRing = null;
+
+		long pos = r.dequeuePos;
+		int idx = (int) pos & r.mask;
+		r.frames[idx].clear();
+		r.dequeuePos = pos + 1;
+		r.sequence.set(idx, pos + r.capacity);
+	}
+
+	// True if no lane has a frame queued or being sent. Claimed frames that
+	// are still being compiled count as queued.
+	public boolean isEmpty () {
+		for (int i = 0; i < _rings.length; i++) {
+			if (_rings[i].depth() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	///////////////////
+	// Metrics
+	///////////////////
+
+	public int getCapacity (Lane lane) {
+		return _rings[lane.ordinal()].capacity;
+	}
+
+	// Frames queued on lane, including the one being sent
+	public int getDepth (Lane lane) {
+		return _rings[lane.ordinal()].depth();
+	}
+
+	// The deepest lane has been since the last reset
+	public int getHighWater (Lane lane) {
+		return _rings[lane.ordinal()].highWater.get();
+	}
+
+	public void resetHighWater (Lane lane) {
+		_rings[lane.ordinal()].highWater.set(0);
+	}
+
+	// Packets dropped because lane was full
+	public long getDroppedCount (Lane lane) {
+		return _rings[lane.ordinal()].dropped.get();
+	}
+
+	private static void _updateHighWater (Ring r) {
+		int depth = r.depth();
+		while (true) {
+			int high = r.highWater.get();
+			if (depth <= high || r.highWater.compareAndSet(high, depth)) {
+				return;
+			}
+		}
+	}
+}
@@ -18,8 +18,13 @@
 package umich.hijack.core;
 
 public interface OutgoingSource {
-	// Returns a 1 (true) or 0 (false) to indicate
-	// what the next value the audio system should output
-	// should be.
-	SignalLevel getNextManchesterBit();
+	// Fills bits[offset] to bits[offset+count-1] with the next manchester
+	// half bits the audio system should output, in order. FLOATING when
+	// there is nothing to send.
+	void getNextManchesterBits(SignalLevel[] bits, int offset, int count);
+
+	// Returns true if there is a packet being transmitted or waiting to
+	// be transmitted. Used to send audio in smaller chunks while there is
+	// data to get out.
+	boolean isTransmitting();
 }
@@ -0,0 +1,128 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Decides how much audio the output thread should render at a time.
+ *
+ * Anything written to the audio track has to play out before a newly queued
+ * packet can start, so the amount of audio sitting in the track is latency
+ * for every packet we send. The scheduler keeps track of how many frames
+ * have been written and compares that with the playback head to know how
+ * much is still queued. The output thread only writes more when that stays
+ * under the latency budget.
+ *
+ * When a packet is waiting or being sent the output is rendered in small
+ * chunks so the packet starts as soon as possible. When idle, larger chunks
+ * are used to keep the per write overhead down.
+ */
+
+public class OutputScheduler {
+
+	// Smallest chunk, in manchester half bits. Must be even so that chunks
+	// always end on a bit pair boundary.
+	private final static int MIN_BITS = 8;
+
+	private volatile int _sampleFrequency;
+
+	// Largest chunk the output buffers can hold, in half bits
+	private final int _maxBits;
+
+	// How much audio we want queued in the audio track
+	private volatile int _latencyMs;
+	private volatile int _latencyBudgetFrames;
+
+	// The audio track needs at least this much queued to play without
+	// underruns, regardless of the latency budget.
+	private int _minimumFrames = 0;
+
+	// Total frames handed to the audio track since the last reset. This is
+	// compared against the playback head, which also counts in frames and
+	// wraps the same way an int does.
+	private int _framesWritten = 0;
+
+	public OutputScheduler (int sampleFrequency, int maxBits, int latencyMs) {
+		_sampleFrequency = sampleFrequency;
+		_maxBits = maxBits & ~1;
+		setLatencyBudget(latencyMs);
+	}
+
+	public void setLatencyBudget (int latencyMs) {
+		_latencyMs = latencyMs;
+		_latencyBudgetFrames = (int) ((long) _sampleFrequency * latencyMs / 1000);
+	}
+
+	public int getLatencyBudget () {
+		return _latencyMs;
+	}
+
+	// Only call while the output thread is stopped.
+	public void setSampleFrequency (int sampleFrequency) {
+		_sampleFrequency = sampleFrequency;
+		setLatencyBudget(_latencyMs);
+	}
+
+	public void setMinimumFrames (int frames) {
+		_minimumFrames = frames;
+	}
+
+	// Call when a new audio track starts so the playback head is back at 0.
+	public void reset () {
+		_framesWritten = 0;
+	}
+
+	// Returns how many half bits to render next. busy should be true when
+	// a packet is queued or being transmitted. segmentLength is the number
+	// of frames in one pair of half bits.
+	public int chunkBits (boolean busy, int segmentLength) {
+		if (busy) {
+			return Math.min(MIN_BITS, _maxBits);
+		}
+
+		// When idle, fill up to half of the budget at a time so there is
+		// always at least that much left playing while we render the next
+		// chunk.
+		int pairs = (budgetFrames() / 2) / segmentLength;
+		int bits = pairs * 2;
+
+		if (bits < MIN_BITS) {
+			bits = MIN_BITS;
+		}
+		return Math.min(bits, _maxBits);
+	}
+
+	// Returns true if a chunk of numFrames frames can be written without
+	// going over the latency budget.
+	public boolean hasRoom (int numFrames, int playbackHead) {
+		int queued = _framesWritten - playbackHead;
+		return queued + numFrames <= budgetFrames() || queued <= 0;
+	}
+
+	// Frames currently queued in the audio track
+	public int framesQueued (int playbackHead) {
+		return _framesWritten - playbackHead;
+	}
+
+	public void wroteFrames (int numFrames) {
+		_framesWritten += numFrames;
+	}
+
+	private int budgetFrames () {
+		return Math.max(_latencyBudgetFrames, _minimumFrames);
+	}
+}
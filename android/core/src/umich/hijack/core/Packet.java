@@ -1,6 +1,6 @@
 package umich.hijack.core;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 public class Packet {
 
@@ -14,25 +14,59 @@ public class Packet {
 	public int sentCount;        // The number of times this packet has been
 	                             // sent.
 	public PacketType typeId;    // The ID of the functional use of the packet
-	public int[] data;           // The packet payload
+	public boolean crc;          // Set to true if the packet ends in a CRC-16
+	                             // instead of the one byte checksum.
 
 	// The seq no keeps track of this packet so we can check for duplicates
 	// and for which packet is being acked
 	private int _seqNo;
 
-	// Storage for a packet in raw buffer form. This is used when receiving
-	// a packet (each bit is stored) and when transmitting a packet (the buffer
-	// is filled from the fields in the packet).
-	private final int[] _buf;
-	// Which bit is currently being accessed in the raw buffer
-	private int _bufIdx;
+	// The packet in raw form: the header bytes, the payload and the
+	// checksum. The payload is stored here directly (see getData and
+	// setData), so nothing is copied when a packet is received or sent.
+	private final byte[] _buf;
+
+	// Shift register for the byte currently being received or sent. Bits
+	// go out and come in least significant bit first, so when receiving
+	// each new bit enters at the top and after 8 bits the register holds
+	// the byte. When sending the register is loaded with a byte and shifted
+	// down one bit at a time.
+	private int _shift;
+	// How many bits are in _shift
+	private int _shiftBits;
+	// Bytes received so far, or the next byte to send. Can go past the end
+	// of _buf when receiving a packet that is too long.
+	private int _byteIdx;
+
+	// The additive checksum and the CRC of the bytes received or sent so
+	// far. Both are updated as each byte completes so that checking a
+	// received packet or appending the trailer to an outgoing one does not
+	// need another pass over the buffer.
+	private int _sum;
+	private int _crc;
+
+	// The pool this packet goes back to when released, or null if it was
+	// not taken from a pool
+	private final PacketPool _pool;
+
+	// Completed by PacketDispatch when this packet is acked, for packets
+	// sent with sendReliable
+	PacketFuture ackFuture;
+	// Completed by PacketDispatch when this packet has been sent, for
+	// packets sent with send
+	PacketFuture sentFuture;
 
 
 	private final static int MAX_PACKET_LEN = 256;
 	private final static int MIN_PACKET_LEN = 2;
 
+	// PacketType.values() makes a new array every call
+	private final static PacketType[] TYPES = PacketType.values();
+
 	public final static int PKT_TYPE_OFFSET = 0;
-	public final static int PKT_TYPE_MASK = 0xF;
+	public final static int PKT_TYPE_MASK = 0x7;
+	public final static int PKT_CRC_OFFSET = 3;
+	public final static int PKT_CRC_MASK = 0x1 << 3;
 	public final static int PKT_RETRIES_OFFSET = 4;
 	public final static int PKT_RETRIES_MASK = 0x3 << 4;
 	public final static int PKT_ACKREQ_OFFSET = 6;
@@ -42,54 +76,139 @@ public class Packet {
 
 	public final static int HEADER_LEN = 2;
 	public final static int CHECKSUM_LEN = 1;
+	public final static int CRC_LEN = 2;
 	public final static int DISPATCH_BYTE_IDX = 0;
 	public final static int SEQ_NO_IDX = 1;
 
+	// The most payload that fits in a packet along with the header and
+	// either trailer
+	public final static int MAX_PAYLOAD_LEN =
+			MAX_PACKET_LEN - HEADER_LEN - CRC_LEN;
+
+	// CRC-16 CCITT: polynomial 0x1021, initial value 0xFFFF, sent high byte
+	// first. Running it over a whole frame including the CRC bytes leaves 0
+	// when the frame is good. The firmware framing uses the same table.
+	private final static int CRC_INIT = 0xFFFF;
+	private final static int[] CRC_TABLE = _makeCrcTable();
+
 	public Packet () {
-		data = new int[MAX_PACKET_LEN];
-		_buf = new int[MAX_PACKET_LEN+2];
+		this(null);
+	}
+
+	Packet (PacketPool pool) {
+		_pool = pool;
+		_buf = new byte[MAX_PACKET_LEN];
+		reset();
+	}
+
+	// Put every field back the way a new packet has them. Used when a
+	// packet is reused.
+	public void clear () {
+		length = 0;
+		ackRequested = false;
+		ackReceived = false;
+		powerDown = false;
+		sentCount = 0;
+		typeId = null;
+		crc = false;
+		_seqNo = 0;
+		ackFuture = null;
+		sentFuture = null;
+		reset();
+	}
+
+	// Make this packet a copy of p: the fields, the sequence number and the
+	// payload. For keeping a received packet past the listener call.
+	public void copyFrom (Packet p) {
+		length = p.length;
+		ackRequested = p.ackRequested;
+		ackReceived = p.ackReceived;
+		powerDown = p.powerDown;
+		sentCount = p.sentCount;
+		typeId = p.typeId;
+		crc = p.crc;
+		_seqNo = p._seqNo;
+		System.arraycopy(p._buf, 0, _buf, 0, HEADER_LEN + p.length);
 		reset();
 	}
 
+	// Give the packet back to the pool it came from once its owner is done
+	// with it. Does nothing for packets that were not taken from a pool.
+	public void release () {
+		if (_pool != null) {
+			_pool.release(this);
+		}
+	}
+
+	PacketPool getPool () {
+		return _pool;
+	}
+
 	public void setSequenceNumber (int seqno) {
 		_seqNo = seqno;
 	}
 
+	// 0-255 as it goes on the wire. For an ack this is the packet being
+	// acked, or -1 for an ack that did not say.
+	public int getSequenceNumber () {
+		return (_seqNo < 0) ? -1 : _seqNo & 0xFF;
+	}
+
+
+	///////////
+	// Payload access
+	///////////
+
+	// Byte i of the payload, 0-255
+	public int getData (int i) {
+		return _buf[HEADER_LEN + i] & 0xFF;
+	}
+
+	// Set byte i of the payload. Only the low 8 bits of value are used.
+	public void setData (int i, int value) {
+		_buf[HEADER_LEN + i] = (byte) value;
+	}
+
+	// A read-only view of the length bytes of payload. The view shares the
+	// packet's storage, so it is only valid while the packet is, which for
+	// a received packet is until the listener returns.
+	public ByteBuffer getPayload () {
+		return ByteBuffer.wrap(_buf, HEADER_LEN, length).slice().asReadOnlyBuffer();
+	}
+
 
 	///////////
 	// Functions for receiving a packet
 	///////////
 
 	public void reset () {
-		Arrays.fill(_buf, 0);
-		_bufIdx = 0;
+		_shift = 0;
+		_shiftBits = 0;
+		_byteIdx = 0;
+		_sum = 0;
+		_crc = CRC_INIT;
 	}
 
 	// Add a bit to the internal receive buffer.
 	public void addBit (int val) {
-		if (val == 0) {
-			// Just need to increment the offset for a 0 bit
-			_bufIdx++;
-			return;
-		}
+		_shift = (_shift >>> 1) | ((val & 0x1) << 7);
 
-		// Add a 1 to the correct position
-		int byteIdx = _bufIdx / 8;
-		int bitIdx = _bufIdx - (byteIdx*8);
-
-		if (byteIdx > MAX_PACKET_LEN) {
-			// TODO: handle long packets better than this
-			return;
+		if (++_shiftBits == 8) {
+			if (_byteIdx < MAX_PACKET_LEN) {
+				_buf[_byteIdx] = (byte) _shift;
+			}
+			_sum += _shift;
+			_crc = _crcUpdate(_crc, _shift);
+			// TODO: handle long packets better than dropping them
+			_byteIdx++;
+			_shiftBits = 0;
 		}
-
-		_buf[byteIdx] |= (1 << bitIdx);
-		_bufIdx++;
 	}
 
 	// Parses _buf to fill in the packet fields.
 	// Returns true if the packet is valid, false if not.
 	public boolean processReceivedPacket () {
-		int numBytes = _bufIdx / 8; // how many bytes we received in the last packet
+		int numBytes = _byteIdx; // how many bytes we received in the last packet
 
 		if (numBytes < MIN_PACKET_LEN) {
 			// This is an invalid packet.
@@ -101,53 +220,63 @@ public class Packet {
 		}
 
 		// Disect header
-		powerDown    = ((_buf[DISPATCH_BYTE_IDX] & PKT_POWERDOWN_MASK) >> PKT_POWERDOWN_OFFSET) == 1;
-		ackRequested = ((_buf[DISPATCH_BYTE_IDX] & PKT_ACKREQ_MASK) >> PKT_ACKREQ_OFFSET) == 1;
-		sentCount    = ((_buf[DISPATCH_BYTE_IDX] & PKT_RETRIES_MASK) >> PKT_RETRIES_OFFSET) + 1;
-		typeId       = PacketType.values()[(_buf[DISPATCH_BYTE_IDX] & PKT_TYPE_MASK)];
+		int header = _buf[DISPATCH_BYTE_IDX] & 0xFF;
+		powerDown    = ((header & PKT_POWERDOWN_MASK) >> PKT_POWERDOWN_OFFSET) == 1;
+		ackRequested = ((header & PKT_ACKREQ_MASK) >> PKT_ACKREQ_OFFSET) == 1;
+		sentCount    = ((header & PKT_RETRIES_MASK) >> PKT_RETRIES_OFFSET) + 1;
+		crc          = ((header & PKT_CRC_MASK) >> PKT_CRC_OFFSET) == 1;
+
+		// Types this side does not know about (the reserved one, or a
+		// corrupted header) are invalid
+		int type = header & PKT_TYPE_MASK;
+		typeId       = (type < TYPES.length) ? TYPES[type] : PacketType.INVALID;
+
+		int trailerLen = _trailerLength();
 
 		if (typeId == PacketType.ACK) {
-			// Ack packets are just a header byte and a checksum
+			// Acks carry the sequence number of the packet they ack and
+			// no payload. Older senders leave the sequence number out.
 			length = 0;
+			_seqNo = (numBytes >= HEADER_LEN + trailerLen)
+					? _buf[SEQ_NO_IDX] & 0xFF : -1;
 		} else {
 			// Set seq no
-			_seqNo = _buf[SEQ_NO_IDX];
+			_seqNo = _buf[SEQ_NO_IDX] & 0xFF;
 
-			// Set length
-			length = numBytes - HEADER_LEN - CHECKSUM_LEN;
-
-			// Copy data
-			for (int i=0; i<length; i++) {
-				data[i] = _buf[i+HEADER_LEN];
+			// The payload is already in place after the header
+			length = numBytes - HEADER_LEN - trailerLen;
+			if (length < 0) {
+				// Too short to hold the sequence number and the trailer
+				return false;
 			}
 		}
 
-		// Check checksum
-		if (_calculateChecksum() == _buf[numBytes-CHECKSUM_LEN]) {
+		// Check checksum. The sum and the CRC were kept up to date as the
+		// bytes came in. The sum includes the checksum byte itself, so take
+		// it back out. The CRC comes out 0 when run over a good frame.
+		int last = _buf[numBytes-1] & 0xFF;
+		boolean valid;
+		if (crc) {
+			valid = numBytes > CRC_LEN && _crc == 0;
+		} else {
+			valid = ((_sum - last) & 0xFF) == last;
+		}
 
-//System.out.println("pkt checksum passed");
+		if (valid) {
 
-// Print the received packet
-System.out.println("PACKET");
-System.out.println("   power down: " + powerDown);
-System.out.println("   ack req:    " + ackRequested);
-System.out.println("   sent count: " + sentCount);
-System.out.println("   type id:    " + typeId);
-System.out.print  ("   data:       ");
-for (int i=0; i<length; i++) {
-	System.out.print(Integer.toHexString(data[i]) + " ");
-}
-System.out.println();
+			Trace.log(Trace.Level.DEBUG,
+			          "Received packet: header 0x%02x, seq %d, length %d, checksum 0x%02x",
+			          header, _seqNo, length, last);
 
 			return true;
 		} else {
 
-System.out.println("pkt FAILED checksum");
-for (int i=0; i<numBytes; i++) {
-	System.out.print("0x" + Integer.toHexString(_buf[i]) + " ");
-}
-System.out.println();
-System.out.println("calc checksum: " + Integer.toHexString(_calculateChecksum()));
+			if (Trace.isEnabled(Trace.Level.INFO)) {
+				Trace.log(Trace.Level.INFO,
+				          "Packet failed checksum: %d bytes, header 0x%02x, checksum 0x%02x, calculated 0x%04x",
+				          numBytes, header, last,
+				          (crc) ? _crc : ((_sum - last) & 0xFF));
+			}
 
 			return false;
 		}
@@ -157,49 +286,92 @@ System.out.println("calc checksum: " + Integer.toHexString(_calculateChecksum())
 	// can be transmitted to the peripheral.
 	public void compressToBuffer () {
 
-		_buf[DISPATCH_BYTE_IDX] = 0;
-		_buf[DISPATCH_BYTE_IDX] |= (((powerDown)?1:0 << PKT_POWERDOWN_OFFSET) & PKT_POWERDOWN_MASK);
-		_buf[DISPATCH_BYTE_IDX] |= (((ackRequested)?1:0 << PKT_ACKREQ_OFFSET) & PKT_ACKREQ_MASK);
-		_buf[DISPATCH_BYTE_IDX] |= ((sentCount << PKT_RETRIES_OFFSET) & PKT_RETRIES_MASK);
-		_buf[DISPATCH_BYTE_IDX] |= (typeId.ordinal() & PKT_TYPE_MASK);
+		int header = 0;
+		header |= (((powerDown)?1:0) << PKT_POWERDOWN_OFFSET) & PKT_POWERDOWN_MASK;
+		header |= (((ackRequested)?1:0) << PKT_ACKREQ_OFFSET) & PKT_ACKREQ_MASK;
+		header |= ((sentCount << PKT_RETRIES_OFFSET) & PKT_RETRIES_MASK);
+		header |= (((crc)?1:0) << PKT_CRC_OFFSET) & PKT_CRC_MASK;
+		header |= (typeId.ordinal() & PKT_TYPE_MASK);
+		_buf[DISPATCH_BYTE_IDX] = (byte) header;
 
-		if (typeId != PacketType.ACK) {
-			_buf[SEQ_NO_IDX] = _seqNo;
-		}
+		// For an ack this is the packet being acked
+		_buf[SEQ_NO_IDX] = (byte) _seqNo;
 
-		for (int i=0; i<length; i++) {
-			_buf[i+HEADER_LEN] = data[i];
-		}
+		// The payload is already in place after the header. The checksum
+		// or CRC is worked out as the bytes go out and appended by getBit.
 
-		_buf[length+HEADER_LEN] = _calculateChecksum();
+		_byteIdx = 0;
+		_shiftBits = 0;
+		_sum = 0;
+		_crc = CRC_INIT;
+	}
 
-		_bufIdx = 0;
+	// Bytes on the wire once compressed: the header, the payload and the
+	// checksum or CRC. getBit can be called eight times this many times.
+	public int getWireLength () {
+		return length + HEADER_LEN + _trailerLength();
 	}
 
 	// Returns the next bit in the packet buffer. Throws
-	// IndexOutOfBoundsException when there are no more bits in the array.
+	// IndexOutOfBoundsException if called again after the last bit, see
+	// getWireLength.
 	public int getBit () throws IndexOutOfBoundsException {
 
-		// Check if we are past the end of the buffer
-		if (_bufIdx >= ((length+2)*8)) {
-			throw new IndexOutOfBoundsException();
+		if (_shiftBits == 0) {
+			// Check if we are past the end of the buffer. The checksum goes
+			// out after the header and data.
+			int bodyLen = length+HEADER_LEN;
+			if (_byteIdx >= bodyLen+_trailerLength()) {
+				throw new IndexOutOfBoundsException();
+			}
+
+			if (_byteIdx == bodyLen) {
+				// Every byte before the trailer has gone into the sum and
+				// the CRC, so the trailer can be filled in now
+				if (crc) {
+					_buf[bodyLen]   = (byte) (_crc >>> 8);
+					_buf[bodyLen+1] = (byte) _crc;
+				} else {
+					_buf[bodyLen] = (byte) _sum;
+				}
+			}
+
+			_shift = _buf[_byteIdx++] & 0xFF;
+			_shiftBits = 8;
+
+			if (_byteIdx <= bodyLen) {
+				_sum += _shift;
+				_crc = _crcUpdate(_crc, _shift);
+			}
 		}
 
-		int byteIdx = _bufIdx / 8;
-		int bitIdx = _bufIdx - (byteIdx*8);
+		int bit = _shift & 0x1;
+		_shift >>>= 1;
+		_shiftBits--;
+
+		return bit;
+	}
 
-		_bufIdx++;
+	// Bytes after the payload: the checksum or the CRC
+	private int _trailerLength () {
+		return (crc) ? CRC_LEN : CHECKSUM_LEN;
+	}
 
-		return (_buf[byteIdx] >> bitIdx) & 0x1;
+	// Add one byte to a running CRC
+	private static int _crcUpdate (int crc, int b) {
+		return ((crc << 8) ^ CRC_TABLE[((crc >>> 8) ^ b) & 0xFF]) & 0xFFFF;
 	}
 
-	private int _calculateChecksum () {
-		// Calculate checksum and copy data
-		int sum = 0;
-		for (int i=0; i<length+HEADER_LEN; i++) {
-			sum += _buf[i];
+	private static int[] _makeCrcTable () {
+		int[] table = new int[256];
+		for (int i = 0; i < 256; i++) {
+			int c = i << 8;
+			for (int j = 0; j < 8; j++) {
+				c = ((c & 0x8000) != 0) ? (c << 1) ^ 0x1021 : c << 1;
+			}
+			table[i] = c & 0xFFFF;
 		}
-		return sum & 0xFF;
+		return table;
 	}
 
 
@@ -17,8 +17,66 @@
 
 package umich.hijack.core;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Sits between the services and the SerialDecoder. Incoming packets are
+ * acked if they ask for it and passed to the listeners for their type.
+ * Outgoing packets get a sequence number and are sent in order.
+ *
+ * Packets that ask for an ack are resent until they get one, with
+ * selective repeat: up to the window size of them can be waiting for
+ * acks at once, each with its own timer, and only the ones whose timer
+ * runs out are sent again. An ack names the sequence number it is for. The
+ * timeout follows the measured round trip time (see RttEstimator) and
+ * backs off with each retry. The retry count goes out in the header's
+ * retries bits, so a packet is given up on after MAX_RETRIES retries.
+ *
+ * Timers start when the transmitter reports a packet as sent (see
+ * sentPacket), so time spent waiting in the output queue does not count
+ * against the packet. Until the transmitter has reported a sent packet,
+ * they start when the packet is queued.
+ *
+ * The transmitter is never called with the lock held. Compiling a frame
+ * takes a while, and a full output queue can make the transmitter wait
+ * for the output thread. The output thread reports sent packets without
+ * taking the lock. Packets picked to go out are handed to the
+ * transmitter in order by one thread at a time. For the audio processing
+ * thread, that work is left to the timer thread.
+ *
+ * send, sendReliable and request return a PacketFuture, so many packets
+ * can be waiting without the caller tracking them. For request, the
+ * other side has to answer with a packet of the same type that carries
+ * the request's sequence number in its sequence number byte. A Matcher
+ * can check more than that, so that packets the other side sends on its
+ * own are not taken for the answer. The answer also counts as an ack for
+ * the request. Responses still go to the listeners for their type as
+ * well.
+ *
+ * Listeners for PacketType.GLOBAL get packets of every type, after the
+ * listeners for the packet's own type. Packets can also be consumed
+ * through the PacketPublisher for their type or for GLOBAL.
+ *
+ * Listeners are called on the thread that received the packet unless
+ * setListenerQueue is used, in which case each listener registered after
+ * that gets its own ListenerQueue and thread.
+ *
+ * A packet from the other side that was resent because our ack got lost
+ * is acked again but not passed on a second time. Sequence numbers seen
+ * are kept per type over the last DUPLICATE_WINDOW of them.
+ *
+ * Packets sent through here that ask for an ack are kept until they are
+ * acked or given up on, so they must not come from a PacketPool.
+ */
 
 public class PacketDispatch implements PktTransmitter, PktRecvCb, PktSentCb {
 
@@ -28,13 +86,53 @@ public class PacketDispatch implements PktTransmitter, PktRecvCb, PktSentCb {
 
 	private final static int MAX_PACKET_TYPES = 16;
 
+	// Acks that can be waiting to go out at once before the pool has to
+	// allocate
+	private final static int ACK_POOL_SIZE = 4;
+
+	// Sequence numbers are one byte. The window can cover at most half of
+	// them so the other side can tell a resent packet from a new one.
+	private final static int NUM_SEQ_NOS = 256;
+	public final static int MAX_WINDOW_SIZE = NUM_SEQ_NOS / 2;
+	private final static int DEFAULT_WINDOW_SIZE = 8;
+
+	// As many retries as the header can count
+	public final static int MAX_RETRIES =
+			Packet.PKT_RETRIES_MASK >> Packet.PKT_RETRIES_OFFSET;
+
+	// Retransmit timeouts. The first one is long since a packet can wait
+	// behind the rest of the window in the output queue and the audio
+	// buffers, and there is no round trip time yet.
+	private final static long INITIAL_TIMEOUT_MS = 2000;
+	private final static long MIN_TIMEOUT_MS = 100;
+	private final static long MAX_TIMEOUT_MS = 10000;
+
+	// How far back, in sequence numbers, resent packets from the other side
+	// are recognized. One bit per sequence number in a long.
+	public final static int DUPLICATE_WINDOW = 64;
+
 	/////////////////////
 	// Callbacks
 	/////////////////////
 
 	// List of packet callback functions that are waiting for packets of
-	// various types to come in.
-	private final ArrayList<ArrayList<PktRecvCb>> _recvListeners;
+	// various types to come in. Each type's array is replaced, never
+	// changed, so that the receiving thread can walk it without a lock
+	// while listeners are registered.
+	private final AtomicReferenceArray<PktRecvCb[]> _recvListeners;
+
+	// The queues of the listeners that run on their own threads, and how
+	// to set up the queues of listeners registered from now on. A capacity
+	// of 0 calls them directly.
+	private final ArrayList<ListenerQueue> _listenerQueues =
+			new ArrayList<ListenerQueue>();
+	private int _listenerQueueCapacity = 0;
+	private ListenerQueue.OverflowPolicy _listenerQueuePolicy =
+			ListenerQueue.OverflowPolicy.DROP;
+
+	// Created the first time each is asked for. Guarded by itself.
+	private final PacketPublisher[] _publishers =
+			new PacketPublisher[MAX_PACKET_TYPES];
 
 
 	/////////////////////
@@ -44,25 +142,100 @@ public class PacketDispatch implements PktTransmitter, PktRecvCb, PktSentCb {
 	// Object that can actually transmit packets
 	private PktTransmitter _pktTx;
 
+	// Everything below up to the acks is guarded by this. Packets are
+	// sent from the app, acks arrive on the audio processing thread and
+	// retransmits happen on the timer thread.
+
 	// Keep track of the global sequence number so that all new packets have
 	// a sequence number
 	private int _sequenceNumber = 1;
 
-	// Keep track of incoming packets. They are kept in a queue so that they
-	// go out in order. The head of the queue is transmitted first. If that
-	// packet needs an ack, it stays in the queue (and blocks subsequent
-	// packets) until an ack is received. Packets that do not need acks
-	// are transmitted and removed immediately. All packets (ack requested
-	// or not) queue so that they go out in order.
-	private Queue<Packet> packets;
+	// Packets waiting to be sent, in order. The head goes out as soon as
+	// it can: right away if it does not need an ack, otherwise once there
+	// is room in the window.
+	private final Queue<Packet> _pending = new ArrayDeque<Packet>();
+
+	// The window: packets sent and waiting for an ack, by sequence number
+	private final Packet[] _inFlight = new Packet[NUM_SEQ_NOS];
+	// When each packet in the window was last sent and when it has to be
+	// sent again, in System.nanoTime() time
+	private final long[] _lastSent = new long[NUM_SEQ_NOS];
+	private final long[] _deadline = new long[NUM_SEQ_NOS];
+	private int _inFlightCount = 0;
+	// The order packets went into the window in, counting up. Unlike the
+	// send times, resending does not change it.
+	private final long[] _entered = new long[NUM_SEQ_NOS];
+	private long _enteredCount = 0;
+
+	// Set once the transmitter reports sent packets, from then on timers
+	// start when packets go out instead of when they are queued
+	private volatile boolean _timersOnSend = false;
+
+	// When the transmitter last reported each packet in the window as
+	// sent, 0 once that has been picked up. Written by the output thread
+	// without the lock.
+	private final AtomicLongArray _sentAt = new AtomicLongArray(NUM_SEQ_NOS);
+
+	// Packets picked to go out that have not been handed to the
+	// transmitter yet, in order, and whether a thread is handing them over
+	private final ArrayDeque<Packet> _toSend = new ArrayDeque<Packet>();
+	private boolean _sending = false;
+
+	// Requests waiting for a response, by sequence number, and when they
+	// time out
+	private final PacketFuture[] _requests = new PacketFuture[NUM_SEQ_NOS];
+	private final long[] _requestDeadline = new long[NUM_SEQ_NOS];
+	private int _requestCount = 0;
+
+	// Futures whose outcome is known, each followed by its result packet
+	// or failure. They are completed once the lock is released since that
+	// runs their listeners.
+	private final ArrayDeque<Object> _completions = new ArrayDeque<Object>();
+
+	private int _windowSize = DEFAULT_WINDOW_SIZE;
+	private int _maxRetries = MAX_RETRIES;
+
+	private final RttEstimator _rtt = new RttEstimator(
+			TimeUnit.MILLISECONDS.toNanos(INITIAL_TIMEOUT_MS),
+			TimeUnit.MILLISECONDS.toNanos(MIN_TIMEOUT_MS),
+			TimeUnit.MILLISECONDS.toNanos(MAX_TIMEOUT_MS));
+
+	private long _retransmitCount = 0;
+	private long _failedCount = 0;
+
+	// Sequence numbers received from the other side, per packet type. Bit i
+	// of _recvSeen is set if _recvLatest - i was received. _recvLatest is
+	// -1 until a packet of that type comes in.
+	private final long[] _recvSeen = new long[MAX_PACKET_TYPES];
+	private final int[] _recvLatest = new int[MAX_PACKET_TYPES];
+	private final long[] _duplicateCount = new long[MAX_PACKET_TYPES];
+
+	// Resends packets when their timers run out. Started with the first
+	// packet that needs an ack. Woken with LockSupport.unpark.
+	private volatile Thread _timerThread = null;
+	private boolean _shutdown = false;
+
+	// Acks are generated on the audio processing thread for every packet
+	// that asks for one, so they come from a pool instead of being
+	// allocated.
+	private final PacketPool _ackPool = new PacketPool(ACK_POOL_SIZE);
+
+	// Whether outgoing packets end in a CRC-16 instead of the additive
+	// checksum. Firmware that understands the CRC answers in whatever the
+	// last good packet it got used, so once we start using it the other
+	// side follows. Older firmware drops CRC packets, so it is off unless
+	// asked for or the other side is already using it.
+	private volatile boolean _crcEnabled = false;
+	private volatile boolean _peerUsesCrc = false;
 
 
 	// Init
 	public PacketDispatch() {
 		// Create the data structure for callbacks
-		_recvListeners = new ArrayList<ArrayList<PktRecvCb>>(MAX_PACKET_TYPES);
+		_recvListeners = new AtomicReferenceArray<PktRecvCb[]>(MAX_PACKET_TYPES);
+		Arrays.fill(_recvLatest, -1);
 		for (int i=0; i<MAX_PACKET_TYPES; i++) {
-			_recvListeners.add(new ArrayList<PktRecvCb>());
+			_recvListeners.set(i, new PktRecvCb[0]);
 		}
 	}
 
@@ -80,78 +253,732 @@ public class PacketDispatch implements PktTransmitter, PktRecvCb, PktSentCb {
 	// about a given packet type.
 	public void registerIncomingPacketListener(PktRecvCb listener,
 	                                           PacketType packetTypeID) {
-		_recvListeners.get(packetTypeID.ordinal()).add(listener);
+		synchronized (_listenerQueues) {
+			if (_listenerQueueCapacity > 0) {
+				ListenerQueue queue = new ListenerQueue(listener,
+						_listenerQueueCapacity, _listenerQueuePolicy,
+						"PacketDispatch listener " + packetTypeID);
+				_listenerQueues.add(queue);
+				listener = queue;
+			}
+		}
+		_addListener(packetTypeID, listener);
+	}
+
+	// Copy on write, see _recvListeners
+	private void _addListener (PacketType type, PktRecvCb listener) {
+		synchronized (_recvListeners) {
+			PktRecvCb[] old = _recvListeners.get(type.ordinal());
+			PktRecvCb[] listeners = Arrays.copyOf(old, old.length + 1);
+			listeners[old.length] = listener;
+			_recvListeners.set(type.ordinal(), listeners);
+		}
+	}
+
+	// Run listeners registered after this on their own threads, each
+	// behind a queue of up to capacity packets, so that they can not hold
+	// up packet processing. Packets of a type reach each listener in the
+	// order they came in. A capacity of 0 goes back to calling listeners
+	// on the receiving thread.
+	public void setListenerQueue (int capacity,
+	                              ListenerQueue.OverflowPolicy policy) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException(
+					"Listener queue capacity can not be negative");
+		}
+		synchronized (_listenerQueues) {
+			_listenerQueueCapacity = capacity;
+			_listenerQueuePolicy = policy;
+		}
+	}
+
+	// The stream of incoming packets of type, or of all packets for
+	// PacketType.GLOBAL. It is called directly like a listener, its
+	// subscriptions queue the packets.
+	public PacketPublisher getPublisher (PacketType type) {
+		synchronized (_publishers) {
+			PacketPublisher publisher = _publishers[type.ordinal()];
+			if (publisher == null) {
+				publisher = new PacketPublisher(type);
+				_publishers[type.ordinal()] = publisher;
+				_addListener(type, publisher);
+			}
+			return publisher;
+		}
+	}
+
+	// Packets dropped because a listener's queue was full
+	public long getListenerDroppedCount () {
+		long count = 0;
+		synchronized (_listenerQueues) {
+			for (ListenerQueue queue : _listenerQueues) {
+				count += queue.getDroppedCount();
+			}
+		}
+		return count;
 	}
 
 	/////////////////////
 	// Public functions
 	/////////////////////
 
+	// Send packets with a CRC-16 instead of the one byte checksum. Only
+	// enable this with firmware that knows about the CRC bit.
+	public void setCrcEnabled (boolean enabled) {
+		_crcEnabled = enabled;
+	}
+
+	// True if packets are currently going out with a CRC, either because
+	// it was enabled or because the other side is using it.
+	public boolean isUsingCrc () {
+		return _crcEnabled || _peerUsesCrc;
+	}
+
+	// How many packets can be waiting for acks at once, 1 to
+	// MAX_WINDOW_SIZE. 1 is stop and wait. Packets already sent stay in
+	// the window if it shrinks.
+	public void setWindowSize (int size) {
+		if (size < 1 || size > MAX_WINDOW_SIZE) {
+			throw new IllegalArgumentException(
+					"Window size must be 1 to " + MAX_WINDOW_SIZE);
+		}
+		synchronized (this) {
+			_windowSize = size;
+			_transmit();
+		}
+		_flush();
+	}
+
+	public synchronized int getWindowSize () {
+		return _windowSize;
+	}
+
+	// How many times to resend a packet before giving up, 0 to MAX_RETRIES
+	public synchronized void setMaxRetries (int retries) {
+		if (retries < 0 || retries > MAX_RETRIES) {
+			throw new IllegalArgumentException(
+					"Retries must be 0 to " + MAX_RETRIES);
+		}
+		_maxRetries = retries;
+	}
+
+	// Packets waiting for an ack
+	public synchronized int getInFlightCount () {
+		return _inFlightCount;
+	}
+
+	// How long a packet sent now would wait for its ack, in ms
+	public synchronized long getRetransmitTimeout () {
+		return TimeUnit.NANOSECONDS.toMillis(_rtt.getTimeout(0));
+	}
+
+	// The smoothed round trip time in ms, or -1 before the first ack
+	public synchronized long getRoundTripTime () {
+		long rtt = _rtt.getSmoothedRtt();
+		return (rtt < 0) ? -1 : TimeUnit.NANOSECONDS.toMillis(rtt);
+	}
+
+	public synchronized long getRetransmitCount () {
+		return _retransmitCount;
+	}
+
+	// Packets given up on after running out of retries
+	public synchronized long getFailedCount () {
+		return _failedCount;
+	}
+
+	// Resent packets from the other side that were acked again but not
+	// passed to the listeners
+	public synchronized long getDuplicateCount (PacketType type) {
+		return _duplicateCount[type.ordinal()];
+	}
+
+	public synchronized long getDuplicateCount () {
+		long count = 0;
+		for (int i = 0; i < MAX_PACKET_TYPES; i++) {
+			count += _duplicateCount[i];
+		}
+		return count;
+	}
+
+	// Stop the retransmit timer and the listener threads, and complete the
+	// publishers' subscriptions. Packets still waiting for acks are not
+	// resent after this.
+	public void shutdown () {
+		PacketPublisher[] publishers;
+		synchronized (_publishers) {
+			publishers = _publishers.clone();
+		}
+		for (PacketPublisher publisher : publishers) {
+			if (publisher != null) {
+				publisher.shutdown();
+			}
+		}
+
+		ArrayList<ListenerQueue> queues;
+		synchronized (_listenerQueues) {
+			queues = new ArrayList<ListenerQueue>(_listenerQueues);
+		}
+		for (ListenerQueue queue : queues) {
+			queue.shutdown();
+		}
+
+		Thread timer;
+		synchronized (this) {
+			_shutdown = true;
+			timer = _timerThread;
+			_timerThread = null;
+		}
+		if (timer != null) {
+			LockSupport.unpark(timer);
+			try {
+				timer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
 	// Transmit a packet
 	@Override
 	public void sendPacket (Packet p) {
-		p.setSequenceNumber(_sequenceNumber++);
-		packets.add(p);
+		synchronized (this) {
+			_queue(p, null, 0);
+		}
+		_flush();
+		_runCompletions();
+	}
+
+	// Send p without asking for an ack. The future completes with p once
+	// the transmitter reports it as sent, so this dispatcher has to be
+	// registered as the transmitter's PktSentCb. A packet the transmitter
+	// drops is never reported as sent.
+	public PacketFuture send (Packet p) {
+		PacketFuture future = new PacketFuture(p);
+		p.ackRequested = false;
+		p.sentFuture = future;
+		sendPacket(p);
+		return future;
+	}
+
+	// Send p and have it acked. The future completes with p once it is.
+	public PacketFuture sendReliable (Packet p) {
+		PacketFuture future = new PacketFuture(p);
+		p.ackRequested = true;
+		p.ackFuture = future;
+		sendPacket(p);
+		return future;
+	}
+
+	// Send p and wait up to timeoutMs for the response to it. The future
+	// completes with a copy of the response. If p asks for an ack it is
+	// also resent until acked or answered. Only use this with a peer that
+	// answers p with the same type and sequence number (see above).
+	public PacketFuture request (Packet p, long timeoutMs) {
+		return request(p, timeoutMs, null);
+	}
+
+	// As above, but only packets matcher accepts count as the response
+	public PacketFuture request (Packet p, long timeoutMs,
+	                             PacketFuture.Matcher matcher) {
+		PacketFuture future = new PacketFuture(p);
+		future.matcher = matcher;
+		synchronized (this) {
+			_queue(p, future, TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+		}
+		_flush();
+		_runCompletions();
+		return future;
+	}
+
+	// Give p the next sequence number and queue it. If request is not null
+	// it waits up to timeoutNs for the response to p. Called with the lock
+	// held.
+	private void _queue (Packet p, PacketFuture request, long timeoutNs) {
+		int seq = _sequenceNumber;
+		_sequenceNumber = (_sequenceNumber + 1) % NUM_SEQ_NOS;
+
+		p.setSequenceNumber(seq);
+		p.crc = isUsingCrc();
+		p.sentCount = 0;
+		p.ackReceived = false;
+
+		// Set up the request before p can go out in case the transmitter
+		// answers right away
+		if (request != null) {
+			if (_requests[seq] != null) {
+				// Still waiting for an answer from 256 packets ago
+				_completeLater(_requests[seq], new TimeoutException());
+				_requestCount--;
+			}
+			_requests[seq] = request;
+			_requestDeadline[seq] = System.nanoTime() + timeoutNs;
+			_requestCount++;
+
+			_startTimer();
+			_wakeTimer();
+		}
+
+		_pending.add(p);
 		_transmit();
 	}
 
-	// Take the top of the queue and transmit
+	// Pick packets from the head of the queue to go out until it is empty
+	// or the head needs an ack and the window is full. They are handed to
+	// the transmitter by _flush. Called with the lock held.
 	private void _transmit () {
 		while (true) {
-			Packet p = packets.peek();
+			Packet p = _pending.peek();
 
 			if (p == null) {
 				// No packet to send
 				break;
 			}
 
-			if (p.ackRequested == false) {
+			if (p.ackRequested) {
+				int seq = p.getSequenceNumber();
+				if (_inFlightCount >= _windowSize || _inFlight[seq] != null) {
+					// Wait for an ack to make room
+					break;
+				}
+
+				long now = System.nanoTime();
+				_inFlight[seq] = p;
+				_inFlightCount++;
+				_entered[seq] = _enteredCount++;
+				_lastSent[seq] = now;
+				_deadline[seq] = now + _queuedTimeout(0);
+				_sentAt.set(seq, 0);
+
+				_startTimer();
+				// The timer may need to wake up sooner for this one
+				_wakeTimer();
+			}
+
+			_pending.remove();
+			_toSend.add(p);
+		}
+	}
+
+	// Hand the packets picked by _transmit and _checkTimers to the
+	// transmitter, without the lock held. Only one thread does this at a
+	// time so they go out in order. If another thread is already at it,
+	// this returns right away and leaves the packets to that thread.
+	private void _flush () {
+		synchronized (this) {
+			if (_sending) {
+				return;
+			}
+			_sending = true;
+		}
+
+		while (true) {
+			Packet p;
+			synchronized (this) {
+				p = _toSend.poll();
+				if (p == null) {
+					_sending = false;
+					return;
+				}
+			}
+
+			try {
 				_pktTx.sendPacket(p);
-				packets.remove();
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					_sending = false;
+				}
+				throw e;
+			}
+		}
+	}
+
+	// Pick up when the transmitter last reported the packet in seq as
+	// sent, if it has since we last looked, and run its timer from then.
+	// Called with the lock held.
+	private void _noteSent (int seq, Packet p) {
+		long sent = _sentAt.getAndSet(seq, 0);
+		if (sent != 0) {
+			_lastSent[seq] = sent;
+			_deadline[seq] = sent + _rtt.getTimeout(p.sentCount);
+		}
+	}
+
+	// Take a packet out of the window after an ack. Called with the lock
+	// held.
+	private void _receivedAck (int seq) {
+		if (seq < 0) {
+			// The ack does not say which packet it is for, so it can only
+			// be for the oldest one, as with stop and wait
+			seq = _oldestInFlight();
+			if (seq < 0) {
+				return;
+			}
+		}
+
+		Packet p = _inFlight[seq];
+		if (p == null) {
+			// Late or duplicate ack
+			return;
+		}
+
+		_noteSent(seq, p);
+		if (p.sentCount == 0) {
+			_rtt.addSample(System.nanoTime() - _lastSent[seq]);
+		}
+
+		p.ackReceived = true;
+		_inFlight[seq] = null;
+		_inFlightCount--;
+
+		if (p.ackFuture != null) {
+			_completeLater(p.ackFuture, p);
+			p.ackFuture = null;
+		}
+
+		_transmit();
+	}
+
+	// How long to wait for a packet that has just been queued. Once
+	// timers start at sentPacket this only has to catch packets the
+	// transmitter never sends. Called with the lock held.
+	private long _queuedTimeout (int retries) {
+		return (_timersOnSend)
+				? TimeUnit.MILLISECONDS.toNanos(MAX_TIMEOUT_MS)
+				: _rtt.getTimeout(retries);
+	}
+
+	// Note the outcome of a future, to be completed by _runCompletions.
+	// outcome is the result packet or the failure. Called with the lock
+	// held.
+	private void _completeLater (PacketFuture future, Object outcome) {
+		_completions.add(future);
+		_completions.add(outcome);
+	}
+
+	// Complete the futures noted by _completeLater. Called without the
+	// lock held.
+	private void _runCompletions () {
+		while (true) {
+			PacketFuture future;
+			Object outcome;
+			synchronized (this) {
+				if (_completions.isEmpty()) {
+					return;
+				}
+				future = (PacketFuture) _completions.poll();
+				outcome = _completions.poll();
+			}
+
+			if (outcome instanceof Throwable) {
+				future.fail((Throwable) outcome);
 			} else {
-				_pktTx.sendPacket(p);
-				// TODO: set timer to retransmit this packet
-				break;
+				future.complete((Packet) outcome);
+			}
+		}
+	}
+
+	// The sequence number of the packet that has been in the window the
+	// longest, or -1 if it is empty. Resending does not change the order,
+	// since the firmware acks packets in the order they were first sent.
+	private int _oldestInFlight () {
+		int oldest = -1;
+		for (int seq = 0; seq < NUM_SEQ_NOS; seq++) {
+			if (_inFlight[seq] != null &&
+			    (oldest < 0 || _entered[seq] < _entered[oldest])) {
+				oldest = seq;
 			}
 		}
+		return oldest;
 	}
 
+	// Resend or give up on the packets whose timers have run out, and time
+	// out requests. Returns how long until the next timer runs out in ns,
+	// or -1 if there are no timers. Called with the lock held.
+	private long _checkTimers (long now) {
+		if (_inFlightCount == 0 && _requestCount == 0) {
+			return -1;
+		}
+
+		long next = -1;
+		boolean gaveUp = false;
+
+		for (int seq = 0; seq < NUM_SEQ_NOS; seq++) {
+			PacketFuture request = _requests[seq];
+			if (request != null) {
+				long left = _requestDeadline[seq] - now;
+				if (left <= 0) {
+					_requests[seq] = null;
+					_requestCount--;
+					_completeLater(request, new TimeoutException());
+				} else if (next < 0 || left < next) {
+					next = left;
+				}
+			}
+
+			Packet p = _inFlight[seq];
+			if (p == null) {
+				continue;
+			}
+
+			_noteSent(seq, p);
+			long left = _deadline[seq] - now;
+			if (left <= 0) {
+				if (p.sentCount >= _maxRetries) {
+					Trace.log(Trace.Level.WARN,
+					          "Gave up on packet %d after %d tries",
+					          seq, p.sentCount + 1);
+					_inFlight[seq] = null;
+					_inFlightCount--;
+					_failedCount++;
+					_failPacket(seq, p);
+					gaveUp = true;
+					continue;
+				}
+
+				p.sentCount++;
+				_retransmitCount++;
+				_lastSent[seq] = now;
+				left = _queuedTimeout(p.sentCount);
+				_deadline[seq] = now + left;
+				_toSend.add(p);
+			}
+
+			if (next < 0 || left < next) {
+				next = left;
+			}
+		}
+
+		if (gaveUp) {
+			// There is room in the window for new packets, which start
+			// their own timers, so check again right away
+			_transmit();
+			return 0;
+		}
+		return next;
+	}
+
+	// Fail the futures waiting on a packet that was given up on. Called
+	// with the lock held.
+	private void _failPacket (int seq, Packet p) {
+		String message = "Packet " + seq + " not acked after " +
+				(p.sentCount + 1) + " tries";
+
+		if (p.ackFuture != null) {
+			_completeLater(p.ackFuture, new IOException(message));
+			p.ackFuture = null;
+		}
+
+		PacketFuture request = _requests[seq];
+		if (request != null && request.getRequest() == p) {
+			_requests[seq] = null;
+			_requestCount--;
+			_completeLater(request, new IOException(message));
+		}
+	}
+
+	private void _startTimer () {
+		if (_timerThread != null || _shutdown) {
+			return;
+		}
+		Thread timer = new Thread(_retransmitter, "PacketDispatch retransmit");
+		timer.setDaemon(true);
+		_timerThread = timer;
+		timer.start();
+	}
+
+	// Make the timer thread look at the timers and the packets to send
+	// again. Does not need the lock.
+	private void _wakeTimer () {
+		Thread timer = _timerThread;
+		if (timer != null) {
+			LockSupport.unpark(timer);
+		}
+	}
+
+	private final Runnable _retransmitter = new Runnable() {
+		@Override
+		public void run() {
+			while (true) {
+				long wait;
+				synchronized (PacketDispatch.this) {
+					if (_shutdown) {
+						return;
+					}
+					wait = _checkTimers(System.nanoTime());
+				}
+
+				_flush();
+				_runCompletions();
+
+				// An unpark since the timers were checked makes this
+				// return right away, so no wake up is lost
+				if (wait < 0) {
+					LockSupport.park(this);
+				} else if (wait > 0) {
+					LockSupport.parkNanos(this, wait);
+				}
+				if (Thread.interrupted()) {
+					return;
+				}
+			}
+		}
+	};
+
 
 	// The insertion point for packets into the dispatch layer. After being
 	// decoded and detected as valid packets, received packets enter the
-	// dispatch layer here.
+	// dispatch layer here. The packet is released once all listeners have
+	// seen it.
 	@Override
 	public void recvPacket (Packet p) {
 
+		// Answer with the same kind of check the other side used
+		_peerUsesCrc = p.crc;
+
 		// Check if the packet needs an ack, and if so send it to the lower
 		// layer.
 		if (p.ackRequested) {
-			Packet ack = new Packet();
-			ack.length = 0;
-			ack.ackRequested = false;
-			ack.powerDown = false;
-			ack.sentCount = 0;
+			// Comes back cleared, so no payload, no ack and no power down
+			Packet ack = _ackPool.acquire();
+			ack.typeId = PacketType.ACK;
+			ack.crc = isUsingCrc();
+			ack.setSequenceNumber(p.getSequenceNumber());
 			_pktTx.sendPacket(ack);
 		}
 
-		// TODO duplicate detection
+		// Check if we got an ack, and if so take the packet it is for out
+		// of the window so the next one can go. Otherwise drop it if we
+		// have seen it before (the ack above went out again since ours was
+		// evidently lost), or see if it answers a request.
+		boolean duplicate = false;
+		boolean toSend;
+		synchronized (this) {
+			if (p.typeId == PacketType.ACK) {
+				_receivedAck(p.getSequenceNumber());
+			} else if (_isDuplicate(p)) {
+				_duplicateCount[p.typeId.ordinal()]++;
+				duplicate = true;
+			} else {
+				_receivedResponse(p);
+			}
+			toSend = !_toSend.isEmpty();
+		}
+		if (toSend) {
+			// Room opened up in the window. Leave compiling and queueing
+			// the packets to the timer thread, which is running since
+			// there were packets in the window.
+			_wakeTimer();
+		}
+		_runCompletions();
 
-		// Check if we got an ack, and if so remove whichever packet we
-		// were waiting on an ack for and then transmit the next packet
-		if (p.typeId == PacketType.ACK) {
-			packets.remove();
-			_transmit();
+		if (duplicate) {
+			p.release();
+			return;
 		}
 
-		// Pass packet to all waiting listeners
-		for (PktRecvCb l : _recvListeners.get(p.typeId.ordinal())) {
-			l.recvPacket(p);
+		// Pass packet to all waiting listeners, then to the ones that want
+		// every packet
+		_callListeners(_recvListeners.get(p.typeId.ordinal()), p);
+		if (p.typeId != PacketType.GLOBAL) {
+			_callListeners(_recvListeners.get(PacketType.GLOBAL.ordinal()), p);
+		}
+
+		p.release();
+	}
+
+	// Indexed so that no iterator is allocated for every packet
+	private void _callListeners (PktRecvCb[] listeners, Packet p) {
+		for (int i = 0; i < listeners.length; i++) {
+			listeners[i].recvPacket(p);
 		}
 	}
 
+	// Record p's sequence number and return true if p is a resent packet
+	// that was already received. Only packets that ask for an ack are ever
+	// resent, and only resent ones (sentCount above 1) can be duplicates,
+	// so first tries always get through. Called with the lock held.
+	private boolean _isDuplicate (Packet p) {
+		if (!p.ackRequested) {
+			return false;
+		}
+
+		int type = p.typeId.ordinal();
+		int seq = p.getSequenceNumber();
+		int latest = _recvLatest[type];
+
+		// How far past the latest one seq is, from -128 to 127
+		int ahead = (byte) (seq - latest);
+
+		if (latest < 0 || ahead <= -DUPLICATE_WINDOW) {
+			// First one, or too old to tell, most likely because the other
+			// side restarted its sequence numbers. Start over from here.
+			_recvLatest[type] = seq;
+			_recvSeen[type] = 1;
+			return false;
+		}
+
+		if (ahead > 0) {
+			// Slide the window forward
+			_recvSeen[type] = ((ahead < DUPLICATE_WINDOW)
+					? _recvSeen[type] << ahead : 0) | 1;
+			_recvLatest[type] = seq;
+			return false;
+		}
+
+		long bit = 1L << -ahead;
+		if ((_recvSeen[type] & bit) != 0) {
+			return p.sentCount > 1;
+		}
+		_recvSeen[type] |= bit;
+		return false;
+	}
+
+	// Complete the request p answers, if any. Called with the lock held.
+	private void _receivedResponse (Packet p) {
+		int seq = p.getSequenceNumber();
+		PacketFuture request = _requests[seq];
+		if (request == null || !request.isResponse(p)) {
+			return;
+		}
+
+		_requests[seq] = null;
+		_requestCount--;
+
+		// An answer means the request got there
+		if (_inFlight[seq] == request.getRequest()) {
+			_receivedAck(seq);
+		}
+
+		// p goes back to the pool after the listeners
+		Packet response = new Packet();
+		response.copyFrom(p);
+		_completeLater(request, response);
+	}
+
+	// The transmitter has sent p. Start its retransmit timer now rather
+	// than from when it was queued. This is called on the audio output
+	// thread, so it does not take the lock: it leaves the time for the
+	// timer thread to pick up.
 	@Override
-	public void sentPacket () {
-		//packet was sent
+	public void sentPacket (Packet p) {
+		PacketFuture sent = p.sentFuture;
+		if (sent != null) {
+			p.sentFuture = null;
+			sent.complete(p);
+		}
+
+		if (!p.ackRequested) {
+			return;
+		}
+
+		_timersOnSend = true;
+
+		// If p was acked or given up on meanwhile, this is cleared when
+		// its sequence number is used again
+		long now = System.nanoTime();
+		_sentAt.set(p.getSequenceNumber(), (now == 0) ? 1 : now);
+		_wakeTimer();
 	}
 
 }
@@ -0,0 +1,186 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/*
+ * The outcome of a packet sent with PacketDispatch.send, sendReliable or
+ * request.
+ *
+ * For send the future completes with the packet once the transmitter has
+ * sent it. For sendReliable it completes with the sent packet once it is
+ * acked. For request it completes with a copy of the response, which the
+ * caller owns. It fails with an IOException if the packet was given up on
+ * after its retries, and a request fails with a TimeoutException if no
+ * response came in time. get() wraps these in an ExecutionException.
+ *
+ * Listeners run once the outcome is known, on whichever thread found it
+ * out (the audio output thread for sent packets, the audio processing
+ * thread for acks and responses, the dispatch timer thread for failures),
+ * so they should be quick. A listener added
+ * after that runs right away on the caller's thread.
+ */
+
+public class PacketFuture implements Future<Packet> {
+
+	public interface Listener {
+		public abstract void done (PacketFuture future);
+	}
+
+	// Decides whether a received packet is the response to a request. It
+	// is called on the audio processing thread with the dispatch lock
+	// held, so it must be quick and must not keep p.
+	public interface Matcher {
+		public abstract boolean isResponse (Packet request, Packet p);
+	}
+
+	// The packet that was sent
+	private final Packet _request;
+
+	// For request, null to take any packet of the request's type. Set
+	// before the request is sent.
+	Matcher matcher = null;
+
+	// Guarded by this
+	private boolean _done = false;
+	private boolean _cancelled = false;
+	private Packet _result = null;
+	private Throwable _failure = null;
+	private ArrayList<Listener> _listeners = null;
+
+	PacketFuture (Packet request) {
+		_request = request;
+	}
+
+	public Packet getRequest () {
+		return _request;
+	}
+
+	// True if p answers this request. It has to be of the request's type.
+	boolean isResponse (Packet p) {
+		if (p.typeId != _request.typeId) {
+			return false;
+		}
+		return matcher == null || matcher.isResponse(_request, p);
+	}
+
+	public void addListener (Listener listener) {
+		synchronized (this) {
+			if (!_done) {
+				if (_listeners == null) {
+					_listeners = new ArrayList<Listener>(1);
+				}
+				_listeners.add(listener);
+				return;
+			}
+		}
+		listener.done(this);
+	}
+
+	// Stops anyone waiting on the future. The packet may still go out and
+	// be acked or answered, which is then ignored.
+	@Override
+	public boolean cancel (boolean mayInterruptIfRunning) {
+		return _finish(null, null, true);
+	}
+
+	@Override
+	public synchronized boolean isCancelled () {
+		return _cancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone () {
+		return _done;
+	}
+
+	@Override
+	public synchronized Packet get ()
+			throws InterruptedException, ExecutionException {
+		while (!_done) {
+			wait();
+		}
+		return _outcome();
+	}
+
+	@Override
+	public synchronized Packet get (long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!_done) {
+			long left = deadline - System.nanoTime();
+			if (left <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return _outcome();
+	}
+
+	// Called by PacketDispatch, never with its lock held since the
+	// listeners run here. Returns false if the future was already done.
+	boolean complete (Packet result) {
+		return _finish(result, null, false);
+	}
+
+	boolean fail (Throwable failure) {
+		return _finish(null, failure, false);
+	}
+
+	private boolean _finish (Packet result, Throwable failure,
+	                         boolean cancelled) {
+		ArrayList<Listener> listeners;
+		synchronized (this) {
+			if (_done) {
+				return false;
+			}
+			_done = true;
+			_result = result;
+			_failure = failure;
+			_cancelled = cancelled;
+			listeners = _listeners;
+			_listeners = null;
+			notifyAll();
+		}
+
+		if (listeners != null) {
+			for (int i = 0; i < listeners.size(); i++) {
+				listeners.get(i).done(this);
+			}
+		}
+		return true;
+	}
+
+	// Called with the lock held once done
+	private Packet _outcome () throws ExecutionException {
+		if (_cancelled) {
+			throw new CancellationException();
+		}
+		if (_failure != null) {
+			throw new ExecutionException(_failure);
+		}
+		return _result;
+	}
+}
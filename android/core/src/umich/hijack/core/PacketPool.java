@@ -0,0 +1,92 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+/*
+ * Keeps received and internally generated packets around for reuse.
+ *
+ * A packet is about 2 KB, and the receive path used to allocate one for
+ * every start bit it saw (including false starts from noise) and one for
+ * every ack it sent. The garbage collector then ran on the audio processing
+ * thread and caused input overruns.
+ *
+ * acquire() hands out a packet in the same state as a new one. Whoever
+ * acquired it owns it until they call Packet.release(), which puts it back
+ * here. Packets are acquired and released on different threads (the
+ * processing thread receives, the output thread finishes sending), so
+ * both are synchronized. If the pool runs dry a new packet is allocated,
+ * and if more packets come back than the pool holds the extra ones are
+ * left to the garbage collector, so a leak or a burst only costs
+ * allocations.
+ */
+
+public class PacketPool {
+
+	private final Packet[] _free;
+	private int _numFree = 0;
+
+	// Packets that had to be allocated because the pool was empty
+	private int _allocated = 0;
+
+	public PacketPool (int capacity) {
+		_free = new Packet[capacity];
+		for (int i = 0; i < capacity; i++) {
+			_free[i] = new Packet(this);
+		}
+		_numFree = capacity;
+	}
+
+	public synchronized Packet acquire () {
+		if (_numFree == 0) {
+			_allocated++;
+			return new Packet(this);
+		}
+
+		Packet p = _free[--_numFree];
+		_free[_numFree] = null;
+		p.clear();
+		return p;
+	}
+
+	// Called by Packet.release()
+	synchronized void release (Packet p) {
+		if (p.getPool() != this || _numFree == _free.length) {
+			return;
+		}
+
+		// Releasing the same packet twice would hand it out to two owners
+		for (int i = 0; i < _numFree; i++) {
+			if (_free[i] == p) {
+				throw new IllegalStateException("Packet released twice");
+			}
+		}
+
+		_free[_numFree++] = p;
+	}
+
+	public synchronized int getFreeCount () {
+		return _numFree;
+	}
+
+	// How many packets were allocated because the pool was empty. This
+	// should stop growing once the receive path is running.
+	public synchronized int getAllocatedCount () {
+		return _allocated;
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * The incoming packets of one type, or of all types for PacketType.GLOBAL,
+ * for any number of PacketSubscribers. Get one with
+ * PacketDispatch.getPublisher. Shaped like java.util.concurrent.Flow
+ * .Publisher, which needs Java 9.
+ *
+ * Each subscription is a ListenerQueue with its own worker thread that
+ * only hands out packets the subscriber has asked for. Packets that come
+ * in before that wait in the queue, up to its capacity. When the
+ * subscriber falls further behind the queue's OverflowPolicy decides: drop
+ * the oldest or the new packets, conflate them into the latest, or hold
+ * up the receiving thread until the subscriber asks for more (BLOCK, which
+ * also holds up everything else on that thread).
+ */
+
+public class PacketPublisher implements PktRecvCb {
+
+	public final static int DEFAULT_CAPACITY = 16;
+	public final static ListenerQueue.OverflowPolicy DEFAULT_POLICY =
+			ListenerQueue.OverflowPolicy.DROP_OLDEST;
+
+	private final PacketType _type;
+
+	// Replaced, not changed, so the receiving thread can go through it
+	// without taking the lock. Written with the lock held.
+	private volatile Subscription[] _subscriptions = new Subscription[0];
+	private boolean _shutdown = false;
+	private final Object _lock = new Object();
+
+	PacketPublisher (PacketType type) {
+		_type = type;
+	}
+
+	public PacketType getType () {
+		return _type;
+	}
+
+	public void subscribe (PacketSubscriber subscriber) {
+		subscribe(subscriber, DEFAULT_CAPACITY, DEFAULT_POLICY);
+	}
+
+	// Subscribe with up to capacity packets waiting for the subscriber
+	public void subscribe (PacketSubscriber subscriber, int capacity,
+	                       ListenerQueue.OverflowPolicy policy) {
+		Subscription s = new Subscription(subscriber, capacity, policy);
+
+		// Nothing is delivered before the subscriber asks for it, so this
+		// can go first
+		subscriber.onSubscribe(s);
+
+		synchronized (_lock) {
+			if (!_shutdown) {
+				if (!s._cancelled) {
+					Subscription[] subs = new Subscription[_subscriptions.length + 1];
+					System.arraycopy(_subscriptions, 0, subs, 0, _subscriptions.length);
+					subs[subs.length - 1] = s;
+					_subscriptions = subs;
+				}
+				return;
+			}
+		}
+
+		s._complete();
+	}
+
+	public int getSubscriberCount () {
+		return _subscriptions.length;
+	}
+
+	// Packets dropped or conflated because a current subscriber was behind
+	public long getDroppedCount () {
+		long count = 0;
+		Subscription[] subs = _subscriptions;
+		for (int i = 0; i < subs.length; i++) {
+			count += subs[i]._queue.getDroppedCount();
+		}
+		return count;
+	}
+
+	// Called by PacketDispatch for every packet of our type. Indexed so
+	// that no iterator is allocated for every packet.
+	@Override
+	public void recvPacket (Packet p) {
+		Subscription[] subs = _subscriptions;
+		for (int i = 0; i < subs.length; i++) {
+			subs[i]._queue.recvPacket(p);
+		}
+	}
+
+	// End every subscription. Packets still waiting are not delivered.
+	void shutdown () {
+		Subscription[] subs;
+		synchronized (_lock) {
+			_shutdown = true;
+			subs = _subscriptions;
+			_subscriptions = new Subscription[0];
+		}
+
+		for (Subscription s : subs) {
+			s._complete();
+			s._queue.join();
+		}
+	}
+
+	private void _remove (Subscription s) {
+		synchronized (_lock) {
+			Subscription[] old = _subscriptions;
+			for (int i = 0; i < old.length; i++) {
+				if (old[i] == s) {
+					Subscription[] subs = new Subscription[old.length - 1];
+					System.arraycopy(old, 0, subs, 0, i);
+					System.arraycopy(old, i + 1, subs, i, subs.length - i);
+					_subscriptions = subs;
+					return;
+				}
+			}
+		}
+	}
+
+	private final class Subscription implements PacketSubscription {
+		final PacketSubscriber _subscriber;
+		final ListenerQueue _queue;
+		volatile boolean _cancelled = false;
+
+		Subscription (final PacketSubscriber subscriber, int capacity,
+		              ListenerQueue.OverflowPolicy policy) {
+			_subscriber = subscriber;
+
+			// Runs on the queue's worker. The queue keeps its packets, so
+			// the subscriber gets a copy of its own.
+			PktRecvCb deliver = new PktRecvCb() {
+				@Override
+				public void recvPacket (Packet p) {
+					if (_cancelled) {
+						return;
+					}
+					Packet copy = new Packet();
+					copy.copyFrom(p);
+					subscriber.onNext(copy);
+				}
+			};
+			_queue = new ListenerQueue(deliver, capacity, policy,
+					"PacketPublisher " + _type, 0);
+		}
+
+		@Override
+		public void request (long n) {
+			if (n <= 0) {
+				if (_cancelled) {
+					return;
+				}
+				_cancelled = true;
+				_remove(this);
+				// Signalled by the worker so that it never overlaps onNext
+				final IllegalArgumentException e = new IllegalArgumentException(
+						"Must request a positive number of packets");
+				_queue.close(new Runnable() {
+					@Override
+					public void run () {
+						_subscriber.onError(e);
+					}
+				});
+				return;
+			}
+			_queue.request(n);
+		}
+
+		// Have the worker call onComplete, unless the subscription was
+		// already cancelled or failed
+		void _complete () {
+			_queue.close(new Runnable() {
+				@Override
+				public void run () {
+					_subscriber.onComplete();
+				}
+			});
+		}
+
+		@Override
+		public void cancel () {
+			if (_cancelled) {
+				return;
+			}
+			_cancelled = true;
+			_remove(this);
+			_queue.stop();
+		}
+	}
+}
@@ -0,0 +1,39 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Receives packets from a PacketPublisher, as many as it asks for. Shaped
+ * like java.util.concurrent.Flow.Subscriber, which needs Java 9.
+ *
+ * onSubscribe is called first, on the thread that subscribed. The other
+ * calls come one at a time from the subscription's worker thread. The
+ * subscriber owns the packets it gets.
+ */
+
+public interface PacketSubscriber {
+	public abstract void onSubscribe (PacketSubscription subscription);
+
+	public abstract void onNext (Packet p);
+
+	// The subscription is over because of t
+	public abstract void onError (Throwable t);
+
+	// The dispatcher was shut down, no more packets will come
+	public abstract void onComplete ();
+}
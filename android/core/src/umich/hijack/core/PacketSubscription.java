@@ -0,0 +1,32 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * The link between a PacketPublisher and one PacketSubscriber. Shaped like
+ * java.util.concurrent.Flow.Subscription.
+ */
+
+public interface PacketSubscription {
+	// Ask for n more packets. n must be positive. Can be called from any
+	// thread, including from onNext.
+	public abstract void request (long n);
+
+	// Stop getting packets. Packets still waiting are dropped.
+	public abstract void cancel ();
+}
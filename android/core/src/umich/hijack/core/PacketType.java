@@ -16,14 +16,15 @@ public enum PacketType {
 Packet Type IDs:
 
 0: Used internally for all packets that have an invalid packet type id
-1: all packets are sent to these listeners
+1: all packets are sent to these listeners. Never sent on the wire.
 2: ACK packets
 3: BOOTED packets
 4: RESUMED packets
-5: reserved.
-6: reserved
-7: reserved
-8-15: application specific.
+5: POWERDOWN packets
+6: HIJACKIO packets
+7: reserved. The firmware's test data packets use it.
+
+The type field is 3 bits. The bit above it selects the CRC, see Packet.
 
 
 */
\ No newline at end of file
@@ -18,5 +18,9 @@
 package umich.hijack.core;
 
 public interface PktRecvCb {
+	// The callee owns p from here on and calls p.release() when it is done
+	// with it. PacketDispatch does that once its listeners return, so
+	// listeners registered with the dispatcher only get to use the packet
+	// during the call and must copy anything they want to keep.
 	public abstract void recvPacket (Packet p);
 }
@@ -18,5 +18,7 @@
 package umich.hijack.core;
 
 public interface PktSentCb {
-	public abstract void sentPacket ();
+	// p is the packet that was just sent. A pooled packet goes back to its
+	// pool right after this returns.
+	public abstract void sentPacket (Packet p);
 }
@@ -18,5 +18,7 @@
 package umich.hijack.core;
 
 public interface PktTransmitter {
+	// Packets from a PacketPool belong to the transmitter once passed in,
+	// and it releases them after they have been sent.
 	public abstract void sendPacket (Packet p);
 }
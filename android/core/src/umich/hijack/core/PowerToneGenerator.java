@@ -0,0 +1,93 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Generates the sine wave that powers the HiJack board.
+ *
+ * Instead of calling Math.sin for every sample this keeps a single cycle of
+ * the wave in a table and walks through it with a 32 bit fixed-point phase
+ * accumulator. The top bits of the phase select the table entry. The phase
+ * wraps around naturally on overflow, so the wave is continuous across
+ * output buffers and across frequency changes (only the step size changes,
+ * never the current position in the wave).
+ */
+
+public class PowerToneGenerator {
+
+	// Number of bits of the phase accumulator used to index the table. The
+	// table holds 2^TABLE_BITS samples of one period of the wave.
+	private final static int TABLE_BITS = 10;
+	private final static int TABLE_SIZE = 1 << TABLE_BITS;
+	private final static int TABLE_SHIFT = 32 - TABLE_BITS;
+
+	// One period of the power sine wave, already scaled to the output
+	// amplitude.
+	private final short[] _table = new short[TABLE_SIZE];
+
+	// Current position in the wave. Uses the full range of an int, where
+	// 2^32 is one period.
+	private int _phase = 0;
+
+	// How far to advance _phase for each sample. This is set from another
+	// thread when the power frequency changes.
+	private volatile int _phaseIncrement = 0;
+
+	private final int _sampleFrequency;
+
+	public PowerToneGenerator (int sampleFrequency, int amplitude) {
+		_sampleFrequency = sampleFrequency;
+
+		for (int i = 0; i < TABLE_SIZE; i++) {
+			_table[i] = (short) Math.round(
+				Math.sin(2.0 * Math.PI * i / TABLE_SIZE) * amplitude);
+		}
+	}
+
+	public int getSampleFrequency () {
+		return _sampleFrequency;
+	}
+
+	// Change the frequency of the tone. Takes effect on the next sample and
+	// does not cause a discontinuity in the output.
+	public void setFrequency (int frequency) {
+		// frequency / sampleFrequency of a period per sample, in units of
+		// 2^-32 periods. Stored in a long first so values above half the
+		// sample rate still wrap correctly when truncated to an int.
+		long increment = Math.round(
+			(double) frequency / _sampleFrequency * 4294967296.0);
+		_phaseIncrement = (int) increment;
+	}
+
+	// Write numSamples samples of the tone into buf starting at offset,
+	// advancing by stride each sample. This is used to fill one channel
+	// of an interleaved stereo buffer.
+	public void fill (short[] buf, int offset, int stride, int numSamples) {
+		int phase = _phase;
+		int increment = _phaseIncrement;
+		int idx = offset;
+
+		for (int i = 0; i < numSamples; i++) {
+			buf[idx] = _table[phase >>> TABLE_SHIFT];
+			phase += increment;
+			idx += stride;
+		}
+
+		_phase = phase;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+/*
+ * Works out how long to wait for an ack before sending a packet again.
+ *
+ * This is the usual TCP estimator (RFC 6298): a smoothed round trip time
+ * and a smoothed deviation from it, with the timeout at the smoothed time
+ * plus four deviations. Each retry of the same packet doubles its timeout.
+ * Only packets that were sent once give samples, since an ack for a packet
+ * that was sent more than once could belong to any of the copies.
+ *
+ * Times are in nanoseconds. Not thread safe.
+ */
+
+final class RttEstimator {
+
+	private final long _minTimeout;
+	private final long _maxTimeout;
+
+	// -1 until the first sample
+	private long _smoothedRtt = -1;
+	private long _rttDeviation = 0;
+	private long _timeout;
+
+	RttEstimator (long initialTimeout, long minTimeout, long maxTimeout) {
+		_minTimeout = minTimeout;
+		_maxTimeout = maxTimeout;
+		_timeout = initialTimeout;
+	}
+
+	void addSample (long rtt) {
+		if (_smoothedRtt < 0) {
+			_smoothedRtt = rtt;
+			_rttDeviation = rtt / 2;
+		} else {
+			long error = rtt - _smoothedRtt;
+			_rttDeviation += (Math.abs(error) - _rttDeviation) / 4;
+			_smoothedRtt += error / 8;
+		}
+
+		_timeout = Math.max(_minTimeout,
+		                    Math.min(_maxTimeout, _smoothedRtt + 4*_rttDeviation));
+	}
+
+	// How long to wait for an ack to a packet that has been retried
+	// retries times
+	long getTimeout (int retries) {
+		return Math.min(_maxTimeout, _timeout << retries);
+	}
+
+	// -1 until there has been a sample
+	long getSmoothedRtt () {
+		return _smoothedRtt;
+	}
+}
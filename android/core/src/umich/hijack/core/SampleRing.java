@@ -0,0 +1,173 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+/*
+ * Ring buffer of audio samples between exactly one producer thread (the
+ * microphone reader) and exactly one consumer thread (the audio processor).
+ *
+ * The producer writes directly into the backing array and then publishes
+ * the new samples by advancing the head. The consumer reads directly from
+ * the backing array and frees the space by advancing the tail. Each index
+ * is only written by one thread and both are volatile, so no locks are
+ * needed and nothing is allocated after construction.
+ *
+ * If the consumer falls behind and the ring fills up, the producer has to
+ * throw samples away. That is an overrun. The position of the missing
+ * samples is recorded so the consumer can tell exactly where the stream is
+ * discontinuous instead of decoding across the gap. Until the consumer
+ * reaches that position any further samples are also dropped, so there is
+ * never more than one gap outstanding.
+ *
+ * Head and tail count samples since the ring was cleared and are never
+ * wrapped. The array index is the count masked by the (power of two)
+ * capacity.
+ */
+
+public class SampleRing {
+
+	private final short[] _buf;
+	private final int _mask;
+
+	// Total samples written by the producer
+	private volatile long _head = 0;
+	// Total samples consumed by the consumer
+	private volatile long _tail = 0;
+
+	// Head position where samples were dropped, or -1 if there is no gap
+	// the consumer has not reached yet.
+	private volatile long _gapPosition = -1;
+
+	// Statistics on dropped data
+	private volatile int _overruns = 0;
+	private volatile long _droppedSamples = 0;
+
+	// capacityBits is log2 of the number of samples the ring holds
+	public SampleRing (int capacityBits) {
+		_buf = new short[1 << capacityBits];
+		_mask = _buf.length - 1;
+	}
+
+	// Reset to empty. Only call when neither thread is using the ring.
+	public void clear () {
+		_head = 0;
+		_tail = 0;
+		_gapPosition = -1;
+		_overruns = 0;
+		_droppedSamples = 0;
+	}
+
+	// The array both threads read and write samples in.
+	public short[] array () {
+		return _buf;
+	}
+
+	public int capacity () {
+		return _buf.length;
+	}
+
+	///////////////////
+	// Producer side
+	///////////////////
+
+	// Number of samples that can be written before the ring is full
+	public int free () {
+		return _buf.length - (int) (_head - _tail);
+	}
+
+	// Where in array() the producer should write next
+	public int writeOffset () {
+		return (int) _head & _mask;
+	}
+
+	// How many samples can be written at writeOffset() without wrapping
+	// past the end of the array. Zero if samples are being dropped because
+	// of an overrun the consumer has not caught up to yet.
+	public int writableContiguous () {
+		if (_gapPosition >= 0) {
+			return 0;
+		}
+		return Math.min(free(), _buf.length - writeOffset());
+	}
+
+	// Publish numSamples samples written at writeOffset()
+	public void commitWrite (int numSamples) {
+		_head += numSamples;
+	}
+
+	// Record that numSamples samples were thrown away because the ring was
+	// full. The consumer will see a gap at the current head position.
+	public void markOverrun (int numSamples) {
+		if (_gapPosition < 0) {
+			_overruns++;
+			_gapPosition = _head;
+		}
+		_droppedSamples += numSamples;
+	}
+
+	///////////////////
+	// Consumer side
+	///////////////////
+
+	// Where in array() the consumer should read next
+	public int readOffset () {
+		return (int) _tail & _mask;
+	}
+
+	// How many samples can be read at readOffset() without wrapping past
+	// the end of the array or reading across a gap.
+	public int readableContiguous () {
+		long tail = _tail;
+		long end = _head;
+		long gap = _gapPosition;
+		if (gap >= 0 && gap < end) {
+			end = gap;
+		}
+		return (int) Math.min(end - tail, _buf.length - (tail & _mask));
+	}
+
+	// Returns true if the consumer has reached a point where samples were
+	// dropped. The consumer should reset anything that depends on the
+	// previous samples and then call clearGap().
+	public boolean atGap () {
+		return _gapPosition == _tail;
+	}
+
+	// Acknowledge the gap and let the producer write again.
+	public void clearGap () {
+		_gapPosition = -1;
+	}
+
+	// Release numSamples samples starting at readOffset()
+	public void commitRead (int numSamples) {
+		_tail += numSamples;
+	}
+
+	///////////////////
+	// Statistics
+	///////////////////
+
+	// Number of times the ring filled up and samples had to be dropped
+	public int getOverruns () {
+		return _overruns;
+	}
+
+	public long getDroppedSamples () {
+		return _droppedSamples;
+	}
+}
@@ -17,8 +17,9 @@
 
 package umich.hijack.core;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 /*
  * This file handles the layer between the Packet interface and manchester bits.
@@ -28,7 +29,9 @@ import java.util.List;
  * to higher layers.
  *
  * On the transmit side, this class takes packets and passes the manchester
- * encoded version to the audio interface layer.
+ * encoded version to the audio interface layer. Each packet is compiled into
+ * a ManchesterFrame in the OutgoingQueue when it is queued, and the output
+ * thread copies half bits out of the frames in batches.
  */
 
 public class SerialDecoder implements PktTransmitter {
@@ -41,21 +44,30 @@ public class SerialDecoder implements PktTransmitter {
 	// Constants
 	//////////////////
 
-	// How many preamble bits to transmit before sending the start bit
-	private static final int NUM_PREAMBLE_BITS = 20;
-	// How many bits to send after the last byte of the packet
-	private static final int NUM_POSTAMBLE_BITS = 4;
-
-	// The values of the different critical bits in packet construction
-	private final static int START_BIT = 0;
-	private final static int PREAMBLE_BIT = 1;
+	// The receive tolerances below were tuned at this sample rate. They are
+	// scaled to the sample rate actually in use when the decoder starts.
+	private final static int REFERENCE_SAMPLE_FREQUENCY = 44100;
+	// How far off in samples (at the reference rate) an edge can be from
+	// where we expect it
+	private final static double REFERENCE_EDGE_TOLERANCE = 5.0;
+	// How much the edge periods in the preamble can vary, in samples
+	// squared at the reference rate
+	private final static double REFERENCE_PREAMBLE_VARIANCE = 5.0;
+
+	// Packets the received callback can hold on to at once before the pool
+	// has to allocate
+	private final static int RX_POOL_SIZE = 4;
+
+	// Frames that can be queued in each lane of the outgoing queue. Each
+	// one is a little over half a kilobyte.
+	private final static int CONTROL_QUEUE_LEN = 8;
+	private final static int BULK_QUEUE_LEN = 32;
 
 	/////////////////
 	// ENUMS
 	/////////////////
 
-	// States for the tx and rx state machines
-	private enum TransmitState { IDLE, PREAMBLE, DATA, POSTAMBLE };
+	// States for the rx state machine
 	private enum receiveState { IDLE, DATA };
 
 	// Used to note whether we just saw a single baud or double baud
@@ -71,10 +83,15 @@ public class SerialDecoder implements PktTransmitter {
 	///////////////////
 
 	// Keep track of the times between edges in the preamble of the message.
-	// This lets us determine the baud rate on the fly.
+	// This lets us determine the baud rate on the fly. The times are in
+	// fixed point samples like the edge periods.
 	private final LimitedArray _timesBetweenEdges = new LimitedArray(4);
 	// The average of timesBetweenEdges
 	private double _avgEdgePeriod;
+	// The tolerances for comparing edge periods, converted to the current
+	// sample rate and to fixed point like the periods.
+	private double _edgePeriodTolerance;
+	private double _preambleMaxVariance;
 	// Whether the last edge let us set a bit or not
 	private edgeResult _lastEdgeResult;
 
@@ -82,32 +99,31 @@ public class SerialDecoder implements PktTransmitter {
 	private receiveState _rxState = receiveState.IDLE;
 
 	// The packet currently being received. Only one packet can be received
-	// at a time, so we do not keep an array.
+	// at a time, so we do not keep an array. Taken from the pool at a start
+	// bit and handed to the received callback if it is valid. Otherwise it
+	// is kept and reused for the next start bit.
 	private Packet _inPacket;
 
+	// Packets to receive into, so the processing thread does not allocate
+	private final PacketPool _packetPool = new PacketPool(RX_POOL_SIZE);
+
 	//////////////////////
 	// Transmit State
 	//////////////////////
 
-	// Array of packets to be transmitted. Many packets can be queued up.
-	private final List<Packet> _outgoing = new ArrayList<Packet>();
-
-	// The packet currently being transmitted.
-	private Packet _outPacket;
+	// Frames waiting to be transmitted. Acks and control packets go ahead
+	// of everything else.
+	private final OutgoingQueue _outgoing =
+			new OutgoingQueue(CONTROL_QUEUE_LEN, BULK_QUEUE_LEN);
 
-	// Keep track of how many more bits we need to send for the preamble
-	// and postamble.
-	private int _txPreambleBitLen;
-	private int _txPostambleBitLen;
+	// The frame currently being transmitted, taken from _outgoing. Only used
+	// on the output thread.
+	private ManchesterFrame _outFrame;
 
-	// Whether to send the first or the second half of the manchester bit
-	private int _txBitHalf;
-	// What the value of the last manchester bit is (so we can send the
-	// opposite for the next bit)
-	private SignalLevel _txLastManBit;
-
-	// TX state
-	private TransmitState _txState = TransmitState.IDLE;
+	// Whether an odd number of half bits have been handed out. Frames
+	// start on an even half bit so that their bit pairs line up with the
+	// pairs the audio layer renders. Only used on the output thread.
+	private boolean _txOddHalfBit = false;
 
 	//////////////////////
 	// Callbacks
@@ -118,87 +134,21 @@ public class SerialDecoder implements PktTransmitter {
 	private PktSentCb _PacketSentCallback = null;
 
 
-	//////////////////////////////
-	// Transmit State Machine
+	/////////////////////////////
+	// Receive State Machine
 	/////////////////////////////
 
-	// Transmit just a "floating" value when not transmitting a packet.
-	private SignalLevel transmitIdle () {
-		return SignalLevel.FLOATING;
-	}
-
-	// Transmit a few bits before the start bit so that the microcontroller
-	// can get an average baud rate.
-	private SignalLevel transmitPreamble () {
-		if (_txBitHalf == 1) {
-			if (_txPreambleBitLen == 0) {
-				_txState = TransmitState.DATA;
-			}
-			return (_txLastManBit == SignalLevel.HIGH)
-					? SignalLevel.LOW : SignalLevel.HIGH;
-		}
-
-		_txPreambleBitLen--;
-
-		if (_txPreambleBitLen == 0) {
-			return _int2man(START_BIT);
-		} else {
-			// Send preamble bits
-			return _int2man(PREAMBLE_BIT);
-		}
-	}
-
-	// After the preamble transmit all of the data bits
-	private SignalLevel transmitData () {
-		if (_txBitHalf == 1) {
-			return (_txLastManBit == SignalLevel.HIGH)
-					? SignalLevel.LOW : SignalLevel.HIGH;
-		}
-
-		try {
-			SignalLevel manbit = _int2man(_outPacket.getBit());
-			return manbit;
-		} catch (IndexOutOfBoundsException excp) {
-			_txPostambleBitLen = NUM_POSTAMBLE_BITS;
-			_txState = TransmitState.POSTAMBLE;
-			return SignalLevel.LOW;
-		}
-	}
-
-	// After the data, wait a couple bit (transmit just low values) and then
-	// transmit a 1. This gap and then bit signifies the packet has ended.
-	private SignalLevel transmitPostamble () {
-		if (_txBitHalf == 1) {
-			if (_txPostambleBitLen > 0) {
-				// If we are in the midst of sending postamble zeros, just
-				// send zeroes.
-				return SignalLevel.LOW;
-			} else if (_txPostambleBitLen == 0) {
-				// The last bit is an actual manchester bit, so we should
-				// treat it as such.
-				_txState = TransmitState.IDLE;
-				_notifySentPacket();
-				return (_txLastManBit == SignalLevel.HIGH) ? SignalLevel.LOW : SignalLevel.HIGH;
-			}
-		}
-
-		_txPostambleBitLen--;
-
-		if (_txPostambleBitLen == 0) {
-			// Send a 1 bit so the receiver knows the packet is over.
-			return SignalLevel.HIGH;
+	// Hand one edge to whichever state the receiver is in
+	void receiveEdge (int timeSinceLastEdge, EdgeType edge) {
+		if (_rxState == receiveState.DATA) {
+			receiveData(timeSinceLastEdge, edge);
 		} else {
-			// Otherwise just send all zeroes
-			return SignalLevel.LOW;
+			receiveIdle(timeSinceLastEdge, edge);
 		}
 	}
 
-	/////////////////////////////
-	// Receive State Machine
-	/////////////////////////////
-
 	// Watch incoming edges and wait for a start bit
-	private void receiveIdle (int timeSinceLastEdge, EdgeType edge) {
+	void receiveIdle (int timeSinceLastEdge, EdgeType edge) {
 		_avgEdgePeriod = _timesBetweenEdges.average();
 
 		// Check if we:
@@ -211,13 +161,17 @@ public class SerialDecoder implements PktTransmitter {
 		if (edge == EdgeType.RISING &&
 			isClose(_avgEdgePeriod*2, timeSinceLastEdge) &&
 			_timesBetweenEdges.length() == 4 &&
-			_timesBetweenEdges.variance() < 5.0) {
+			_timesBetweenEdges.variance() < _preambleMaxVariance) {
 			 // This is a start bit!
 
 			_rxState = receiveState.DATA;
 			_lastEdgeResult = edgeResult.BIT;
-			// Generate a new packet object to receive this packet into
-			_inPacket = new Packet();
+			// Get a clean packet object to receive this packet into
+			if (_inPacket == null) {
+				_inPacket = _packetPool.acquire();
+			} else {
+				_inPacket.clear();
+			}
 
 			return;
 		}
@@ -239,7 +193,7 @@ public class SerialDecoder implements PktTransmitter {
 	//   | 1 period             | rising    | -                    || 0      |
 	//   | 1 period             | falling   | 0 or 1               || -      |
 	//   | 1 period             | falling   | -                    || 1      |
-	private void receiveData (int timeSinceLastEdge, EdgeType edge) {
+	void receiveData (int timeSinceLastEdge, EdgeType edge) {
 		edgeSpace thisEdgeSpacing; // Number of bauds from the previous edge
 
 		// Determine if the edge we got is a single or double baud
@@ -254,7 +208,10 @@ public class SerialDecoder implements PktTransmitter {
 			_rxState = receiveState.IDLE;
 			boolean valid = _inPacket.processReceivedPacket();
 			if (valid) {
-				_notifyReceivedPacket(_inPacket);
+				// The callback owns the packet now
+				Packet p = _inPacket;
+				_inPacket = null;
+				_notifyReceivedPacket(p);
 			}
 			return;
 		} else {
@@ -293,13 +250,26 @@ public class SerialDecoder implements PktTransmitter {
 	// Public Functions
 	/////////////////////////////
 
-	public SerialDecoder() {
-		_audioReceiver = new AudioReceiver();
+	// The backend decides where audio goes: the headset jack of a phone
+	// (umich.hijack.core.android.AndroidAudioBackend), a loopback or files.
+	public SerialDecoder(AudioBackend backend) {
+		_audioReceiver = new AudioReceiver(backend);
 		_audioReceiver.registerIncomingSink(_incomingSink);
 		_audioReceiver.registerOutgoingSource(_outgoingSource);
+		setReceiveTolerances(_audioReceiver.getSampleFrequency());
 	}
 
 	public void start() {
+		if (_audioReceiver.isRunning()) {
+			return;
+		}
+
+		// The audio layer picks its sample rate when it initializes. Get
+		// that done first so the receive timing matches it before any edges
+		// arrive.
+		_audioReceiver.initialize();
+		setReceiveTolerances(_audioReceiver.getSampleFrequency());
+
 		_audioReceiver.startAudioIO();
 	}
 
@@ -307,14 +277,52 @@ public class SerialDecoder implements PktTransmitter {
 		_audioReceiver.stopAudioIO();
 	}
 
-	// This function is called by the dispatch layer to send a packet.
+	// Record the raw microphone signal to file while decoding. See
+	// AudioReceiver.startCapture.
+	public void startCapture(File file) throws IOException {
+		_audioReceiver.startCapture(file);
+	}
+
+	public void stopCapture() {
+		_audioReceiver.stopCapture();
+	}
+
+	// Decode a capture file as fast as possible on the calling thread.
+	// Received packets are passed up exactly as if they came from the
+	// microphone. Must be called while stopped.
+	public void replayCapture(File file) throws IOException {
+		CaptureReader capture = new CaptureReader(file);
+		try {
+			setReceiveTolerances(capture.getSampleFrequency());
+			_audioReceiver.replayCapture(capture);
+		} finally {
+			capture.close();
+			setReceiveTolerances(_audioReceiver.getSampleFrequency());
+		}
+	}
+
+	// This function is called by the dispatch layer to send a packet. The
+	// packet is compiled into its frame on the calling thread. What happens
+	// when the queue is full depends on the queue's overflow policy, see
+	// getOutgoingQueue.
 	@Override
 	public void sendPacket(Packet p) {
-		synchronized(this) {
-			_outgoing.add(p);
+		OutgoingQueue.Lane lane = _laneFor(p);
+		if (!_outgoing.offer(p, lane)) {
+			Trace.log(Trace.Level.WARN,
+			          "Outgoing %d queue full, dropped packet type %d",
+			          lane.ordinal(), p.typeId.ordinal());
+			p.release();
 		}
 	}
 
+	// The outgoing queue, for its depth and drop counts and to set what
+	// happens when it fills up. By default packets that do not fit are
+	// dropped.
+	public OutgoingQueue getOutgoingQueue() {
+		return _outgoing;
+	}
+
 	public void setPowerFreq(int freq) {
 		_audioReceiver.setPowerFrequency(freq);
 	}
@@ -323,6 +331,18 @@ public class SerialDecoder implements PktTransmitter {
 		_audioReceiver.setTransmitFrequency(freq);
 	}
 
+	// Choose how edges are found in the microphone signal. Only allowed
+	// while stopped.
+	public void setDemodulator(Demodulator demodulator) {
+		_audioReceiver.setDemodulator(demodulator);
+	}
+
+	// What the audio layer pulls half bits from. For driving the transmit
+	// side without audio.
+	OutgoingSource getOutgoingSource() {
+		return _outgoingSource;
+	}
+
 	/////////////////////////////
 	// Listener Functions
 	/////////////////////////////
@@ -341,12 +361,14 @@ public class SerialDecoder implements PktTransmitter {
 	private void _notifyReceivedPacket (Packet p) {
 		if (_PacketReceivedCallback != null) {
 			_PacketReceivedCallback.recvPacket(p);
+		} else {
+			p.release();
 		}
 	}
 
-	private void _notifySentPacket () {
+	private void _notifySentPacket (Packet p) {
 		if (_PacketSentCallback != null) {
-			_PacketSentCallback.sentPacket();
+			_PacketSentCallback.sentPacket(p);
 		}
 	}
 
@@ -356,78 +378,110 @@ public class SerialDecoder implements PktTransmitter {
 
 	private boolean isClose(double value, double desired) {
 		//return value < desired + _threshold && value > desired - _threshold;
-		return value < desired + 5.0 && value > desired - 5.0;
+		return value < desired + _edgePeriodTolerance &&
+		       value > desired - _edgePeriodTolerance;
+	}
+
+	private void setReceiveTolerances (int sampleFrequency) {
+		double scale = (double) sampleFrequency / REFERENCE_SAMPLE_FREQUENCY
+				* IncomingSink.PERIOD_ONE_SAMPLE;
+		_edgePeriodTolerance = REFERENCE_EDGE_TOLERANCE * scale;
+		_preambleMaxVariance = REFERENCE_PREAMBLE_VARIANCE * scale * scale;
 	}
 
-	private SignalLevel _int2man (int i) {
-		if (i == 1) {
-			return SignalLevel.HIGH;
+	// Acks and the other packets that keep the link going jump ahead of
+	// application data
+	private OutgoingQueue.Lane _laneFor (Packet p) {
+		switch (p.typeId) {
+			case ACK:
+			case BOOTED:
+			case RESUMED:
+			case POWERDOWN:
+				return OutgoingQueue.Lane.CONTROL;
+			default:
+				return OutgoingQueue.Lane.BULK;
 		}
-		return SignalLevel.LOW;
+	}
+
+	// The last half bit of the current frame has been handed out. Called on
+	// the output thread.
+	private void _finishOutgoingFrame () {
+		Packet p = _outFrame.getPacket();
+		_outFrame = null;
+		// Free the slot first so the sent callback can queue another packet
+		// even if the lane was full
+		_outgoing.done();
+
+		_notifySentPacket(p);
+		// Pooled packets (acks) belong to us once queued
+		p.release();
 	}
 
 	/////////////////////////////
 	// AudioInterface Listeners
 	////////////////////////////
 
-	private final IncomingSink _incomingSink = new IncomingSink() {
+	private final BatchIncomingSink _incomingSink = new BatchIncomingSink() {
 		@Override
 		public void handleNextBit(int transistionPeriod, EdgeType edge) {
-			switch (_rxState) {
-				case IDLE:
-					receiveIdle(transistionPeriod, edge);
-					break;
-				case DATA:
-					receiveData(transistionPeriod, edge);
-					break;
-				default:
-					break;
+			receiveEdge(transistionPeriod, edge);
+		}
+
+		@Override
+		public void handleEdges(EdgeBatch edges) {
+			int numEdges = edges.size();
+			for (int i = 0; i < numEdges; i++) {
+				EdgeType edge = edges.isRising(i)
+						? EdgeType.RISING : EdgeType.FALLING;
+				receiveEdge(edges.getPeriod(i), edge);
 			}
 		}
+
+		@Override
+		public void handleDiscontinuity() {
+			// Drop any partially received packet and start looking for a
+			// new preamble.
+			_rxState = receiveState.IDLE;
+			_timesBetweenEdges.clear();
+		}
 	};
 
 	private final OutgoingSource _outgoingSource = new OutgoingSource() {
 		@Override
-		public SignalLevel getNextManchesterBit() {
-			SignalLevel ret = SignalLevel.FLOATING;
-
-			switch (_txState) {
-				case IDLE:
-					// Check if there is a packet in the queue that we can
-					// transmit now.
-					synchronized(SerialDecoder.this) {
-						if (_outgoing.size() > 0) {
-							_outPacket = _outgoing.get(0);
-							_outgoing.remove(0);
-
-							_outPacket.compressToBuffer();
-
-							_txState = TransmitState.PREAMBLE;
-							_txPreambleBitLen = NUM_PREAMBLE_BITS;
-						}
-					}
-
-					ret = transmitIdle();
-					break;
-
-				case PREAMBLE:
-					ret = transmitPreamble();
-					break;
-
-				case DATA:
-					ret = transmitData();
-					break;
-
-				case POSTAMBLE:
-					ret = transmitPostamble();
-					break;
-
-				default:
-					break;
+		public void getNextManchesterBits(SignalLevel[] bits, int offset,
+		                                  int count) {
+			int end = offset + count;
+			int i = offset;
+
+			while (i < end) {
+				if (_outFrame == null && !_txOddHalfBit) {
+					_outFrame = _outgoing.take();
+				}
+
+				if (_outFrame == null) {
+					// Nothing to send. Float for one half bit so the next
+					// frame can start on a pair, or for the rest of the
+					// batch if nothing is waiting.
+					int n = (_txOddHalfBit || !_outgoing.isEmpty()) ? 1 : end - i;
+					Arrays.fill(bits, i, i + n, SignalLevel.FLOATING);
+					i += n;
+					_txOddHalfBit ^= (n & 1) == 1;
+					continue;
+				}
+
+				int n = _outFrame.read(bits, i, end - i);
+				i += n;
+				_txOddHalfBit ^= (n & 1) == 1;
+
+				if (_outFrame.isDone()) {
+					_finishOutgoingFrame();
+				}
 			}
-			_txBitHalf = (_txBitHalf == 1) ? 0 : 1;
-			_txLastManBit = ret;
-			return ret;
+		}
+
+		@Override
+		public boolean isTransmitting() {
+			return _outFrame != null || !_outgoing.isEmpty();
 		}
 	};
 }
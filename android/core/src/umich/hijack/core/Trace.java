@@ -0,0 +1,239 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Leveled tracing that is safe to call from the audio threads.
+ *
+ * Printing from the audio processing thread caused the worst latency spikes
+ * in the receive path, so instead of formatting anything, log() copies a
+ * record into a preallocated ring: the time, the level, a format string
+ * and up to four int arguments. The format string should be a constant so
+ * that nothing is allocated. A drainer, on its own thread or called
+ * directly, later formats the records with String.format and hands them
+ * to a TraceSink.
+ *
+ * Any thread can log. A slot in the ring is claimed with a compare and set
+ * on the head and published once it is filled in, so writers never block
+ * each other or the drainer. If the ring is full the record is dropped and
+ * counted rather than waiting.
+ *
+ * Tracing is off until setLevel() is called. Then log() is only a check of
+ * the level.
+ */
+
+public final class Trace {
+
+	// In order of increasing detail
+	public enum Level { ERROR, WARN, INFO, DEBUG };
+
+	private final static Level[] LEVELS = Level.values();
+
+	// Records in the ring. Must be a power of 2.
+	private final static int RING_BITS = 12;
+	private final static int RING_SIZE = 1 << RING_BITS;
+	private final static int RING_MASK = RING_SIZE - 1;
+
+	private final static int MAX_ARGS = 4;
+
+	// How often the drainer thread empties the ring
+	private final static long DRAIN_PERIOD_MS = 50;
+
+	// Records at or below this level ordinal are kept. -1 keeps nothing.
+	private static volatile int _threshold = -1;
+
+	// The record slots
+	private final static long[] _times = new long[RING_SIZE];
+	private final static int[] _levels = new int[RING_SIZE];
+	private final static String[] _formats = new String[RING_SIZE];
+	private final static int[] _numArgs = new int[RING_SIZE];
+	private final static int[] _args = new int[RING_SIZE * MAX_ARGS];
+
+	// Slot i holds record n once _published[i] is n+1
+	private final static AtomicLongArray _published = new AtomicLongArray(RING_SIZE);
+
+	// Next record to claim and next record to drain
+	private final static AtomicLong _head = new AtomicLong();
+	private static volatile long _tail = 0;
+
+	private final static AtomicLong _dropped = new AtomicLong();
+
+	// Only one drain at a time
+	private final static Object _drainLock = new Object();
+
+	private static Thread _drainer = null;
+	private static volatile boolean _stopDrainer = false;
+
+	private Trace () {
+	}
+
+	// Keep records of this level and anything more severe. null turns
+	// tracing off.
+	public static void setLevel (Level level) {
+		_threshold = (level == null) ? -1 : level.ordinal();
+	}
+
+	public static boolean isEnabled (Level level) {
+		return level.ordinal() <= _threshold;
+	}
+
+	// Records dropped because the ring was full
+	public static long getDroppedCount () {
+		return _dropped.get();
+	}
+
+	// There is one log() per number of arguments so that no varargs array
+	// is allocated.
+
+	public static void log (Level level, String format) {
+		if (level.ordinal() <= _threshold) {
+			record(level, format, 0, 0, 0, 0, 0);
+		}
+	}
+
+	public static void log (Level level, String format, int a) {
+		if (level.ordinal() <= _threshold) {
+			record(level, format, 1, a, 0, 0, 0);
+		}
+	}
+
+	public static void log (Level level, String format, int a, int b) {
+		if (level.ordinal() <= _threshold) {
+			record(level, format, 2, a, b, 0, 0);
+		}
+	}
+
+	public static void log (Level level, String format, int a, int b, int c) {
+		if (level.ordinal() <= _threshold) {
+			record(level, format, 3, a, b, c, 0);
+		}
+	}
+
+	public static void log (Level level, String format,
+	                        int a, int b, int c, int d) {
+		if (level.ordinal() <= _threshold) {
+			record(level, format, 4, a, b, c, d);
+		}
+	}
+
+	private static void record (Level level, String format, int numArgs,
+	                            int a, int b, int c, int d) {
+		long n;
+		do {
+			n = _head.get();
+			if (n - _tail >= RING_SIZE) {
+				_dropped.incrementAndGet();
+				return;
+			}
+		} while (!_head.compareAndSet(n, n + 1));
+
+		int i = (int) n & RING_MASK;
+		_times[i] = System.nanoTime();
+		_levels[i] = level.ordinal();
+		_formats[i] = format;
+		_numArgs[i] = numArgs;
+		_args[i*MAX_ARGS] = a;
+		_args[i*MAX_ARGS+1] = b;
+		_args[i*MAX_ARGS+2] = c;
+		_args[i*MAX_ARGS+3] = d;
+
+		_published.lazySet(i, n + 1);
+	}
+
+	// Format every record written so far and pass them to sink. Returns
+	// the number of records drained. Stops early at a record that has been
+	// claimed but not written yet.
+	public static int drain (TraceSink sink) {
+		synchronized (_drainLock) {
+			long tail = _tail;
+			int count = 0;
+
+			while (true) {
+				int i = (int) tail & RING_MASK;
+				if (_published.get(i) != tail + 1) {
+					break;
+				}
+
+				Object[] args = new Object[_numArgs[i]];
+				for (int j = 0; j < args.length; j++) {
+					args[j] = _args[i*MAX_ARGS+j];
+				}
+				Level level = LEVELS[_levels[i]];
+				long time = _times[i];
+				String message = String.format(Locale.US, _formats[i], args);
+				_formats[i] = null;
+
+				// The slot can be reused once the tail moves past it
+				tail++;
+				_tail = tail;
+				count++;
+
+				sink.trace(level, time, message);
+			}
+
+			return count;
+		}
+	}
+
+	// Drain to sink every DRAIN_PERIOD_MS on a background thread until
+	// stopDrainer() is called.
+	public static synchronized void startDrainer (final TraceSink sink) {
+		if (_drainer != null) {
+			throw new UnsupportedOperationException(
+					"A trace drainer is already running.");
+		}
+
+		_stopDrainer = false;
+		_drainer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!_stopDrainer) {
+					drain(sink);
+					try {
+						Thread.sleep(DRAIN_PERIOD_MS);
+					} catch (InterruptedException e) { }
+				}
+				// Whatever was logged before the stop
+				drain(sink);
+			}
+		}, "Trace drainer");
+		_drainer.setDaemon(true);
+		_drainer.setPriority(Thread.MIN_PRIORITY);
+		_drainer.start();
+	}
+
+	public static synchronized void stopDrainer () {
+		if (_drainer == null) {
+			return;
+		}
+
+		_stopDrainer = true;
+		_drainer.interrupt();
+		try {
+			_drainer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		_drainer = null;
+	}
+}
@@ -0,0 +1,353 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/*
+ * Records from one WAV file and plays into another, instead of using audio
+ * hardware.
+ *
+ * The input file must be 16 bit PCM. If it has more than one channel only
+ * the first one is used. There is no real clock, so the input file sets the
+ * pace: a frame counts as played once the matching input sample has been
+ * read, and audio runs as fast as the input can be decoded. Once the input
+ * file ends the output stops advancing too.
+ *
+ * The output file is written as 16 bit stereo PCM with the data signal on
+ * the left and the power signal on the right, the same as what would be
+ * played to the headset jack. It is started fresh by every open.
+ *
+ * Either file can be null. Without an input file the input is silence and
+ * runs as fast as it can be read. Without an output file the output is
+ * thrown away.
+ */
+
+public class WavFileAudioBackend implements AudioBackend {
+
+	private final static int DEFAULT_SAMPLE_FREQUENCY = 44100;
+
+	private final static int IO_BUFFER_LEN = 1 << 16;
+
+	// Size of the header we write before the output samples
+	private final static int OUTPUT_HEADER_LEN = 44;
+
+	private final File _outputFile;
+
+	// Input file, positioned at the next sample to read
+	private RandomAccessFile _input = null;
+	private FileChannel _inputChannel;
+	private final ByteBuffer _inputBuf;
+	private int _inputChannels = 1;
+	private int _inputSampleFrequency = 0;
+	// Bytes of sample data left in the input file
+	private long _inputRemaining = 0;
+
+	private RandomAccessFile _output = null;
+	private FileChannel _outputChannel;
+	private final ByteBuffer _outputBuf;
+	private long _outputLength;
+
+	private volatile long _samplesRead = 0;
+	private volatile boolean _stopped = false;
+
+	public WavFileAudioBackend (File inputFile, File outputFile) throws IOException {
+		_outputFile = outputFile;
+
+		_inputBuf = ByteBuffer.allocateDirect(IO_BUFFER_LEN);
+		_inputBuf.order(ByteOrder.LITTLE_ENDIAN);
+		_inputBuf.flip();
+
+		_outputBuf = ByteBuffer.allocateDirect(IO_BUFFER_LEN);
+		_outputBuf.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (inputFile != null) {
+			_input = new RandomAccessFile(inputFile, "r");
+			_inputChannel = _input.getChannel();
+			try {
+				readInputHeader();
+			} catch (IOException e) {
+				_input.close();
+				throw e;
+			}
+		}
+	}
+
+	// The rate of the input file, so it is decoded at the rate it was
+	// recorded at.
+	@Override
+	public int getPreferredSampleFrequency() {
+		if (_inputSampleFrequency > 0) {
+			return _inputSampleFrequency;
+		}
+		return DEFAULT_SAMPLE_FREQUENCY;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return false;
+	}
+
+	@Override
+	public int open(int sampleFrequency) {
+		_stopped = false;
+		_samplesRead = 0;
+
+		if (_outputFile != null) {
+			try {
+				_output = new RandomAccessFile(_outputFile, "rw");
+				_outputChannel = _output.getChannel();
+				_outputChannel.truncate(0);
+
+				// Sizes are filled in by close
+				_outputBuf.clear();
+				putWavHeader(_outputBuf, sampleFrequency, 2, 0);
+				_outputLength = 0;
+			} catch (IOException e) {
+				e.printStackTrace();
+				_output = null;
+			}
+		}
+
+		// There is no hardware buffer that needs to be kept full
+		return 0;
+	}
+
+	@Override
+	public void start() {
+	}
+
+	@Override
+	public void stop() {
+		_stopped = true;
+	}
+
+	@Override
+	public void close() {
+		if (_output == null) {
+			return;
+		}
+
+		try {
+			flushOutput();
+			_outputBuf.clear();
+			putWavHeader(_outputBuf, 0, 2, _outputLength);
+			_outputBuf.flip();
+			// Only the sizes are rewritten, the rest of the header stays
+			_outputChannel.write(sliceAt(_outputBuf, 4, 4), 4);
+			_outputChannel.write(sliceAt(_outputBuf, 40, 4), 40);
+			_output.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		_output = null;
+	}
+
+	@Override
+	public int write(short[] buf, int offset, int numSamples) {
+		if (_output == null) {
+			return numSamples;
+		}
+
+		try {
+			for (int i = offset; i < offset + numSamples; i++) {
+				if (_outputBuf.remaining() < 2) {
+					flushOutput();
+				}
+				_outputBuf.putShort(buf[i]);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+		_outputLength += numSamples * 2;
+		return numSamples;
+	}
+
+	@Override
+	public int getPlaybackPosition() {
+		return (int) _samplesRead;
+	}
+
+	@Override
+	public int read(short[] buf, int offset, int numSamples) {
+		if (_stopped) {
+			return 0;
+		}
+
+		if (_input == null) {
+			for (int i = offset; i < offset + numSamples; i++) {
+				buf[i] = 0;
+			}
+			_samplesRead += numSamples;
+			return numSamples;
+		}
+
+		int frameLen = _inputChannels * 2;
+		int n = 0;
+		try {
+			while (n < numSamples) {
+				if (_inputBuf.remaining() < frameLen && !fillInput(frameLen)) {
+					break;
+				}
+				buf[offset + n] = _inputBuf.getShort();
+				// Skip the other channels
+				_inputBuf.position(_inputBuf.position() + frameLen - 2);
+				n++;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		if (n == 0) {
+			return -1;
+		}
+		_samplesRead += n;
+		return n;
+	}
+
+	///////////////////////////////////////////////
+	// WAV files
+	///////////////////////////////////////////////
+
+	// Find the format and sample data of the input file. Leaves the file at
+	// the start of the samples.
+	private void readInputHeader() throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(12);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		readFully(header);
+		if (header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE")) {
+			throw new IOException("Not a WAV file");
+		}
+
+		ByteBuffer chunk = ByteBuffer.allocate(16);
+		chunk.order(ByteOrder.LITTLE_ENDIAN);
+		boolean haveFormat = false;
+
+		while (true) {
+			chunk.clear().limit(8);
+			readFully(chunk);
+			int id = chunk.getInt(0);
+			long len = chunk.getInt(4) & 0xffffffffL;
+
+			if (id == fourCC("fmt ")) {
+				chunk.clear();
+				readFully(chunk);
+				int format = chunk.getShort(0);
+				_inputChannels = chunk.getShort(2);
+				_inputSampleFrequency = chunk.getInt(4);
+				int bits = chunk.getShort(14);
+				if (format != 1 || bits != 16 || _inputChannels < 1) {
+					throw new IOException("WAV file must be 16 bit PCM");
+				}
+				skip(len - 16);
+				haveFormat = true;
+
+			} else if (id == fourCC("data")) {
+				if (!haveFormat) {
+					throw new IOException("WAV file has no format");
+				}
+				_inputRemaining = len;
+				return;
+
+			} else {
+				skip(len);
+			}
+
+			// Chunks are padded to an even length
+			if ((len & 1) != 0) {
+				skip(1);
+			}
+		}
+	}
+
+	// Make sure at least len bytes of samples are waiting in the input
+	// buffer. Returns false if the samples end first.
+	private boolean fillInput(int len) throws IOException {
+		_inputBuf.compact();
+		while (_inputBuf.position() < len && _inputRemaining > 0) {
+			int max = (int) Math.min(_inputBuf.remaining(), _inputRemaining);
+			int limit = _inputBuf.limit();
+			_inputBuf.limit(_inputBuf.position() + max);
+			int n = _inputChannel.read(_inputBuf);
+			_inputBuf.limit(limit);
+			if (n < 0) {
+				_inputRemaining = 0;
+				break;
+			}
+			_inputRemaining -= n;
+		}
+		_inputBuf.flip();
+		return _inputBuf.remaining() >= len;
+	}
+
+	private void flushOutput() throws IOException {
+		_outputBuf.flip();
+		while (_outputBuf.hasRemaining()) {
+			_outputChannel.write(_outputBuf);
+		}
+		_outputBuf.clear();
+	}
+
+	private void readFully(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (_inputChannel.read(buf) < 0) {
+				throw new IOException("WAV file ended early");
+			}
+		}
+		buf.flip();
+	}
+
+	private void skip(long len) throws IOException {
+		_inputChannel.position(_inputChannel.position() + len);
+	}
+
+	// Header for a 16 bit PCM file with dataLen bytes of samples
+	private static void putWavHeader(ByteBuffer buf, int sampleFrequency,
+	                                 int channels, long dataLen) {
+		buf.putInt(fourCC("RIFF"));
+		buf.putInt((int) (OUTPUT_HEADER_LEN - 8 + dataLen));
+		buf.putInt(fourCC("WAVE"));
+		buf.putInt(fourCC("fmt "));
+		buf.putInt(16);
+		buf.putShort((short) 1);
+		buf.putShort((short) channels);
+		buf.putInt(sampleFrequency);
+		buf.putInt(sampleFrequency * channels * 2);
+		buf.putShort((short) (channels * 2));
+		buf.putShort((short) 16);
+		buf.putInt(fourCC("data"));
+		buf.putInt((int) dataLen);
+	}
+
+	private static ByteBuffer sliceAt(ByteBuffer buf, int position, int len) {
+		ByteBuffer dup = buf.duplicate();
+		dup.position(position).limit(position + len);
+		return dup;
+	}
+
+	// A chunk id as it reads from a little endian int
+	private static int fourCC(String id) {
+		return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.util.Arrays;
+
+/*
+ * Holds the precomputed waveforms that are played on the data audio channel
+ * for one sample rate and IO frequency.
+ *
+ * A bank is never modified after it is constructed. This lets it be built
+ * on any thread and then handed to the audio output thread without any
+ * locking. Changing the IO frequency means switching to a different bank.
+ */
+
+public class WaveformBank {
+
+	public final int sampleFrequency;
+	public final int ioFrequency;
+
+	// Number of samples in the waveform for one manchester bit (a pair of
+	// half bits).
+	public final int segmentLength;
+
+	// Waveforms for each pair of manchester half bits.
+	private final short[] _highHigh;
+	private final short[] _lowLow;
+	private final short[] _highLow;
+	private final short[] _lowHigh;
+
+	// Constant level sent during the postamble.
+	private final short[] _postamble;
+
+	// Sent when no packet is being transmitted. This is long enough to cover
+	// maxBits half bits so it can be walked through for a whole output
+	// buffer.
+	private final short[] _floating;
+
+	// Lookup of the waveform to use for a pair of manchester half bits,
+	// indexed by the SignalLevel ordinals of the first and second half.
+	// Pairs without a waveform (anything involving FLOATING) are null and
+	// are filled from the floating waveform.
+	private final short[][][] _segments;
+
+	public WaveformBank (int sampleFrequency, int ioFrequency, int maxBits) {
+		this.sampleFrequency = sampleFrequency;
+		this.ioFrequency = ioFrequency;
+
+		int bufferSize = sampleFrequency / ioFrequency / 2;
+		segmentLength = bufferSize;
+
+		_highHigh = new short[bufferSize];
+		_highLow = new short[bufferSize];
+		_lowHigh = new short[bufferSize];
+		_lowLow = new short[bufferSize];
+		_postamble = new short[bufferSize];
+		_floating = new short[bufferSize * (maxBits/2)];
+
+		for (int i = 0; i < bufferSize; i++) {
+			_highHigh[i] = (short) (
+				boundToShort(Math.sin((double)(i + bufferSize) * (double)2 *
+				Math.PI * ioFrequency / sampleFrequency) * Short.MAX_VALUE)
+			);
+
+			_highLow[i] = (short) (
+				boundToShort(Math.sin((double)(i + bufferSize/2) * (double)4 *
+				Math.PI * ioFrequency / sampleFrequency) * Short.MAX_VALUE)
+			);
+
+			_lowLow[i] = (short) (
+				boundToShort(Math.sin((double)i * (double)2 * Math.PI *
+				ioFrequency / sampleFrequency) * Short.MAX_VALUE)
+			);
+
+			_lowHigh[i] = (short) (
+				boundToShort(Math.sin((double)i * (double)4 * Math.PI *
+				ioFrequency / sampleFrequency) * Short.MAX_VALUE)
+			);
+		}
+
+		for (int i = 0; i < _floating.length; i++) {
+			_floating[i] = (short) (
+				boundToShort(Math.sin((i) * Math.PI *
+				ioFrequency / sampleFrequency / 12.1) * Short.MAX_VALUE)
+			);
+		}
+
+		Arrays.fill(_postamble, (short) (Short.MAX_VALUE/2));
+
+		int numLevels = SignalLevel.values().length;
+		_segments = new short[numLevels][numLevels][];
+		_segments[SignalLevel.HIGH.ordinal()][SignalLevel.HIGH.ordinal()] = _highHigh;
+		_segments[SignalLevel.LOW.ordinal()][SignalLevel.LOW.ordinal()] = _lowLow;
+		_segments[SignalLevel.HIGH.ordinal()][SignalLevel.LOW.ordinal()] = _highLow;
+		_segments[SignalLevel.LOW.ordinal()][SignalLevel.HIGH.ordinal()] = _lowHigh;
+	}
+
+	// Returns the waveform for a pair of manchester half bits, or null if
+	// the pair should be filled from the floating waveform.
+	public short[] getSegment (SignalLevel first, SignalLevel second) {
+		return _segments[first.ordinal()][second.ordinal()];
+	}
+
+	public short[] getPostamble () {
+		return _postamble;
+	}
+
+	public short[] getFloating () {
+		return _floating;
+	}
+
+	private static double boundToShort(double in) {
+		return (in >= 32786.0) ? 32786.0 : (in <= -32786.0 ? -32786.0 : in );
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Keeps the most recently used WaveformBanks around so that switching back
+ * and forth between IO frequencies does not rebuild the waveforms every time.
+ */
+
+public class WaveformBankCache {
+
+	private final int _maxBits;
+
+	// LinkedHashMap in access order evicts the least recently used bank
+	// once there are more than the given number of entries.
+	private final LinkedHashMap<Long, WaveformBank> _banks;
+
+	public WaveformBankCache (final int capacity, int maxBits) {
+		_maxBits = maxBits;
+		_banks = new LinkedHashMap<Long, WaveformBank>(capacity + 1, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, WaveformBank> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	// Returns the bank for this sample rate and IO frequency, building it
+	// if it is not in the cache. Call this off of the audio threads since
+	// building a bank can take a while.
+	public synchronized WaveformBank get (int sampleFrequency, int ioFrequency) {
+		Long key = Long.valueOf(((long) sampleFrequency << 32) | ioFrequency);
+
+		WaveformBank bank = _banks.get(key);
+		if (bank == null) {
+			bank = new WaveformBank(sampleFrequency, ioFrequency, _maxBits);
+			_banks.put(key, bank);
+		}
+		return bank;
+	}
+}
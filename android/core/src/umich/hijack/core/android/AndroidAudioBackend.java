@@ -0,0 +1,165 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core.android;
+
+import java.io.File;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import umich.hijack.core.AudioBackend;
+import umich.hijack.core.Trace;
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Environment;
+
+/*
+ * Plays and records through the headset jack of an Android device.
+ */
+
+public class AndroidAudioBackend implements AudioBackend {
+
+	// Used if the device does not tell us a sample rate that works for both
+	// input and output. Most Android devices support 'CD-quality' sampling
+	// frequencies.
+	private final static int DEFAULT_SAMPLE_FREQUENCY = 44100;
+
+	// Sample rates to try, in order, if the native output rate does not work
+	// for the microphone.
+	private final static int[] FALLBACK_SAMPLE_FREQUENCIES = {48000, 44100};
+
+	// Android classes for audio input and output
+	private AudioTrack _audioTrack;
+	private AudioRecord _audioRecord;
+
+	// The native output rate of the device avoids the resampler (and allows
+	// the low latency output path on devices that have one), so use it as
+	// long as the microphone supports it as well.
+	@Override
+	public int getPreferredSampleFrequency() {
+		int nativeFrequency =
+				AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_MUSIC);
+		if (nativeFrequency > 0 && isInputSampleFrequencySupported(nativeFrequency)) {
+			return nativeFrequency;
+		}
+
+		for (int sampleFrequency : FALLBACK_SAMPLE_FREQUENCIES) {
+			if (isInputSampleFrequencySupported(sampleFrequency)) {
+				return sampleFrequency;
+			}
+		}
+
+		return DEFAULT_SAMPLE_FREQUENCY;
+	}
+
+	@Override
+	public boolean isRealTime() {
+		return true;
+	}
+
+	@Override
+	public int open(int sampleFrequency) {
+		// The minimum buffer size is in bytes and each stereo 16 bit frame
+		// is 4 bytes.
+		int trackBufferSize = AudioTrack.getMinBufferSize(sampleFrequency,
+				AudioFormat.CHANNEL_OUT_STEREO,
+				AudioFormat.ENCODING_PCM_16BIT);
+
+		_audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC,
+			sampleFrequency,
+			AudioFormat.CHANNEL_OUT_STEREO,
+			AudioFormat.ENCODING_PCM_16BIT,
+			Math.max(trackBufferSize, sampleFrequency),
+			AudioTrack.MODE_STREAM);
+
+		int recBufferSize = AudioRecord.getMinBufferSize(sampleFrequency,
+				AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT);
+
+		Trace.log(Trace.Level.INFO, "Record buffer size: %d bytes", recBufferSize);
+
+		_audioRecord = new AudioRecord(MediaRecorder.AudioSource.DEFAULT,
+			sampleFrequency,
+			AudioFormat.CHANNEL_IN_MONO,
+			AudioFormat.ENCODING_PCM_16BIT,
+			recBufferSize);
+
+		// Never try to keep less queued than the audio track needs to
+		// play smoothly.
+		return trackBufferSize / 4;
+	}
+
+	@Override
+	public void start() {
+		_audioRecord.startRecording();
+		_audioTrack.play();
+	}
+
+	@Override
+	public void stop() {
+		_audioRecord.stop();
+		_audioTrack.stop();
+	}
+
+	@Override
+	public void close() {
+		_audioTrack.release();
+		_audioRecord.release();
+
+		_audioTrack = null;
+		_audioRecord = null;
+	}
+
+	@Override
+	public int write(short[] buf, int offset, int numSamples) {
+		return _audioTrack.write(buf, offset, numSamples);
+	}
+
+	@Override
+	public int getPlaybackPosition() {
+		return _audioTrack.getPlaybackHeadPosition();
+	}
+
+	// AudioRecord returns negative error codes if it is not recording. The
+	// microphone never ends, so those just mean nothing was read.
+	@Override
+	public int read(short[] buf, int offset, int numSamples) {
+		return Math.max(0, _audioRecord.read(buf, offset, numSamples));
+	}
+
+	// A new, time stamped file in external storage to pass to
+	// SerialDecoder.startCapture().
+	@SuppressLint("SimpleDateFormat")
+	public static File newCaptureFile() {
+		File root = Environment.getExternalStorageDirectory();
+
+		SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd_HHmmss");
+		String currentDateandTime = sdf.format(new Date());
+
+		return new File(root, "capture_" +currentDateandTime+ ".hjc");
+	}
+
+	private boolean isInputSampleFrequencySupported(int sampleFrequency) {
+		return AudioRecord.getMinBufferSize(sampleFrequency,
+				AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT) > 0;
+	}
+}
@@ -0,0 +1,54 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core.android;
+
+import umich.hijack.core.Trace;
+import umich.hijack.core.TraceSink;
+import android.util.Log;
+
+/*
+ * Sends trace records to logcat.
+ */
+
+public class LogTraceSink implements TraceSink {
+
+	private final String _tag;
+
+	public LogTraceSink (String tag) {
+		_tag = tag;
+	}
+
+	@Override
+	public void trace(Trace.Level level, long timeNs, String message) {
+		switch (level) {
+			case ERROR:
+				Log.e(_tag, message);
+				break;
+			case WARN:
+				Log.w(_tag, message);
+				break;
+			case INFO:
+				Log.i(_tag, message);
+				break;
+			default:
+				Log.d(_tag, message);
+				break;
+		}
+	}
+}
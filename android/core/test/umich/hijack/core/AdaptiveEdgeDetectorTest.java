@@ -0,0 +1,161 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class AdaptiveEdgeDetectorTest {
+
+	private final static int SAMPLE_FREQUENCY = 44100;
+	private final static int IO_FREQUENCY = 1226;
+	private final static int BITS = 400;
+
+	// Random manchester bits, as half bit levels
+	private final SignalLevel[] _halfBits = new SignalLevel[2 * BITS];
+
+	// The bank's waveforms for _halfBits, which is what the phone plays
+	private short[] _played;
+
+	// Half bits the signal stays at one level between transitions
+	private int _shortRuns = 0;
+	private int _longRuns = 0;
+
+	private final WaveformBank _bank =
+			new WaveformBank(SAMPLE_FREQUENCY, IO_FREQUENCY, 64);
+
+	public AdaptiveEdgeDetectorTest () {
+		Random random = new Random(1);
+		for (int i = 0; i < _halfBits.length; i += 2) {
+			boolean bit = random.nextBoolean();
+			_halfBits[i] = bit ? SignalLevel.HIGH : SignalLevel.LOW;
+			_halfBits[i + 1] = bit ? SignalLevel.LOW : SignalLevel.HIGH;
+		}
+
+		_played = new short[BITS * _bank.segmentLength];
+		for (int i = 0; i < BITS; i++) {
+			short[] segment = _bank.getSegment(_halfBits[2*i], _halfBits[2*i + 1]);
+			System.arraycopy(segment, 0, _played, i * segment.length, segment.length);
+		}
+
+		int run = 1;
+		for (int i = 1; i < _halfBits.length; i++) {
+			if (_halfBits[i] == _halfBits[i - 1]) {
+				run++;
+				continue;
+			}
+			if (run == 1) {
+				_shortRuns++;
+			} else {
+				_longRuns++;
+			}
+			run = 1;
+		}
+	}
+
+	// The default channel of LinkBenchmark, with parts of it turned off
+	private static ChannelSimulator channel (int comparator, double highPass,
+	                                         double lowPass) {
+		ChannelSimulator channel = new ChannelSimulator(SAMPLE_FREQUENCY, 1);
+		channel.setComparator(comparator);
+		channel.setGain(-0.5);
+		channel.setHighPass(highPass);
+		channel.setLowPass(lowPass);
+		return channel;
+	}
+
+	private static EdgeBatch detect (short[] samples, int numSamples) {
+		AdaptiveEdgeDetector detector = new AdaptiveEdgeDetector();
+		detector.setIoFrequency(SAMPLE_FREQUENCY, IO_FREQUENCY);
+		EdgeBatch edges = new EdgeBatch(numSamples);
+		detector.process(samples, 0, numSamples, edges);
+		return edges;
+	}
+
+	// Every transition is found once, and the edges are a half bit or a
+	// whole bit apart
+	private void assertFindsEveryTransition (ChannelSimulator channel) {
+		short[] received = new short[2 * _played.length];
+		int numReceived = channel.process(_played, 0, _played.length, received);
+		EdgeBatch edges = detect(received, numReceived);
+
+		double halfBit = _bank.segmentLength / 2.0;
+		double tolerance = halfBit / 4;
+		int shortEdges = 0;
+		int longEdges = 0;
+
+		// The first edge is timed from the start of the capture
+		for (int i = 1; i < edges.size(); i++) {
+			double period = edges.getPeriod(i) /
+					(double) IncomingSink.PERIOD_ONE_SAMPLE;
+			if (Math.abs(period - halfBit) <= tolerance) {
+				shortEdges++;
+			} else if (Math.abs(period - 2 * halfBit) <= tolerance) {
+				longEdges++;
+			} else {
+				assertTrue("Edge " + i + " is " + period + " samples after the last",
+						false);
+			}
+		}
+
+		assertEquals(_shortRuns + _longRuns, edges.size() - 1, 1);
+		assertEquals(_shortRuns, shortEdges, 1);
+		assertEquals(_longRuns, longEdges, 1);
+	}
+
+	@Test
+	public void findsEdgesThroughDefaultChannel () {
+		assertFindsEveryTransition(channel(16384, 20, 8000));
+	}
+
+	@Test
+	public void findsEdgesWithoutFilters () {
+		assertFindsEveryTransition(channel(16384, 0, 0));
+	}
+
+	@Test
+	public void findsEdgesWithoutComparator () {
+		assertFindsEveryTransition(channel(0, 20, 8000));
+	}
+
+	@Test
+	public void findsEdgesInNoise () {
+		ChannelSimulator channel = channel(16384, 20, 8000);
+		channel.setNoise(Short.MAX_VALUE * Math.pow(10, -30 / 20.0));
+		assertFindsEveryTransition(channel);
+	}
+
+	@Test
+	public void ignoresShortGlitches () {
+		short[] samples = new short[400];
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short) ((i / 100 % 2 == 0) ? -8000 : 8000);
+		}
+		int clean = detect(samples, samples.length).size();
+
+		// Single samples on the wrong side are not edges
+		samples[150] = -8000;
+		samples[250] = 8000;
+		assertEquals(clean, detect(samples, samples.length).size());
+	}
+}
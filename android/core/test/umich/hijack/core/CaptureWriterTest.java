@@ -0,0 +1,87 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CaptureWriterTest {
+
+	private File _file;
+
+	@Before
+	public void setUp () throws IOException {
+		_file = File.createTempFile("capture", ".hjc");
+	}
+
+	@After
+	public void tearDown () {
+		_file.delete();
+	}
+
+	private static short sample (int record, int i) {
+		return (short) (record * 31 + i * 7 - 20000);
+	}
+
+	@Test
+	public void readsBackWhatWasWritten () throws IOException {
+		// Enough records to fill more than one mapped window
+		int records = 1100;
+		int len = 2048;
+
+		CaptureWriter writer = new CaptureWriter(_file, 44100);
+		short[] buf = new short[len + 3];
+		for (int r = 0; r < records; r++) {
+			for (int i = 0; i < len; i++) {
+				buf[3 + i] = sample(r, i);
+			}
+			writer.write(buf, 3, len, r, r % 2 == 0);
+		}
+		writer.close();
+		assertEquals(CaptureWriter.HEADER_LEN +
+				(long) records * (CaptureWriter.RECORD_HEADER_LEN + 2 * len),
+				_file.length());
+
+		CaptureReader reader = new CaptureReader(_file);
+		assertEquals(44100, reader.getSampleFrequency());
+		short[] in = new short[len];
+		for (int r = 0; r < records; r++) {
+			int got = 0;
+			while (got < len) {
+				int n = reader.read(in, got, len - got);
+				assertTrue("Capture ended early", n > 0);
+				got += n;
+			}
+			assertEquals(r, reader.getTimestamp());
+			assertEquals(r % 2 == 0, reader.isDropped());
+			for (int i = 0; i < len; i++) {
+				assertEquals(sample(r, i), in[i]);
+			}
+		}
+		assertEquals(-1, reader.read(in, 0, len));
+		reader.close();
+	}
+}
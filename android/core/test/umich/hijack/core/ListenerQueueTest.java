@@ -0,0 +1,195 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class ListenerQueueTest {
+
+	private final static long WAIT_MS = 2000;
+
+	private final LinkedBlockingQueue<Integer> _got =
+			new LinkedBlockingQueue<Integer>();
+	private ListenerQueue _queue;
+
+	// Records the first payload byte of every packet
+	private final PktRecvCb _record = new PktRecvCb() {
+		@Override
+		public void recvPacket (Packet p) {
+			_got.add(p.getData(0));
+		}
+	};
+
+	@After
+	public void tearDown () {
+		if (_queue != null) {
+			_queue.shutdown();
+		}
+	}
+
+	private static Packet packet (int value) {
+		Packet p = new Packet();
+		p.typeId = PacketType.HIJACKIO;
+		p.length = 1;
+		p.setData(0, value);
+		return p;
+	}
+
+	private int next () throws InterruptedException {
+		Integer value = _got.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+		assertTrue("Timed out waiting for a packet", value != null);
+		return value;
+	}
+
+	private void assertNothingMore () throws InterruptedException {
+		assertNull(_got.poll(50, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void deliversInOrder () throws InterruptedException {
+		_queue = new ListenerQueue(_record, 4,
+				ListenerQueue.OverflowPolicy.BLOCK, "test");
+		for (int i = 0; i < 200; i++) {
+			_queue.recvPacket(packet(i));
+		}
+		for (int i = 0; i < 200; i++) {
+			assertEquals(i & 0xFF, next());
+		}
+		assertEquals(0, _queue.getDroppedCount());
+	}
+
+	@Test
+	public void dropOldestKeepsPacketInUse () throws InterruptedException {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final int[] seen = new int[2];
+
+		// Holds on to the first packet until told to let go, and checks
+		// that it did not change meanwhile
+		_queue = new ListenerQueue(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				if (entered.getCount() > 0) {
+					seen[0] = p.getData(0);
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					seen[1] = p.getData(0);
+				}
+				_got.add(p.getData(0));
+			}
+		}, 2, ListenerQueue.OverflowPolicy.DROP_OLDEST, "test");
+
+		_queue.recvPacket(packet(10));
+		assertTrue(entered.await(WAIT_MS, TimeUnit.MILLISECONDS));
+
+		// Fills the queue, then drops 11 for 13, and 12 for 14
+		for (int i = 11; i <= 14; i++) {
+			_queue.recvPacket(packet(i));
+		}
+		release.countDown();
+
+		assertEquals(10, next());
+		assertEquals(10, seen[0]);
+		assertEquals(10, seen[1]);
+		assertEquals(13, next());
+		assertEquals(14, next());
+		assertNothingMore();
+		assertEquals(2, _queue.getDroppedCount());
+	}
+
+	@Test
+	public void dropKeepsOldest () throws InterruptedException {
+		// Nothing is taken until asked for
+		_queue = new ListenerQueue(_record, 2,
+				ListenerQueue.OverflowPolicy.DROP, "test", 0);
+		for (int i = 1; i <= 4; i++) {
+			_queue.recvPacket(packet(i));
+		}
+		assertEquals(2, _queue.getDepth());
+		_queue.request(10);
+
+		assertEquals(1, next());
+		assertEquals(2, next());
+		assertNothingMore();
+		assertEquals(2, _queue.getDroppedCount());
+	}
+
+	@Test
+	public void conflateKeepsLatest () throws InterruptedException {
+		_queue = new ListenerQueue(_record, 1,
+				ListenerQueue.OverflowPolicy.CONFLATE, "test", 0);
+		for (int i = 1; i <= 5; i++) {
+			_queue.recvPacket(packet(i));
+		}
+		_queue.request(1);
+
+		assertEquals(5, next());
+		assertNothingMore();
+		assertEquals(4, _queue.getDroppedCount());
+	}
+
+	@Test
+	public void onlyTakesWhatWasRequested () throws InterruptedException {
+		_queue = new ListenerQueue(_record, 8,
+				ListenerQueue.OverflowPolicy.DROP, "test", 0);
+		for (int i = 1; i <= 5; i++) {
+			_queue.recvPacket(packet(i));
+		}
+		assertNothingMore();
+
+		_queue.request(2);
+		assertEquals(1, next());
+		assertEquals(2, next());
+		assertNothingMore();
+
+		_queue.request(Long.MAX_VALUE);
+		assertEquals(3, next());
+		assertEquals(4, next());
+		assertEquals(5, next());
+	}
+
+	@Test
+	public void listenerExceptionOnlySkipsThatPacket () throws InterruptedException {
+		_queue = new ListenerQueue(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				if (p.getData(0) == 1) {
+					throw new IllegalStateException();
+				}
+				_got.add(p.getData(0));
+			}
+		}, 4, ListenerQueue.OverflowPolicy.BLOCK, "test");
+
+		_queue.recvPacket(packet(1));
+		_queue.recvPacket(packet(2));
+		assertEquals(2, next());
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class LoopbackAudioBackendTest {
+
+	private final static int FRAMES = 1024;
+	private final static int BUFFERS = 20;
+
+	// Play BUFFERS buffers through a channel whose clock drifts by ppm,
+	// read back all but the last few samples, since the resampler can make
+	// one more or less than expected, and return the playback position
+	private static int playAndRead (double ppm) {
+		ChannelSimulator channel = new ChannelSimulator(44100, 1);
+		channel.setClockDrift(ppm);
+		LoopbackAudioBackend backend = new LoopbackAudioBackend(44100, channel);
+		backend.open(44100);
+		backend.start();
+
+		short[] out = new short[2 * FRAMES];
+		for (int i = 0; i < BUFFERS; i++) {
+			assertEquals(out.length, backend.write(out, 0, out.length));
+		}
+
+		short[] in = new short[4 * FRAMES];
+		int pending = (int) Math.round(BUFFERS * FRAMES * (1 + ppm / 1000000.0));
+		while (pending > 2) {
+			pending -= backend.read(in, 0, Math.min(in.length, pending - 2));
+		}
+
+		return backend.getPlaybackPosition();
+	}
+
+	@Test
+	public void positionCountsPlayedFrames () {
+		assertEquals(BUFFERS * FRAMES, playAndRead(0), 4);
+	}
+
+	@Test
+	public void positionDoesNotDriftWhenChannelResamples () {
+		assertEquals(BUFFERS * FRAMES, playAndRead(-10000), 4);
+		assertEquals(BUFFERS * FRAMES, playAndRead(10000), 4);
+	}
+}
@@ -0,0 +1,181 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OutgoingQueueTest {
+
+	private static Packet packet (int a, int b) {
+		Packet p = new Packet();
+		p.typeId = PacketType.HIJACKIO;
+		p.length = 2;
+		p.setData(0, a);
+		p.setData(1, b);
+		return p;
+	}
+
+	private static Packet takeOne (OutgoingQueue q) {
+		ManchesterFrame frame = q.take();
+		if (frame == null) {
+			return null;
+		}
+		Packet p = frame.getPacket();
+		q.done();
+		return p;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityMustBePowerOfTwo () {
+		new OutgoingQueue(8, 12);
+	}
+
+	@Test
+	public void controlLaneGoesFirst () {
+		OutgoingQueue q = new OutgoingQueue(2, 4);
+		Packet bulk1 = packet(1, 0);
+		Packet bulk2 = packet(2, 0);
+		Packet control = packet(3, 0);
+
+		assertTrue(q.offer(bulk1, OutgoingQueue.Lane.BULK));
+		assertTrue(q.offer(bulk2, OutgoingQueue.Lane.BULK));
+		assertTrue(q.offer(control, OutgoingQueue.Lane.CONTROL));
+
+		assertSame(control, takeOne(q));
+		assertSame(bulk1, takeOne(q));
+		assertSame(bulk2, takeOne(q));
+		assertNull(q.take());
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void frameBeingSentCountsAsQueued () {
+		OutgoingQueue q = new OutgoingQueue(2, 2);
+		q.offer(packet(1, 0), OutgoingQueue.Lane.BULK);
+		q.take();
+		assertEquals(1, q.getDepth(OutgoingQueue.Lane.BULK));
+		assertFalse(q.isEmpty());
+		q.done();
+		assertTrue(q.isEmpty());
+	}
+
+	@Test
+	public void dropWhenFull () {
+		OutgoingQueue q = new OutgoingQueue(2, 2);
+		assertTrue(q.offer(packet(1, 0), OutgoingQueue.Lane.BULK));
+		assertTrue(q.offer(packet(2, 0), OutgoingQueue.Lane.BULK));
+		assertFalse(q.offer(packet(3, 0), OutgoingQueue.Lane.BULK));
+
+		assertEquals(1, q.getDroppedCount(OutgoingQueue.Lane.BULK));
+		assertEquals(2, q.getHighWater(OutgoingQueue.Lane.BULK));
+		assertEquals(1, takeOne(q).getData(0));
+		assertEquals(2, takeOne(q).getData(0));
+		assertNull(q.take());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void failWhenFull () {
+		OutgoingQueue q = new OutgoingQueue(2, 2);
+		q.setOverflowPolicy(OutgoingQueue.Lane.CONTROL,
+		                    OutgoingQueue.OverflowPolicy.FAIL);
+		q.offer(packet(1, 0), OutgoingQueue.Lane.CONTROL);
+		q.offer(packet(2, 0), OutgoingQueue.Lane.CONTROL);
+		q.offer(packet(3, 0), OutgoingQueue.Lane.CONTROL);
+	}
+
+	@Test
+	public void blockWaitsForRoom () throws InterruptedException {
+		final OutgoingQueue q = new OutgoingQueue(2, 2);
+		q.setOverflowPolicy(OutgoingQueue.Lane.BULK,
+		                    OutgoingQueue.OverflowPolicy.BLOCK);
+		q.offer(packet(1, 0), OutgoingQueue.Lane.BULK);
+		q.offer(packet(2, 0), OutgoingQueue.Lane.BULK);
+
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				q.offer(packet(3, 0), OutgoingQueue.Lane.BULK);
+			}
+		});
+		producer.start();
+		producer.join(100);
+		assertTrue("offer should wait while the lane is full",
+		           producer.isAlive());
+
+		assertEquals(1, takeOne(q).getData(0));
+		producer.join(TimeUnit.SECONDS.toMillis(2));
+		assertFalse(producer.isAlive());
+		assertEquals(2, takeOne(q).getData(0));
+		assertEquals(3, takeOne(q).getData(0));
+	}
+
+	@Test
+	public void concurrentProducersDeliverEverythingInOrder ()
+			throws InterruptedException {
+		final int producers = 4;
+		final int perProducer = 20000;
+		final OutgoingQueue q = new OutgoingQueue(8, 32);
+		q.setOverflowPolicy(OutgoingQueue.Lane.BULK,
+		                    OutgoingQueue.OverflowPolicy.BLOCK);
+
+		Thread[] threads = new Thread[producers];
+		for (int t = 0; t < producers; t++) {
+			final int id = t;
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run () {
+					for (int i = 0; i < perProducer; i++) {
+						q.offer(packet(id, i & 0xFF), OutgoingQueue.Lane.BULK);
+					}
+				}
+			});
+			threads[t].start();
+		}
+
+		// Each producer's packets come out in the order it queued them
+		int[] next = new int[producers];
+		int received = 0;
+		long giveUp = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+		while (received < producers * perProducer) {
+			assertTrue("Timed out", System.nanoTime() < giveUp);
+			Packet p = takeOne(q);
+			if (p == null) {
+				Thread.yield();
+				continue;
+			}
+			int id = p.getData(0);
+			assertEquals(next[id] & 0xFF, p.getData(1));
+			next[id]++;
+			received++;
+		}
+
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertTrue(q.isEmpty());
+		assertEquals(0, q.getDroppedCount(OutgoingQueue.Lane.BULK));
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PacketDispatchTest {
+
+	private final static long WAIT_MS = 2000;
+
+	private PacketDispatch _dispatch;
+
+	// Everything the dispatcher hands to the transmitter
+	private final LinkedBlockingQueue<Packet> _wire =
+			new LinkedBlockingQueue<Packet>();
+
+	@Before
+	public void setUp () {
+		_dispatch = new PacketDispatch();
+		_dispatch.registerPacketTransmitter(new PktTransmitter() {
+			@Override
+			public void sendPacket (Packet p) {
+				_wire.add(p);
+			}
+		});
+	}
+
+	@After
+	public void tearDown () {
+		_dispatch.shutdown();
+	}
+
+	private static Packet packet (PacketType type, int value) {
+		Packet p = new Packet();
+		p.typeId = type;
+		p.length = 1;
+		p.setData(0, value);
+		return p;
+	}
+
+	// A packet as the other side would send it
+	private static Packet incoming (PacketType type, int seq, int value) {
+		Packet p = packet(type, value);
+		p.setSequenceNumber(seq);
+		p.sentCount = 1;
+		return p;
+	}
+
+	private static Packet ack (int seq) {
+		Packet p = new Packet();
+		p.typeId = PacketType.ACK;
+		p.setSequenceNumber(seq);
+		return p;
+	}
+
+	private Packet nextOnWire () throws InterruptedException {
+		Packet p = _wire.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+		assertTrue("Nothing was sent", p != null);
+		return p;
+	}
+
+	@Test
+	public void sendCompletesWhenSent () throws Exception {
+		PacketFuture f = _dispatch.send(packet(PacketType.HIJACKIO, 1));
+		Packet p = nextOnWire();
+		assertFalse(p.ackRequested);
+		assertFalse(f.isDone());
+
+		_dispatch.sentPacket(p);
+		assertSame(p, f.get(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertEquals(0, _dispatch.getInFlightCount());
+	}
+
+	@Test
+	public void sendReliableCompletesOnAck () throws Exception {
+		PacketFuture f = _dispatch.sendReliable(packet(PacketType.HIJACKIO, 1));
+		Packet p = nextOnWire();
+		assertTrue(p.ackRequested);
+		assertEquals(1, _dispatch.getInFlightCount());
+
+		_dispatch.recvPacket(ack(p.getSequenceNumber()));
+		assertSame(p, f.get(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertTrue(p.ackReceived);
+		assertEquals(0, _dispatch.getInFlightCount());
+	}
+
+	@Test
+	public void sendReliableFailsAfterRetries () throws Exception {
+		_dispatch.setMaxRetries(1);
+		PacketFuture f = _dispatch.sendReliable(packet(PacketType.HIJACKIO, 1));
+		try {
+			f.get(10000, TimeUnit.MILLISECONDS);
+			fail("Packet was never acked");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(1, _dispatch.getRetransmitCount());
+		assertEquals(1, _dispatch.getFailedCount());
+		assertEquals(2, _wire.size());
+	}
+
+	@Test
+	public void requestOnlyTakesMatchingResponse () throws Exception {
+		PacketFuture f = _dispatch.request(packet(PacketType.HIJACKIO, 5),
+				WAIT_MS, new PacketFuture.Matcher() {
+			@Override
+			public boolean isResponse (Packet request, Packet p) {
+				return p.getData(0) == request.getData(0);
+			}
+		});
+		int seq = nextOnWire().getSequenceNumber();
+
+		// Same type and sequence number, but sent by the other side on
+		// its own
+		_dispatch.recvPacket(incoming(PacketType.HIJACKIO, seq, 9));
+		_dispatch.recvPacket(incoming(PacketType.BOOTED, seq, 5));
+		assertFalse(f.isDone());
+
+		_dispatch.recvPacket(incoming(PacketType.HIJACKIO, seq, 5));
+		Packet response = f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+		assertEquals(5, response.getData(0));
+		assertEquals(seq, response.getSequenceNumber());
+	}
+
+	@Test
+	public void requestTimesOut () throws Exception {
+		PacketFuture f = _dispatch.request(packet(PacketType.HIJACKIO, 5), 50);
+		try {
+			f.get(WAIT_MS, TimeUnit.MILLISECONDS);
+			fail("Nothing answered");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof java.util.concurrent.TimeoutException);
+		}
+	}
+
+	@Test
+	public void windowLimitsPacketsInFlight () throws Exception {
+		_dispatch.setWindowSize(2);
+		for (int i = 0; i < 4; i++) {
+			_dispatch.sendReliable(packet(PacketType.HIJACKIO, i));
+		}
+		Packet first = nextOnWire();
+		nextOnWire();
+		assertEquals(2, _dispatch.getInFlightCount());
+		assertTrue(_wire.isEmpty());
+
+		// An ack makes room, and the next packet goes out from the timer
+		// thread
+		_dispatch.recvPacket(ack(first.getSequenceNumber()));
+		assertEquals(2, nextOnWire().getData(0));
+		assertTrue(_wire.isEmpty());
+	}
+
+	@Test
+	public void ackWithoutSequenceNumberIsForFirstPacketIn () throws Exception {
+		PacketFuture first = _dispatch.sendReliable(packet(PacketType.HIJACKIO, 1));
+		PacketFuture second = _dispatch.sendReliable(packet(PacketType.HIJACKIO, 2));
+		Packet p1 = nextOnWire();
+		Packet p2 = nextOnWire();
+
+		// The first packet goes out last, as it does when it is resent,
+		// and the timer thread picks up the send times
+		_dispatch.sentPacket(p2);
+		Thread.sleep(5);
+		_dispatch.sentPacket(p1);
+		Thread.sleep(100);
+
+		// Stop and wait firmware acks without saying which packet
+		_dispatch.recvPacket(ack(-1));
+		assertSame(p1, first.get(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertFalse(second.isDone());
+		assertEquals(1, _dispatch.getInFlightCount());
+	}
+
+	// Registers a listener that records the first payload byte
+	private LinkedBlockingQueue<Integer> listen (PacketType type) {
+		final LinkedBlockingQueue<Integer> got = new LinkedBlockingQueue<Integer>();
+		_dispatch.registerIncomingPacketListener(new PktRecvCb() {
+			@Override
+			public void recvPacket (Packet p) {
+				got.add(p.getData(0));
+			}
+		}, type);
+		return got;
+	}
+
+	private static Packet resent (PacketType type, int seq, int value) {
+		Packet p = incoming(type, seq, value);
+		p.ackRequested = true;
+		p.sentCount = 2;
+		return p;
+	}
+
+	@Test
+	public void resentDuplicatesAreAckedButNotDelivered () throws Exception {
+		LinkedBlockingQueue<Integer> got = listen(PacketType.HIJACKIO);
+
+		Packet first = incoming(PacketType.HIJACKIO, 10, 1);
+		first.ackRequested = true;
+		_dispatch.recvPacket(first);
+		_dispatch.recvPacket(resent(PacketType.HIJACKIO, 10, 1));
+
+		assertEquals(1, (int) got.poll());
+		assertTrue(got.isEmpty());
+		assertEquals(1, _dispatch.getDuplicateCount(PacketType.HIJACKIO));
+		assertEquals(1, _dispatch.getDuplicateCount());
+
+		// Both copies were acked
+		assertEquals(10, nextOnWire().getSequenceNumber());
+		assertEquals(10, nextOnWire().getSequenceNumber());
+	}
+
+	@Test
+	public void duplicateWindowSlides () throws Exception {
+		LinkedBlockingQueue<Integer> got = listen(PacketType.HIJACKIO);
+
+		// Sequence numbers wrap, so 250 to 5 is moving forward
+		for (int seq : new int[] { 250, 255, 0, 5 }) {
+			Packet p = incoming(PacketType.HIJACKIO, seq, seq);
+			p.ackRequested = true;
+			_dispatch.recvPacket(p);
+		}
+		// Seen, within the window
+		_dispatch.recvPacket(resent(PacketType.HIJACKIO, 250, 1));
+		_dispatch.recvPacket(resent(PacketType.HIJACKIO, 0, 2));
+		// Not seen, but within the window
+		_dispatch.recvPacket(resent(PacketType.HIJACKIO, 3, 3));
+		// Too old to tell, so it restarts the window
+		int old = (5 - PacketDispatch.DUPLICATE_WINDOW) & 0xFF;
+		_dispatch.recvPacket(resent(PacketType.HIJACKIO, old, 4));
+
+		int[] expected = { 250, 255, 0, 5, 3, 4 };
+		for (int value : expected) {
+			assertEquals(value, (int) got.poll());
+		}
+		assertTrue(got.isEmpty());
+		assertEquals(2, _dispatch.getDuplicateCount(PacketType.HIJACKIO));
+	}
+
+	@Test
+	public void duplicatesAreTrackedPerType () throws Exception {
+		LinkedBlockingQueue<Integer> got = listen(PacketType.BOOTED);
+
+		Packet p = incoming(PacketType.HIJACKIO, 7, 1);
+		p.ackRequested = true;
+		_dispatch.recvPacket(p);
+
+		// Same sequence number, other type
+		_dispatch.recvPacket(resent(PacketType.BOOTED, 7, 2));
+		assertEquals(2, (int) got.poll());
+		assertEquals(0, _dispatch.getDuplicateCount());
+	}
+
+	@Test
+	public void firstTriesAreAlwaysDelivered () throws Exception {
+		LinkedBlockingQueue<Integer> got = listen(PacketType.HIJACKIO);
+
+		// A peer that does not number its packets
+		for (int i = 0; i < 3; i++) {
+			Packet p = incoming(PacketType.HIJACKIO, 4, i);
+			p.ackRequested = true;
+			_dispatch.recvPacket(p);
+		}
+		assertEquals(3, got.size());
+		assertEquals(0, _dispatch.getDuplicateCount());
+	}
+
+	// The transmitter waits for room like OutgoingQueue with BLOCK, and
+	// the output thread reports each packet as sent once it has taken it.
+	// This used to deadlock: the sender waited for room with the dispatch
+	// lock held, and the output thread waited for the lock.
+	@Test
+	public void transmitterThatWaitsDoesNotDeadlock () throws Exception {
+		final PacketDispatch dispatch = new PacketDispatch();
+		final BlockingQueue<Packet> slot = new ArrayBlockingQueue<Packet>(1);
+		final LinkedBlockingQueue<Packet> sent = new LinkedBlockingQueue<Packet>();
+		dispatch.registerPacketTransmitter(new PktTransmitter() {
+			@Override
+			public void sendPacket (Packet p) {
+				try {
+					slot.put(p);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		Thread output = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				try {
+					while (true) {
+						Packet p = slot.take();
+						dispatch.sentPacket(p);
+						sent.add(p);
+					}
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		});
+		output.setDaemon(true);
+		output.start();
+
+		Thread sender = new Thread(new Runnable() {
+			@Override
+			public void run () {
+				for (int i = 0; i < 4; i++) {
+					dispatch.sendReliable(packet(PacketType.HIJACKIO, i));
+				}
+			}
+		});
+		sender.setDaemon(true);
+		sender.start();
+
+		sender.join(WAIT_MS);
+		assertFalse("Sender is stuck", sender.isAlive());
+		for (int i = 0; i < 4; i++) {
+			Packet p = sent.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+			assertTrue("Output thread is stuck", p != null);
+			assertEquals(i, p.getData(0));
+		}
+
+		output.interrupt();
+		dispatch.shutdown();
+	}
+}
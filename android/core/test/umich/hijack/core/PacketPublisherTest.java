@@ -0,0 +1,287 @@
+/*
+ *  This file is part of hijack-infinity.
+ *
+ *  hijack-infinity is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  hijack-infinity is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with hijack-infinity.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package umich.hijack.core;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class PacketPublisherTest {
+
+	private final static long WAIT_MS = 2000;
+
+	// Records every call and the thread it came from
+	private static class Recorder implements PacketSubscriber {
+		final LinkedBlockingQueue<String> calls =
+				new LinkedBlockingQueue<String>();
+		final LinkedBlockingQueue<Thread> threads =
+				new LinkedBlockingQueue<Thread>();
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch inNext = new CountDownLatch(1);
+		volatile PacketSubscription subscription;
+
+		@Override
+		public void onSubscribe (PacketSubscription s) {
+			subscription = s;
+		}
+
+		@Override
+		public void onNext (Packet p) {
+			_record("next");
+			inNext.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		@Override
+		public void onError (Throwable t) {
+			_record("error");
+		}
+
+		@Override
+		public void onComplete () {
+			_record("complete");
+		}
+
+		private void _record (String call) {
+			threads.add(Thread.currentThread());
+			calls.add(call);
+		}
+
+		String next () throws InterruptedException {
+			String call = calls.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+			assertTrue("Timed out waiting for a call", call != null);
+			return call;
+		}
+
+		void assertNothingMore () throws InterruptedException {
+			assertNull(calls.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	private static Packet packet () {
+		Packet p = new Packet();
+		p.typeId = PacketType.HIJACKIO;
+		p.length = 1;
+		return p;
+	}
+
+	@Test
+	public void badRequestFailsOnWorkerAfterOnNext ()
+			throws InterruptedException {
+		PacketPublisher publisher = new PacketPublisher(PacketType.HIJACKIO);
+		Recorder r = new Recorder();
+		publisher.subscribe(r);
+		r.subscription.request(1);
+		publisher.recvPacket(packet());
+		assertTrue(r.inNext.await(WAIT_MS, TimeUnit.MILLISECONDS));
+		assertEquals("next", r.next());
+
+		// The worker is inside onNext, so the error has to wait for it
+		r.subscription.request(0);
+		r.assertNothingMore();
+		assertEquals(0, publisher.getSubscriberCount());
+
+		r.release.countDown();
+		assertEquals("error", r.next());
+		Thread worker = r.threads.take();
+		assertSame(worker, r.threads.take());
+		assertTrue(worker != Thread.currentThread());
+
+		// Nothing after the error, not even on shutdown
+		publisher.shutdown();
+		r.assertNothingMore();
+	}
+
+	@Test
+	public void shutdownCompletesOnceOnWorker () throws InterruptedException {
+		PacketPublisher publisher = new PacketPublisher(PacketType.HIJACKIO);
+		Recorder r = new Recorder();
+		r.release.countDown();
+		publisher.subscribe(r);
+		r.subscription.request(1);
+		publisher.recvPacket(packet());
+		assertEquals("next", r.next());
+
+		publisher.shutdown();
+		assertEquals("complete", r.next());
+		Thread worker = r.threads.take();
+		assertSame(worker, r.threads.take());
+
+		// A bad request after completing signals nothing
+		r.subscription.request(0);
+		r.assertNothingMore();
+	}
+
+	@Test
+	public void subscribeAfterShutdownCompletesOnWorker ()
+			throws InterruptedException {
+		PacketPublisher publisher = new PacketPublisher(PacketType.HIJACKIO);
+		publisher.shutdown();
+		Recorder r = new Recorder();
+		publisher.subscribe(r);
+		assertEquals("complete", r.next());
+		assertTrue(r.threads.take() != Thread.currentThread());
+		r.assertNothingMore();
+	}
+
+	// Records onNext as type:value and the other calls by name
+	private static class Log implements PacketSubscriber {
+		final LinkedBlockingQueue<String> calls =
+				new LinkedBlockingQueue<String>();
+		volatile PacketSubscription subscription;
+
+		@Override
+		public void onSubscribe (PacketSubscription s) {
+			subscription = s;
+		}
+
+		@Override
+		public void onNext (Packet p) {
+			calls.add(p.typeId + ":" + p.getData(0));
+		}
+
+		@Override
+		public void onError (Throwable t) {
+			calls.add("error");
+		}
+
+		@Override
+		public void onComplete () {
+			calls.add("complete");
+		}
+
+		// Wait for n calls
+		ArrayList<String> take (int n) throws InterruptedException {
+			ArrayList<String> got = new ArrayList<String>();
+			for (int i = 0; i < n; i++) {
+				String call = calls.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+				assertTrue("Timed out waiting for a call", call != null);
+				got.add(call);
+			}
+			return got;
+		}
+
+		void assertNothingMore () throws InterruptedException {
+			assertNull(calls.poll(50, TimeUnit.MILLISECONDS));
+		}
+	}
+
+	// A packet as the peripheral would send it
+	private static Packet incoming (PacketType type, int seq, int value) {
+		Packet p = new Packet();
+		p.typeId = type;
+		p.length = 1;
+		p.setData(0, value);
+		p.setSequenceNumber(seq);
+		p.sentCount = 1;
+		return p;
+	}
+
+	private static ArrayList<String> calls (String... calls) {
+		ArrayList<String> list = new ArrayList<String>();
+		for (String call : calls) {
+			list.add(call);
+		}
+		return list;
+	}
+
+	@Test
+	public void dispatchPublishesPerTypeAndGlobal () throws InterruptedException {
+		PacketDispatch dispatch = new PacketDispatch();
+		Log io = new Log();
+		Log all = new Log();
+		dispatch.getPublisher(PacketType.HIJACKIO).subscribe(io);
+		dispatch.getPublisher(PacketType.GLOBAL).subscribe(all);
+		io.subscription.request(Long.MAX_VALUE);
+		all.subscription.request(Long.MAX_VALUE);
+
+		dispatch.recvPacket(incoming(PacketType.HIJACKIO, 1, 10));
+		dispatch.recvPacket(incoming(PacketType.BOOTED, 2, 20));
+		dispatch.recvPacket(incoming(PacketType.HIJACKIO, 3, 11));
+		dispatch.recvPacket(incoming(PacketType.HIJACKIO, 4, 12));
+
+		assertEquals(calls("HIJACKIO:10", "HIJACKIO:11", "HIJACKIO:12"),
+				io.take(3));
+		assertEquals(calls("HIJACKIO:10", "BOOTED:20", "HIJACKIO:11",
+				"HIJACKIO:12"), all.take(4));
+
+		// Completion comes after every packet, and only once
+		dispatch.shutdown();
+		assertEquals(calls("complete"), io.take(1));
+		assertEquals(calls("complete"), all.take(1));
+		io.assertNothingMore();
+		all.assertNothingMore();
+	}
+
+	@Test
+	public void dispatchHonoursDemand () throws InterruptedException {
+		PacketDispatch dispatch = new PacketDispatch();
+		Log all = new Log();
+		dispatch.getPublisher(PacketType.GLOBAL).subscribe(all);
+		all.subscription.request(1);
+
+		for (int i = 0; i < 3; i++) {
+			dispatch.recvPacket(incoming(PacketType.HIJACKIO, i + 1, i));
+		}
+		assertEquals(calls("HIJACKIO:0"), all.take(1));
+		all.assertNothingMore();
+
+		all.subscription.request(2);
+		assertEquals(calls("HIJACKIO:1", "HIJACKIO:2"), all.take(2));
+		dispatch.shutdown();
+		assertEquals(calls("complete"), all.take(1));
+	}
+
+	@Test
+	public void cancelledSubscriberGetsNothingMore () throws InterruptedException {
+		PacketDispatch dispatch = new PacketDispatch();
+		PacketPublisher publisher = dispatch.getPublisher(PacketType.GLOBAL);
+		Log cancelled = new Log();
+		Log other = new Log();
+		publisher.subscribe(cancelled);
+		publisher.subscribe(other);
+		cancelled.subscription.request(Long.MAX_VALUE);
+		other.subscription.request(Long.MAX_VALUE);
+
+		dispatch.recvPacket(incoming(PacketType.HIJACKIO, 1, 1));
+		assertEquals(calls("HIJACKIO:1"), cancelled.take(1));
+
+		cancelled.subscription.cancel();
+		assertEquals(1, publisher.getSubscriberCount());
+		dispatch.recvPacket(incoming(PacketType.HIJACKIO, 2, 2));
+		assertEquals(calls("HIJACKIO:1", "HIJACKIO:2"), other.take(2));
+
+		// Not even completion after a cancel
+		dispatch.shutdown();
+		assertEquals(calls("complete"), other.take(1));
+		cancelled.assertNothingMore();
+	}
+}
@@ -20,6 +20,46 @@
 
 #include "framingEngine.h"
 
+// CRC-16 CCITT (polynomial 0x1021) for each value of the byte being added
+static const uint16_t fe_crcTable[256] = {
+	0x0000, 0x1021, 0x2042, 0x3063, 0x4084, 0x50a5, 0x60c6, 0x70e7,
+	0x8108, 0x9129, 0xa14a, 0xb16b, 0xc18c, 0xd1ad, 0xe1ce, 0xf1ef,
+	0x1231, 0x0210, 0x3273, 0x2252, 0x52b5, 0x4294, 0x72f7, 0x62d6,
+	0x9339, 0x8318, 0xb37b, 0xa35a, 0xd3bd, 0xc39c, 0xf3ff, 0xe3de,
+	0x2462, 0x3443, 0x0420, 0x1401, 0x64e6, 0x74c7, 0x44a4, 0x5485,
+	0xa56a, 0xb54b, 0x8528, 0x9509, 0xe5ee, 0xf5cf, 0xc5ac, 0xd58d,
+	0x3653, 0x2672, 0x1611, 0x0630, 0x76d7, 0x66f6, 0x5695, 0x46b4,
+	0xb75b, 0xa77a, 0x9719, 0x8738, 0xf7df, 0xe7fe, 0xd79d, 0xc7bc,
+	0x48c4, 0x58e5, 0x6886, 0x78a7, 0x0840, 0x1861, 0x2802, 0x3823,
+	0xc9cc, 0xd9ed, 0xe98e, 0xf9af, 0x8948, 0x9969, 0xa90a, 0xb92b,
+	0x5af5, 0x4ad4, 0x7ab7, 0x6a96, 0x1a71, 0x0a50, 0x3a33, 0x2a12,
+	0xdbfd, 0xcbdc, 0xfbbf, 0xeb9e, 0x9b79, 0x8b58, 0xbb3b, 0xab1a,
+	0x6ca6, 0x7c87, 0x4ce4, 0x5cc5, 0x2c22, 0x3c03, 0x0c60, 0x1c41,
+	0xedae, 0xfd8f, 0xcdec, 0xddcd, 0xad2a, 0xbd0b, 0x8d68, 0x9d49,
+	0x7e97, 0x6eb6, 0x5ed5, 0x4ef4, 0x3e13, 0x2e32, 0x1e51, 0x0e70,
+	0xff9f, 0xefbe, 0xdfdd, 0xcffc, 0xbf1b, 0xaf3a, 0x9f59, 0x8f78,
+	0x9188, 0x81a9, 0xb1ca, 0xa1eb, 0xd10c, 0xc12d, 0xf14e, 0xe16f,
+	0x1080, 0x00a1, 0x30c2, 0x20e3, 0x5004, 0x4025, 0x7046, 0x6067,
+	0x83b9, 0x9398, 0xa3fb, 0xb3da, 0xc33d, 0xd31c, 0xe37f, 0xf35e,
+	0x02b1, 0x1290, 0x22f3, 0x32d2, 0x4235, 0x5214, 0x6277, 0x7256,
+	0xb5ea, 0xa5cb, 0x95a8, 0x8589, 0xf56e, 0xe54f, 0xd52c, 0xc50d,
+	0x34e2, 0x24c3, 0x14a0, 0x0481, 0x7466, 0x6447, 0x5424, 0x4405,
+	0xa7db, 0xb7fa, 0x8799, 0x97b8, 0xe75f, 0xf77e, 0xc71d, 0xd73c,
+	0x26d3, 0x36f2, 0x0691, 0x16b0, 0x6657, 0x7676, 0x4615, 0x5634,
+	0xd94c, 0xc96d, 0xf90e, 0xe92f, 0x99c8, 0x89e9, 0xb98a, 0xa9ab,
+	0x5844, 0x4865, 0x7806, 0x6827, 0x18c0, 0x08e1, 0x3882, 0x28a3,
+	0xcb7d, 0xdb5c, 0xeb3f, 0xfb1e, 0x8bf9, 0x9bd8, 0xabbb, 0xbb9a,
+	0x4a75, 0x5a54, 0x6a37, 0x7a16, 0x0af1, 0x1ad0, 0x2ab3, 0x3a92,
+	0xfd2e, 0xed0f, 0xdd6c, 0xcd4d, 0xbdaa, 0xad8b, 0x9de8, 0x8dc9,
+	0x7c26, 0x6c07, 0x5c64, 0x4c45, 0x3ca2, 0x2c83, 0x1ce0, 0x0cc1,
+	0xef1f, 0xff3e, 0xcf5d, 0xdf7c, 0xaf9b, 0xbfba, 0x8fd9, 0x9ff8,
+	0x6e17, 0x7e36, 0x4e55, 0x5e74, 0x2e93, 0x3eb2, 0x0ed1, 0x1ef0
+};
+
+// Add one byte to a running CRC
+#define FE_CRC_UPDATE(crc, b) \
+	(((crc) << 8) ^ fe_crcTable[(uint8_t) (((crc) >> 8) ^ (b))])
+
 /////////////////////////////
 // Region: Public functions
 /////////////////////////////
@@ -30,24 +70,55 @@ void fe_init (void) {
 
 void fe_handleBufferReceived (uint8_t* buf, uint8_t len) {
 
-	// Check that the checksum is correct
 	uint8_t sum = 0;
-	int i;
+	uint16_t crc = PKT_CRC_INIT;
+	uint8_t useCrc;
+	uint8_t trailerLen;
+	uint8_t i;
 
-	for (i=0; i<len-1; i++) {
-		sum += buf[i];
+	if (len < 1) {
+		return;
 	}
 
-	if (sum != buf[len-1]) {
-		// checksum failed
+	// The header says which check the phone used
+	useCrc = (buf[0] & PKT_CRC_MASK) ? 1 : 0;
+	trailerLen = (useCrc) ? PKT_CRC_LEN : PKT_CHECKSUM_LEN;
+
+	if (len < 1 + trailerLen) {
+		// Need at least the header and the check bytes
 		return;
 	}
 
+	// Check that the checksum or CRC is correct
+	if (useCrc) {
+		// Running the CRC over the CRC bytes too leaves 0 for a good frame
+		for (i=0; i<len; i++) {
+			crc = FE_CRC_UPDATE(crc, buf[i]);
+		}
+
+		if (crc != 0) {
+			// CRC failed
+			return;
+		}
+	} else {
+		for (i=0; i<len-1; i++) {
+			sum += buf[i];
+		}
+
+		if (sum != buf[len-1]) {
+			// checksum failed
+			return;
+		}
+	}
+
+	// Answer in whatever the phone is using
+	fe.useCrc = useCrc;
+
 	incthedata();
 
 
 	// Parse the buffer and create the packet
-	fe.rxPacket.length        = len - 2; // Subtract 2 for the header bit and the checksum
+	fe.rxPacket.length        = len - 1 - trailerLen; // Subtract the header byte and the checksum
 	fe.rxPacket.power_down    = (buf[0] & PKT_POWERDOWN_MASK) >> PKT_POWERDOWN_OFFSET;
 	fe.rxPacket.ack_requested = (buf[0] & PKT_ACKREQ_MASK) >> PKT_ACKREQ_OFFSET;
 	fe.rxPacket.retries       = (buf[0] & PKT_RETRIES_MASK) >> PKT_RETRIES_OFFSET;
@@ -69,6 +140,7 @@ void fe_handleBufferSent (void) {
 fe_error_e fe_sendPacket (packet_t* pkt) {
 	uint8_t i;
 	uint8_t sum;
+	uint16_t crc;
 	uint8_t error;
 
 	if (fe.sendingPacket) {
@@ -82,17 +154,29 @@ fe_error_e fe_sendPacket (packet_t* pkt) {
 	fe.outBuf[fe.outBufIdx] = ((pkt->power_down << PKT_POWERDOWN_OFFSET) & PKT_POWERDOWN_MASK) |
 	                          ((pkt->ack_requested << PKT_ACKREQ_OFFSET) & PKT_ACKREQ_MASK) |
 	                          ((pkt->retries << PKT_RETRIES_OFFSET) & PKT_RETRIES_MASK) |
+	                          ((fe.useCrc << PKT_CRC_OFFSET) & PKT_CRC_MASK) |
 	                          (pkt->type & PKT_TYPE_MASK);
-	sum = fe.outBuf[fe.outBufIdx++];
+	sum = fe.outBuf[fe.outBufIdx];
+	crc = FE_CRC_UPDATE(PKT_CRC_INIT, fe.outBuf[fe.outBufIdx]);
+	fe.outBufIdx++;
 
 	// Copy the data portion of the packet to the buffer, inserting escapes
-	// where necessary.
+	// where necessary. Both checks are kept up to date byte by byte so the
+	// trailer is ready as soon as the data is in.
 	for (i=0; i<pkt->length; i++) {
 		fe.outBuf[fe.outBufIdx++] = pkt->data[i];
 		sum += pkt->data[i];
+		crc = FE_CRC_UPDATE(crc, pkt->data[i]);
+	}
+
+	if (fe.useCrc) {
+		fe.outBuf[fe.outBufIdx++] = crc >> 8;
+		fe.outBuf[fe.outBufIdx] = crc & 0xFF;
+		fe.outBufLen = pkt->length + 1 + PKT_CRC_LEN; // header, crc
+	} else {
+		fe.outBuf[fe.outBufIdx] = sum; // checksum
+		fe.outBufLen = pkt->length + 2; // header, chksum
 	}
-	fe.outBuf[fe.outBufIdx] = sum; // checksum
-	fe.outBufLen = pkt->length + 2; // header, chksum
 
 	// Start sending the packet
 	error = fe.bufferSender(fe.outBuf, fe.outBufLen);
@@ -87,6 +87,11 @@ struct fe_state_struct {
 	uint8_t outBufIdx;
 	uint8_t outBufLen;
 
+	// Whether outgoing packets end in a CRC-16 instead of the additive
+	// checksum. The phone decides: this follows whichever the last good
+	// packet from the phone used.
+	uint8_t useCrc;
+
 	// Where to put the packet from the incoming buffer
 	packet_t rxPacket;
 
@@ -48,7 +48,7 @@ volatile uint8_t pendingStart = 0;
 
 
 packet_t booted_packet = {1, 0, 1, 0, 3, {0}};
-packet_t data_packet = {2, 0, 1, 0, 8, {0}};
+packet_t data_packet = {2, 0, 1, 0, 7, {0}};
 
 
 
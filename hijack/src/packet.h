@@ -2,7 +2,9 @@
 #define __PACKET_H__
 
 #define PKT_TYPE_OFFSET      0
-#define PKT_TYPE_MASK        0xF
+#define PKT_TYPE_MASK        0x7
+#define PKT_CRC_OFFSET       3
+#define PKT_CRC_MASK         0x1 << 3
 #define PKT_RETRIES_OFFSET   4
 #define PKT_RETRIES_MASK     0x3 << 4
 #define PKT_ACKREQ_OFFSET    6
@@ -10,6 +12,14 @@
 #define PKT_POWERDOWN_OFFSET 7
 #define PKT_POWERDOWN_MASK   0x1 << 7
 
+// Packets with the CRC bit set in the header end in a CRC-16 (CCITT,
+// polynomial 0x1021, initial value 0xFFFF, high byte first) over everything
+// before it instead of the one byte additive checksum. Running the CRC over
+// the whole frame including the CRC bytes gives 0 for a good frame.
+#define PKT_CHECKSUM_LEN     1
+#define PKT_CRC_LEN          2
+#define PKT_CRC_INIT         0xFFFF
+
 typedef struct {
 	uint8_t length;
 	uint8_t power_down;